@@ -1,328 +1,898 @@
 package com.example.disasterchat;
 
-import android.bluetooth.*;
 import android.content.Context;
 import android.os.Handler;
 import android.util.Log;
 
 import java.io.*;
-import java.util.UUID;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 public class BluetoothChatService {
     private static final String TAG = "BluetoothChatService";
-    private static final String SERVICE_NAME = "DisasterChat";
-    private static final UUID SERVICE_UUID = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
 
-    private final BluetoothAdapter bluetoothAdapter;
+    private static final int DEFAULT_MAX_LINKS = 7;
+    static final int OUTBOUND_LANE_CAPACITY = 128;
+    /** Largest mesh packet that still fits in a sequenced frame. */
+    private static final int MAX_PACKET = FrameCodec.MAX_PAYLOAD - ReliableChannel.SEQ_SIZE;
+    // Unacked frames are re-offered in one go after a reconnect, so they must fit in a lane
+    // alongside the hello.
+    static final int RELIABLE_WINDOW = OUTBOUND_LANE_CAPACITY - 8;
+    static final int RELIABLE_BACKLOG = OUTBOUND_LANE_CAPACITY * 4;
+    private static final long DEFAULT_PING_INTERVAL_MS = 5000;
+    private static final int KNOWN_PEERS = 32;
+    private static final int RECONNECT_RACE_WIDTH = 3;
+    static final long DEFAULT_ROUTE_ANNOUNCE_MS = 30_000;
+    /** SOS alerts not reported again within the sync horizon are dropped, checked this often. */
+    static final long SOS_EXPIRY_INTERVAL_MS = 60_000;
+    /** Where the Context constructor keeps this device's node id, in the app's files. */
+    static final String NODE_ID_FILE = "node.id";
+
+    private final Transport transport;
     private final Handler handler;
-    private final Consumer<String> onMessageReceived;
-    private final Consumer<BluetoothDevice> onDeviceConnected;
-    private final Runnable onDeviceDisconnected;
+    private final Consumer<ChatMessage> onMessageReceived;
+    private volatile Consumer<ChatMessage> onMessageSent;
+    private final Consumer<Transport.Connection> onPeerConnected;
+    private final Consumer<Transport.Connection> onPeerDisconnected;
 
     private AcceptThread acceptThread;
-    private ConnectThread connectThread;
-    private ConnectedThread connectedThread;
-
-    private int state;
-    private static final int STATE_NONE = 0;
-    private static final int STATE_LISTEN = 1;
-    private static final int STATE_CONNECTING = 2;
-    private static final int STATE_CONNECTED = 3;
-
-    public BluetoothChatService(Context context, Handler handler,
-                                Consumer<String> onMessageReceived,
-                                Consumer<BluetoothDevice> onDeviceConnected,
-                                Runnable onDeviceDisconnected) {
-        this.bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+    private boolean listening = true;
+    private final Map<String, ConnectThread> connectThreads = new HashMap<>();
+    private final Map<String, ConnectedThread> links = new LinkedHashMap<>();
+    private int maxLinks = DEFAULT_MAX_LINKS;
+    private volatile int maxBatchBytes = LinkWriter.DEFAULT_MAX_BATCH_BYTES;
+    private volatile long lingerNanos = LinkWriter.DEFAULT_LINGER_NANOS;
+    private final byte[] compressionDictionary;
+    private volatile boolean compressionEnabled = true;
+    private volatile boolean rateLimiting = true;
+
+    private final MeshNode node;
+    private final SosIndex sosAlerts = new SosIndex();
+    private volatile long routeAnnounceMillis = DEFAULT_ROUTE_ANNOUNCE_MS;
+
+    private final AtomicLong totalBytesIn = new AtomicLong();
+    private final AtomicLong totalBytesOut = new AtomicLong();
+    private final MetricsRegistry metrics = new MetricsRegistry(ConnectionState.NAMES);
+    private volatile long pingIntervalMillis = DEFAULT_PING_INTERVAL_MS;
+    private ScheduledExecutorService scheduler;
+    private final PeerTable knownPeers = new PeerTable(KNOWN_PEERS, new Random());
+    private final Set<String> racing = new HashSet<>();
+    private final TextCodec sendText = new TextCodec(MAX_PACKET);
+    private final byte[] sendScratch = new byte[MAX_PACKET];
+    private final BulkTransfers transfers = new BulkTransfers(this::fileOutboundFor);
+    private final Map<String, ReliableChannel> channels = new LinkedHashMap<String, ReliableChannel>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ReliableChannel> eldest) {
+            if (size() <= KNOWN_PEERS) {
+                return false;
+            }
+            eldest.getValue().close(new IOException("Peer forgotten"));
+            return true;
+        }
+    };
+    private ScheduledFuture<?> reconnectTask;
+    private long reconnectAtMillis;
+
+    private final ConnectionState state = new ConnectionState();
+
+    public BluetoothChatService(Context context, Handler handler, Transport transport,
+                                Consumer<ChatMessage> onMessageReceived,
+                                Consumer<Transport.Connection> onPeerConnected,
+                                Consumer<Transport.Connection> onPeerDisconnected) {
+        this(handler, transport, PayloadCompressor.buildDictionary(context.getString(R.string.sos_message)),
+                loadNodeId(new File(context.getFilesDir(), NODE_ID_FILE)),
+                onMessageReceived, onPeerConnected, onPeerDisconnected);
+    }
+
+    /** Context-free variant for running virtual peers off-device, under a new random node id. */
+    public BluetoothChatService(Handler handler, Transport transport, byte[] compressionDictionary,
+                                Consumer<ChatMessage> onMessageReceived,
+                                Consumer<Transport.Connection> onPeerConnected,
+                                Consumer<Transport.Connection> onPeerDisconnected) {
+        this(handler, transport, compressionDictionary, new SecureRandom().nextInt(),
+                onMessageReceived, onPeerConnected, onPeerDisconnected);
+    }
+
+    /** Runs as {@code nodeId}, as a device does again after a restart. */
+    public BluetoothChatService(Handler handler, Transport transport, byte[] compressionDictionary, int nodeId,
+                                Consumer<ChatMessage> onMessageReceived,
+                                Consumer<Transport.Connection> onPeerConnected,
+                                Consumer<Transport.Connection> onPeerDisconnected) {
+        this.node = new MeshNode(nodeId, new SecureRandom().nextInt(), Clock.SYSTEM, this::onMessage);
+        this.transport = transport;
         this.handler = handler;
         this.onMessageReceived = onMessageReceived;
-        this.onDeviceConnected = onDeviceConnected;
-        this.onDeviceDisconnected = onDeviceDisconnected;
-        this.state = STATE_NONE;
+        this.onPeerConnected = onPeerConnected;
+        this.onPeerDisconnected = onPeerDisconnected;
+        this.compressionDictionary = compressionDictionary;
+        state.addListener(transition -> {
+            Log.d(TAG, "state " + transition);
+            metrics.onStateChanged(transition.to);
+        });
+    }
+
+    /**
+     * The node id kept in {@code file}, or a new random one saved there, so a restarted
+     * app is the same node to its peers. An unreadable file gets a new id.
+     */
+    static int loadNodeId(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt();
+        } catch (IOException e) {
+            // First start, or the file was lost.
+        }
+        int nodeId = new SecureRandom().nextInt();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(nodeId);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save node id", e);
+        }
+        return nodeId;
+    }
+
+    /**
+     * Takes back a message journaled before a restart; call for the journal's newest
+     * messages, oldest first, before {@link #start}. Peers then do not send them again on
+     * reconciliation, their echoes are dropped, new messages do not reuse their ids, and
+     * a received geotagged SOS within the sync horizon is back in {@link #getSosAlerts}.
+     */
+    public void restore(ChatMessage message) {
+        byte[] packet = message.packet;
+        if (packet == null) {
+            return;
+        }
+        node.restore(message.packetType, packet);
+        int body = MeshPacket.HEADER_SIZE;
+        long timestamp = MeshPacket.readTimestampMillis(packet, 0);
+        long horizon = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(MeshNode.SYNC_HORIZON_SECONDS);
+        if (message.kind == ChatMessage.KIND_SOS_RECEIVED && timestamp >= horizon
+                && SosAlert.hasGeotag(packet, body, packet.length - body)) {
+            sosAlerts.report(message.senderId, SosAlert.readLatE7(packet, body), SosAlert.readLonE7(packet, body),
+                    SosAlert.readSeverity(packet, body), message.body, timestamp);
+        }
+    }
+
+    /**
+     * Called with every chat, SOS and direct message this node originates, on the sending
+     * thread. The message carries what {@link #restore} needs after a restart.
+     */
+    public void setOnMessageSent(Consumer<ChatMessage> onMessageSent) {
+        this.onMessageSent = onMessageSent;
+    }
+
+    /**
+     * Upper bound on simultaneously open links. Accepting keeps running while links are
+     * open; sockets beyond the limit are closed as soon as they arrive.
+     */
+    public synchronized void setMaxLinks(int maxLinks) {
+        if (maxLinks < 1) {
+            throw new IllegalArgumentException("maxLinks must be at least 1");
+        }
+        this.maxLinks = maxLinks;
+    }
+
+    public synchronized int getMaxLinks() {
+        return maxLinks;
+    }
+
+    /**
+     * Coalesces queued frames into writes of up to {@code maxBatchBytes}, waiting at most
+     * {@code linger} for more frames before flushing. Applies to links opened afterwards;
+     * {@code maxBatchBytes <= 0} writes and flushes every frame on its own.
+     */
+    public void setWriteBatching(int maxBatchBytes, long linger, TimeUnit unit) {
+        this.maxBatchBytes = maxBatchBytes;
+        this.lingerNanos = unit.toNanos(linger);
+    }
+
+    /**
+     * Offers dictionary compression to peers. A link only compresses once both sides
+     * have advertised it with the same dictionary; applies to links opened afterwards.
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        this.compressionEnabled = enabled;
+    }
+
+    /**
+     * Paces each link with a {@link RateLimiter} that adapts to how fast the link drains,
+     * so a slow link does not hold seconds of frames in its buffers. On by default;
+     * applies to links opened afterwards.
+     */
+    public void setRateLimiting(boolean enabled) {
+        this.rateLimiting = enabled;
+    }
+
+    /** How often each link is pinged to sample RTT; {@code <= 0} disables pings. Applies on the next start(). */
+    public void setPingInterval(long interval, TimeUnit unit) {
+        this.pingIntervalMillis = unit.toMillis(interval);
+    }
+
+    /**
+     * Backoff for reconnecting to peers whose link dropped. The first retry comes after
+     * about {@code baseDelay}; each failure doubles it up to {@code maxDelay}, with jitter.
+     */
+    public void setReconnectBackoff(long baseDelay, long maxDelay, TimeUnit unit) {
+        knownPeers.setBackoff(unit.toMillis(baseDelay), unit.toMillis(maxDelay));
+    }
+
+    /**
+     * How often this node announces itself so neighbours can route to it; routes not
+     * refreshed for three intervals lapse. {@code <= 0} stops announcing. Applies on the
+     * next start().
+     */
+    public void setRouteAnnounceInterval(long interval, TimeUnit unit) {
+        this.routeAnnounceMillis = unit.toMillis(interval);
+        if (routeAnnounceMillis > 0) {
+            node.routes.setExpiry(3 * routeAnnounceMillis);
+        }
     }
 
     public synchronized void start() {
         Log.d(TAG, "start");
 
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "LinkScheduler");
+                t.setDaemon(true);
+                return t;
+            });
+            if (pingIntervalMillis > 0) {
+                scheduler.scheduleWithFixedDelay(this::pingLinks, pingIntervalMillis, pingIntervalMillis,
+                        TimeUnit.MILLISECONDS);
+            }
+            if (routeAnnounceMillis > 0) {
+                scheduler.scheduleWithFixedDelay(node::announceRoute, routeAnnounceMillis, routeAnnounceMillis,
+                        TimeUnit.MILLISECONDS);
+            }
+            scheduler.scheduleWithFixedDelay(this::expireSosAlerts, SOS_EXPIRY_INTERVAL_MS, SOS_EXPIRY_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+            scheduleReconnect();
         }
 
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        if (links.isEmpty()) {
+            state.moveTo(connectThreads.isEmpty() ? ConnectionState.LISTEN : ConnectionState.CONNECTING);
         }
 
-        setState(STATE_LISTEN);
+        if (acceptThread == null && listening) {
+            acceptThread = new AcceptThread();
+            acceptThread.start();
+        }
+    }
 
-        if (acceptThread == null) {
+    /**
+     * Whether incoming links are accepted. Open links, outgoing connects and reconnects
+     * carry on either way; lets a battery-saving schedule close the listening socket
+     * between windows. On by default.
+     */
+    public synchronized void setListening(boolean listening) {
+        this.listening = listening;
+        if (!listening && acceptThread != null) {
+            acceptThread.cancel();
+            acceptThread = null;
+        } else if (listening && acceptThread == null && state.get() != ConnectionState.NONE) {
             acceptThread = new AcceptThread();
             acceptThread.start();
         }
     }
 
-    public synchronized void connect(BluetoothDevice device) {
-        Log.d(TAG, "connect to: " + device);
+    public synchronized void connect(String address) {
+        Log.d(TAG, "connect to: " + address);
 
-        if (state == STATE_CONNECTING) {
-            if (connectThread != null) {
-                connectThread.cancel();
-                connectThread = null;
-            }
+        if (links.containsKey(address) || connectThreads.containsKey(address)) {
+            Log.d(TAG, "already linked or connecting to " + address);
+            return;
         }
-
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        if (links.size() + connectThreads.size() >= maxLinks) {
+            Log.w(TAG, "link limit " + maxLinks + " reached, not connecting to " + address);
+            return;
         }
 
-        connectThread = new ConnectThread(device);
+        ConnectThread connectThread = new ConnectThread(address);
+        connectThreads.put(address, connectThread);
         connectThread.start();
-        setState(STATE_CONNECTING);
+        if (links.isEmpty()) {
+            state.moveTo(ConnectionState.CONNECTING);
+        }
     }
 
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
+    public synchronized void connected(Transport.Connection connection) {
         Log.d(TAG, "connected");
+        String address = connection.getAddress();
+        connectThreads.remove(address);
 
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
+        if (state.get() == ConnectionState.NONE || links.containsKey(address) || links.size() >= maxLinks) {
+            Log.d(TAG, "rejecting extra link to " + address);
+            closeQuietly(connection);
+            return;
         }
 
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
-        }
+        ConnectedThread connectedThread = new ConnectedThread(connection);
+        links.put(address, connectedThread);
+        // CONNECTED before the link is visible, so whoever sees the link sees the state too.
+        state.moveTo(ConnectionState.CONNECTED);
+        node.linkUp(connectedThread.mesh);
+        connectedThread.metrics.onConnected(System.nanoTime());
+        connectedThread.start();
 
-        if (acceptThread != null) {
-            acceptThread.cancel();
-            acceptThread = null;
+        knownPeers.onConnected(address, System.currentTimeMillis());
+        if (racing.remove(address)) {
+            cancelRace();
         }
 
-        connectedThread = new ConnectedThread(socket);
-        connectedThread.start();
-
-        onDeviceConnected.accept(device);
-        setState(STATE_CONNECTED);
+        onPeerConnected.accept(connection);
     }
 
     public synchronized void stop() {
         Log.d(TAG, "stop");
 
-        if (connectThread != null) {
+        for (ConnectThread connectThread : connectThreads.values()) {
             connectThread.cancel();
-            connectThread = null;
         }
+        connectThreads.clear();
 
-        if (connectedThread != null) {
+        for (ConnectedThread connectedThread : links.values()) {
             connectedThread.cancel();
-            connectedThread = null;
+            node.linkDown(connectedThread.mesh);
         }
+        links.clear();
 
         if (acceptThread != null) {
             acceptThread.cancel();
             acceptThread = null;
         }
 
-        setState(STATE_NONE);
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+            reconnectTask = null;
+        }
+        racing.clear();
+        transfers.close();
+
+        state.moveTo(ConnectionState.NONE);
+    }
+
+    /**
+     * Sends a file to a directly linked peer in the background, interleaved with chat.
+     * The future completes once the peer has stored all of it; a dropped link resumes
+     * where it stopped on the next connection to the same peer.
+     */
+    public CompletableFuture<Void> sendFile(String address, File file) {
+        return transfers.send(address, file, node.newMessageId());
+    }
+
+    /** Accepts files from peers into {@code directory}; until set, offers are refused. */
+    public void setIncomingFileDirectory(File directory) {
+        transfers.setIncomingDirectory(directory);
+    }
+
+    /** Called with the sender's address and the stored file, on the link's read thread. */
+    public void setOnFileReceived(BiConsumer<String, File> onFileReceived) {
+        transfers.setOnFileReceived(onFileReceived);
+    }
+
+    private synchronized OutboundQueue fileOutboundFor(String address) {
+        ConnectedThread link = links.get(address);
+        return link != null && link.peerTakesFiles ? link.outbound : null;
+    }
+
+    public CompletableFuture<Void> write(byte[] out) {
+        return write(FrameCodec.TYPE_CHAT, out);
+    }
+
+    public CompletableFuture<Void> write(CharSequence text) {
+        return write(FrameCodec.TYPE_CHAT, text);
+    }
+
+    /**
+     * Like {@link #write(byte, byte[])}, but encodes {@code text} as UTF-8 straight behind
+     * the mesh header in a reused scratch buffer, with no intermediate byte array. Text
+     * beyond the largest frame is cut off.
+     */
+    public CompletableFuture<Void> write(byte type, CharSequence text) {
+        long messageId = node.newMessageId();
+        CompletableFuture<Void> result;
+        byte[] sent;
+        synchronized (sendText) {
+            int length = sendText.encode(text, sendScratch, MeshPacket.HEADER_SIZE,
+                    sendScratch.length - MeshPacket.HEADER_SIZE);
+            MeshPacket.writeHeader(messageId, MeshPacket.DEFAULT_TTL, System.currentTimeMillis(), sendScratch, 0);
+            result = node.originate(type, sendScratch, 0, MeshPacket.HEADER_SIZE + length);
+            sent = keepSent(MeshPacket.HEADER_SIZE + length);
+        }
+        reportSent(type, sent, text);
+        return result;
+    }
+
+    /**
+     * Sends an SOS tagged with where it was sent from and a severity from
+     * {@link SosAlert#SEVERITY_MIN} to {@link SosAlert#SEVERITY_MAX}, which receivers
+     * index to triage many alerts.
+     */
+    public CompletableFuture<Void> writeSos(double latitude, double longitude, int severity, CharSequence text) {
+        long messageId = node.newMessageId();
+        int bodyOffset = MeshPacket.HEADER_SIZE + SosAlert.GEOTAG_SIZE;
+        CompletableFuture<Void> result;
+        byte[] sent;
+        synchronized (sendText) {
+            SosAlert.writeGeotag(latitude, longitude, severity, sendScratch, MeshPacket.HEADER_SIZE);
+            int length = sendText.encode(text, sendScratch, bodyOffset, sendScratch.length - bodyOffset);
+            MeshPacket.writeHeader(messageId, MeshPacket.DEFAULT_TTL, System.currentTimeMillis(), sendScratch, 0);
+            result = node.originate(FrameCodec.TYPE_SOS, sendScratch, 0, bodyOffset + length);
+            sent = keepSent(bodyOffset + length);
+        }
+        reportSent(FrameCodec.TYPE_SOS, sent, text);
+        return result;
+    }
+
+    /** Geotagged SOS alerts reported within {@link MeshNode#SYNC_HORIZON_SECONDS}, one per sender. */
+    public SosIndex getSosAlerts() {
+        return sosAlerts;
+    }
+
+    /**
+     * Originates a new mesh message and queues it on every open link. Returns at once;
+     * the future completes when every linked peer has acknowledged the message (or, for
+     * peers without reliable delivery, when it has been written), or fails with the
+     * first link error. A link that drops before acknowledging resends on reconnect.
+     */
+    public CompletableFuture<Void> write(byte type, byte[] body) {
+        long messageId = node.newMessageId();
+        byte[] packet = MeshPacket.encode(messageId, MeshPacket.DEFAULT_TTL, System.currentTimeMillis(), body);
+        CompletableFuture<Void> result = node.originate(type, packet, 0, packet.length);
+        reportSent(type, packet, new String(body, StandardCharsets.UTF_8));
+        return result;
     }
 
-    public void write(byte[] out) {
-        ConnectedThread r;
-        synchronized (this) {
-            if (state != STATE_CONNECTED) return;
-            r = connectedThread;
+    /**
+     * Sends a text message to one node only. It goes to the neighbour on the route to
+     * {@code destination}, and each relay does the same; a node with no route floods it
+     * to its other links instead, and the first node that knows a route narrows it again.
+     */
+    public CompletableFuture<Void> sendTo(int destination, CharSequence text) {
+        long messageId = node.newMessageId();
+        CompletableFuture<Void> result;
+        byte[] sent;
+        synchronized (sendText) {
+            int length = sendText.encode(text, sendScratch, MeshNode.DIRECT_HEADER_SIZE,
+                    sendScratch.length - MeshNode.DIRECT_HEADER_SIZE);
+            MeshPacket.writeHeader(messageId, MeshPacket.DEFAULT_TTL, System.currentTimeMillis(), sendScratch, 0);
+            MeshNode.writeInt(sendScratch, MeshPacket.HEADER_SIZE, destination);
+            result = node.originate(FrameCodec.TYPE_DIRECT, sendScratch, 0, MeshNode.DIRECT_HEADER_SIZE + length);
+            sent = keepSent(MeshNode.DIRECT_HEADER_SIZE + length);
         }
-        r.write(out);
+        reportSent(FrameCodec.TYPE_DIRECT, sent, text);
+        return result;
     }
 
-    private void connectionFailed() {
-        setState(STATE_LISTEN);
-        onDeviceDisconnected.run();
-        BluetoothChatService.this.start();
+    /** A copy of the packet in the send scratch buffer, if anyone is told about sent messages. */
+    private byte[] keepSent(int length) {
+        return onMessageSent != null ? Arrays.copyOf(sendScratch, length) : null;
     }
 
-    private void connectionLost() {
-        setState(STATE_LISTEN);
-        onDeviceDisconnected.run();
-        BluetoothChatService.this.start();
+    private void reportSent(byte type, byte[] packet, CharSequence text) {
+        Consumer<ChatMessage> listener = onMessageSent;
+        if (listener != null && packet != null) {
+            listener.accept(ChatMessage.sent(type, packet, text.toString()));
+        }
     }
 
-    private synchronized void setState(int state) {
-        Log.d(TAG, "setState() " + this.state + " -> " + state);
-        this.state = state;
+    /** True if a live route to {@code node} is known. */
+    public boolean hasRouteTo(int node) {
+        return this.node.hasRouteTo(node);
     }
 
-    public synchronized boolean isConnected() {
-        return state == STATE_CONNECTED;
+    /** Nothing older than the sync horizon can arrive again, so its alerts are done with. */
+    private void expireSosAlerts() {
+        sosAlerts.removeOlderThan(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(MeshNode.SYNC_HORIZON_SECONDS));
+    }
+
+    private synchronized ReliableChannel channelFor(String address) {
+        ReliableChannel channel = channels.get(address);
+        if (channel == null) {
+            channel = new ReliableChannel(RELIABLE_WINDOW, RELIABLE_BACKLOG);
+            channels.put(address, channel);
+        }
+        return channel;
+    }
+
+    private void pingLinks() {
+        for (MeshLink link : node.links()) {
+            link.sendPing();
+        }
+    }
+
+    public int getNodeId() {
+        return node.getNodeId();
+    }
+
+    private synchronized void connectionFailed(String address, Transport.Connection connection) {
+        if (connectThreads.remove(address) == null) {
+            return;
+        }
+        metrics.link(address).onConnectFailed();
+        racing.remove(address);
+        knownPeers.onFailed(address, System.currentTimeMillis());
+        if (links.isEmpty()) {
+            state.moveTo(connectThreads.isEmpty() ? ConnectionState.LISTEN : ConnectionState.CONNECTING);
+        }
+        if (connection != null) {
+            onPeerDisconnected.accept(connection);
+        }
+        start();
+        scheduleReconnect();
+    }
+
+    private synchronized void connectionLost(ConnectedThread link) {
+        String address = link.connection.getAddress();
+        if (links.get(address) != link) {
+            return;
+        }
+        links.remove(address);
+        node.linkDown(link.mesh);
+        link.metrics.onDisconnected(System.nanoTime());
+        if (links.isEmpty()) {
+            state.moveTo(connectThreads.isEmpty() ? ConnectionState.LISTEN : ConnectionState.CONNECTING);
+        }
+        knownPeers.onLost(address, System.currentTimeMillis());
+        onPeerDisconnected.accept(link.connection);
+        start();
+        scheduleReconnect();
+    }
+
+    public synchronized boolean isLinkedOrConnecting(String address) {
+        return links.containsKey(address) || connectThreads.containsKey(address);
+    }
+
+    /** Arms the reconnect timer for the earliest due known peer, unless it is already armed earlier. */
+    private synchronized void scheduleReconnect() {
+        if (scheduler == null) {
+            return;
+        }
+        long due = knownPeers.nextAttemptMillis(this::isLinkedOrConnecting);
+        if (due == Long.MAX_VALUE) {
+            return;
+        }
+        if (reconnectTask != null && !reconnectTask.isDone()) {
+            if (reconnectAtMillis <= due) {
+                return;
+            }
+            reconnectTask.cancel(false);
+        }
+        reconnectAtMillis = due;
+        reconnectTask = scheduler.schedule(this::reconnectDuePeers,
+                Math.max(0, due - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Races the best due peers in parallel. The first to connect wins and the rest of the
+     * round is cancelled; losers are retried after a base delay without counting a failure.
+     */
+    private synchronized void reconnectDuePeers() {
+        reconnectTask = null;
+        if (state.get() == ConnectionState.NONE) {
+            return;
+        }
+        int freeSlots = maxLinks - links.size() - connectThreads.size();
+        if (freeSlots <= 0) {
+            // Rescheduled from connectionLost()/connectionFailed() once a slot frees up.
+            return;
+        }
+        List<String> due = knownPeers.due(System.currentTimeMillis(),
+                Math.min(RECONNECT_RACE_WIDTH, freeSlots), this::isLinkedOrConnecting);
+        if (!due.isEmpty()) {
+            Log.d(TAG, "reconnecting to " + due);
+            racing.clear();
+            racing.addAll(due);
+            for (String address : due) {
+                connect(address);
+            }
+        }
+        scheduleReconnect();
+    }
+
+    private void cancelRace() {
+        long now = System.currentTimeMillis();
+        for (String address : racing) {
+            ConnectThread attempt = connectThreads.remove(address);
+            if (attempt != null) {
+                attempt.cancel();
+                knownPeers.onCancelled(address, now);
+            }
+        }
+        racing.clear();
+        scheduleReconnect();
+    }
+
+    private static void closeQuietly(Transport.Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of connection failed", e);
+        }
+    }
+
+    /** One of the {@link ConnectionState} constants; never blocks. */
+    public int getState() {
+        return state.get();
+    }
+
+    /**
+     * Receives every later state change, in order. Listeners run on whichever service
+     * thread made the change and must hand real work off to their own thread.
+     */
+    public void addStateListener(ConnectionState.Listener listener) {
+        state.addListener(listener);
+    }
+
+    public void removeStateListener(ConnectionState.Listener listener) {
+        state.removeListener(listener);
+    }
+
+    public boolean isConnected() {
+        return state.get() == ConnectionState.CONNECTED;
+    }
+
+    public int getLinkCount() {
+        return node.links().length;
+    }
+
+    public synchronized boolean hasFreeLinkSlot() {
+        return getFreeLinkSlots() > 0;
+    }
+
+    public synchronized int getFreeLinkSlots() {
+        return Math.max(0, maxLinks - links.size() - connectThreads.size());
+    }
+
+    public long getTotalBytesIn() {
+        return totalBytesIn.get();
+    }
+
+    public long getTotalBytesOut() {
+        return totalBytesOut.get();
+    }
+
+    /** Per-link counters and state timings; see {@link MetricsRegistry#dump}. */
+    public MetricsRegistry getMetrics() {
+        return metrics;
     }
 
     private class AcceptThread extends Thread {
-        private final BluetoothServerSocket serverSocket;
+        private final Transport.Server server;
 
         public AcceptThread() {
-            BluetoothServerSocket tmp = null;
+            Transport.Server tmp = null;
             try {
-                tmp = bluetoothAdapter.listenUsingRfcommWithServiceRecord(SERVICE_NAME, SERVICE_UUID);
+                tmp = transport.listen();
             } catch (IOException e) {
-                Log.e(TAG, "Socket Type: listen() failed", e);
+                Log.e(TAG, "listen() failed", e);
             }
-            serverSocket = tmp;
+            server = tmp;
         }
 
         public void run() {
-            Log.d(TAG, "Socket Type: BEGIN acceptThread" + this);
+            Log.d(TAG, "BEGIN acceptThread" + this);
             setName("AcceptThread");
 
-            BluetoothSocket socket;
+            Transport.Connection connection;
 
-            while (state != STATE_CONNECTED) {
+            while (server != null && state.get() != ConnectionState.NONE) {
                 try {
-                    socket = serverSocket.accept();
+                    connection = server.accept();
                 } catch (IOException e) {
-                    Log.e(TAG, "Socket Type: accept() failed", e);
+                    Log.e(TAG, "accept() failed", e);
                     break;
                 }
 
-                if (socket != null) {
+                if (connection != null) {
                     synchronized (BluetoothChatService.this) {
-                        switch (state) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                connected(socket, socket.getRemoteDevice());
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                try {
-                                    socket.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Could not close unwanted socket", e);
-                                }
-                                break;
+                        if (state.get() == ConnectionState.NONE) {
+                            closeQuietly(connection);
+                        } else {
+                            connected(connection);
                         }
                     }
                 }
             }
+
+            synchronized (BluetoothChatService.this) {
+                if (acceptThread == this) {
+                    acceptThread = null;
+                }
+            }
             Log.i(TAG, "END acceptThread");
         }
 
         public void cancel() {
-            Log.d(TAG, "Socket Type: cancel " + this);
+            Log.d(TAG, "cancel " + this);
+            if (server == null) {
+                return;
+            }
             try {
-                serverSocket.close();
+                server.close();
             } catch (IOException e) {
-                Log.e(TAG, "Socket Type: close() of server failed", e);
+                Log.e(TAG, "close() of server failed", e);
             }
         }
     }
 
     private class ConnectThread extends Thread {
-        private final BluetoothSocket socket;
-        private final BluetoothDevice device;
-
-        public ConnectThread(BluetoothDevice device) {
-            this.device = device;
-            BluetoothSocket tmp = null;
+        private final String address;
+        private volatile Transport.Connection connection;
+        private volatile boolean cancelled;
 
-            try {
-                tmp = device.createRfcommSocketToServiceRecord(SERVICE_UUID);
-            } catch (IOException e) {
-                Log.e(TAG, "Socket Type: create() failed", e);
-            }
-            socket = tmp;
+        public ConnectThread(String address) {
+            this.address = address;
         }
 
         public void run() {
             Log.i(TAG, "BEGIN connectThread");
-            setName("ConnectThread");
-
-            bluetoothAdapter.cancelDiscovery();
+            setName("ConnectThread-" + address);
 
             try {
-                socket.connect();
+                connection = transport.open(address);
+                if (cancelled) {
+                    throw new IOException("connect cancelled");
+                }
+                connection.connect();
             } catch (IOException e) {
-                try {
-                    socket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() socket during connection failure", e2);
+                Log.d(TAG, "connect to " + address + " failed", e);
+                if (connection != null) {
+                    closeQuietly(connection);
                 }
-                connectionFailed();
+                connectionFailed(address, connection);
                 return;
             }
 
-            synchronized (BluetoothChatService.this) {
-                connectThread = null;
-            }
-
-            connected(socket, device);
+            connected(connection);
         }
 
         public void cancel() {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
+            cancelled = true;
+            Transport.Connection c = connection;
+            if (c != null) {
+                closeQuietly(c);
             }
         }
     }
 
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket socket;
+    /**
+     * A message new to this node, on the read thread of the link it came in on. DIRECT
+     * ones are addressed to us and show as chat from their sender.
+     */
+    private void onMessage(MeshLink link, byte type, byte[] buffer, int offset, int length) {
+        int sender = MeshPacket.originOf(MeshPacket.readMessageId(buffer, offset));
+        long timestamp = MeshPacket.readTimestampMillis(buffer, offset);
+        // The packet goes with the message, for the journal to hand back to restore().
+        byte[] packet = Arrays.copyOfRange(buffer, offset, offset + length);
+        if (type == FrameCodec.TYPE_DIRECT) {
+            onMessageReceived.accept(ChatMessage.received(type, packet,
+                    link.text.decode(buffer, offset + MeshNode.DIRECT_HEADER_SIZE,
+                            length - MeshNode.DIRECT_HEADER_SIZE).toString(), null));
+            return;
+        }
+        int body = offset + MeshPacket.HEADER_SIZE;
+        int bodyLength = length - MeshPacket.HEADER_SIZE;
+        boolean geotagged = type == FrameCodec.TYPE_SOS && SosAlert.hasGeotag(buffer, body, bodyLength);
+        int textOffset = geotagged ? body + SosAlert.GEOTAG_SIZE : body;
+        String message = link.text.decode(buffer, textOffset, body + bodyLength - textOffset).toString();
+        // The alert as this report left it travels with the message: by the time the
+        // consumer looks, later reports from the same sender may already be merged in.
+        SosAlert alert = geotagged
+                ? sosAlerts.report(sender, SosAlert.readLatE7(buffer, body), SosAlert.readLonE7(buffer, body),
+                        SosAlert.readSeverity(buffer, body), message, timestamp)
+                : null;
+        onMessageReceived.accept(ChatMessage.received(type, packet, message, alert));
+    }
+
+    /** Carries one link: reads into its {@link MeshLink} and runs the writer that drains it. */
+    private class ConnectedThread extends Thread implements MeshLink.Host {
+        private final Transport.Connection connection;
         private final InputStream inStream;
         private final OutputStream outStream;
-
-        public ConnectedThread(BluetoothSocket socket) {
-            Log.d(TAG, "create ConnectedThread");
-            this.socket = socket;
+        private final OutboundQueue outbound = new OutboundQueue(OUTBOUND_LANE_CAPACITY);
+        private final LinkWriter writer;
+        private final Thread writerThread;
+        private final LinkMetrics metrics;
+        private final MeshLink mesh;
+        private volatile boolean peerTakesFiles;
+
+        public ConnectedThread(Transport.Connection connection) {
+            Log.d(TAG, "create ConnectedThread for " + connection.getAddress());
+            this.connection = connection;
+            this.metrics = BluetoothChatService.this.metrics.link(connection.getAddress());
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
             try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                tmpIn = connection.getInputStream();
+                tmpOut = connection.getOutputStream();
             } catch (IOException e) {
                 Log.e(TAG, "temp sockets not created", e);
             }
 
             inStream = tmpIn;
             outStream = tmpOut;
+            writer = new LinkWriter(outbound, outStream, totalBytesOut,
+                    e -> {
+                        Log.e(TAG, "Exception during write", e);
+                        cancel();
+                    }, maxBatchBytes, lingerNanos);
+            writer.setMetrics(metrics);
+            RateLimiter limiter = rateLimiting ? new RateLimiter() : null;
+            if (limiter != null) {
+                outbound.setRateLimiter(limiter);
+                writer.setRateLimiter(limiter);
+            }
+            writerThread = new Thread(writer);
+            PayloadCompressor compressor = compressionEnabled ? new PayloadCompressor(compressionDictionary) : null;
+            mesh = new MeshLink(node, connection.getAddress(), outbound, channelFor(connection.getAddress()),
+                    limiter, compressor, metrics, this);
+            mesh.start();
         }
 
         public void run() {
-            Log.i(TAG, "BEGIN connectedThread");
-            byte[] buffer = new byte[1024];
+            Log.i(TAG, "BEGIN connectedThread " + connection.getAddress());
+            setName("ConnectedThread-" + connection.getAddress());
+            writerThread.setName("WriterThread-" + connection.getAddress());
+            writerThread.start();
+            byte[] buffer = new byte[4096];
             int bytes;
 
             while (true) {
                 try {
                     bytes = inStream.read(buffer);
-                    String receivedMessage = new String(buffer, 0, bytes);
-                    onMessageReceived.accept(receivedMessage);
+                    if (bytes < 0) {
+                        throw new EOFException("stream closed");
+                    }
+                    totalBytesIn.addAndGet(bytes);
+                    metrics.bytesIn.add(bytes);
+                    mesh.receive(buffer, 0, bytes);
                 } catch (IOException e) {
                     Log.d(TAG, "disconnected", e);
-                    connectionLost();
+                    mesh.close(e);
+                    connectionLost(this);
                     break;
                 }
             }
         }
 
-        public void write(byte[] buffer) {
-            try {
-                outStream.write(buffer);
-                outStream.flush();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
-            }
+        @Override
+        public void onCompressionAgreed(PayloadCompressor compressor) {
+            writer.setCompressor(compressor);
+        }
+
+        @Override
+        public void onPeerTakesFiles() {
+            peerTakesFiles = true;
+            transfers.onLinkUp(connection.getAddress(), outbound);
+        }
+
+        @Override
+        public void onFileFrame(byte type, byte[] buffer, int offset, int length) throws IOException {
+            transfers.onFrame(connection.getAddress(), outbound, type, buffer, offset, length);
         }
 
         public void cancel() {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
-            }
+            outbound.close(new IOException("Link closed"));
+            closeQuietly(connection);
         }
     }
-}
\ No newline at end of file
+}
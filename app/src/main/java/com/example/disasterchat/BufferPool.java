@@ -0,0 +1,37 @@
+package com.example.disasterchat;
+
+import java.util.ArrayDeque;
+
+/**
+ * Reuses fixed-size byte arrays, so streaming a file costs a handful of buffers instead
+ * of one allocation per chunk. At most {@code maxPooled} idle buffers are kept.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque<byte[]> free = new ArrayDeque<>();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public synchronized byte[] acquire() {
+        byte[] buffer = free.pollFirst();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+
+    public synchronized void release(byte[] buffer) {
+        if (buffer.length == bufferSize && free.size() < maxPooled) {
+            free.addFirst(buffer);
+        }
+    }
+
+    synchronized int idleCount() {
+        return free.size();
+    }
+}
@@ -0,0 +1,443 @@
+package com.example.disasterchat;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Point-to-point file transfer to a directly linked peer, chunk by chunk.
+ *
+ * <pre>
+ * FILE_OFFER [u64 id][u64 size][u32 chunk size][name, UTF-8]
+ * FILE_CHUNK [u64 id][u32 index][u32 crc32][data]
+ * FILE_ACK   [u64 id][u32 next index][u8 flags]
+ * </pre>
+ *
+ * Chunks travel on {@link OutboundQueue#LANE_BULK}, so chat and SOS frames are written
+ * ahead of them, and at most {@link #WINDOW} chunks are outstanding. The file is read and
+ * written through {@link FileChannel} with pooled buffers; nothing holds the whole file.
+ * The receiver appends to a {@code .part} file and acks the next chunk it needs, so after
+ * a disconnect the sender re-offers and resumes from there. A chunk with a bad checksum,
+ * or out of order, is answered with {@link #ACK_RESEND} and the sender goes back to it;
+ * one whose length is not what the offer's size and chunk size call for ends the transfer
+ * with {@link #ACK_REJECT}. Chunks are checked on the link's read thread but written on a
+ * separate writer, and acked once they are on disk.
+ */
+public class BulkTransfers {
+    private static final String TAG = "BulkTransfers";
+
+    public static final int CHUNK_SIZE = 4096;
+    static final int CHUNK_HEADER = 16;
+    static final int WINDOW = 16;
+    static final int ACK_RESEND = 0x01;
+    static final int ACK_REJECT = 0x02;
+
+    /** Where to queue frames for a peer; null while it is not linked or can't take files. */
+    public interface Links {
+        OutboundQueue outboundFor(String address);
+    }
+
+    private static final class Outgoing {
+        final long id;
+        final String address;
+        final String name;
+        final FileChannel file;
+        final long size;
+        final int chunkCount;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        int acked;
+        int nextToSend;
+
+        Outgoing(long id, String address, String name, FileChannel file, long size) {
+            this.id = id;
+            this.address = address;
+            this.name = name;
+            this.file = file;
+            this.size = size;
+            this.chunkCount = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        }
+    }
+
+    private static final class Incoming {
+        final String name;
+        final File part;
+        final FileChannel file;
+        final long size;
+        final int chunkCount;
+        final int chunkSize;
+        /** Next chunk to accept; chunks before it are on disk or queued for the writer. */
+        int next;
+        boolean awaitingResend;
+
+        Incoming(String name, File part, FileChannel file, long size, int chunkSize) {
+            this.name = name;
+            this.part = part;
+            this.file = file;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+        }
+    }
+
+    private final Links links;
+    private final Executor writer;
+    private final BufferPool pool = new BufferPool(FrameCodec.HEADER_SIZE + CHUNK_HEADER + CHUNK_SIZE, WINDOW * 2);
+    private final Map<Long, Outgoing> outgoing = new HashMap<>();
+    private final Map<Long, Incoming> incoming = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+    private File incomingDirectory;
+    private BiConsumer<String, File> onFileReceived;
+
+    public BulkTransfers(Links links) {
+        this(links, Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "BulkWriter");
+            t.setDaemon(true);
+            return t;
+        }));
+    }
+
+    /** {@code writer} stores received chunks, one at a time and in order. */
+    public BulkTransfers(Links links, Executor writer) {
+        this.links = links;
+        this.writer = writer;
+    }
+
+    /** Files from peers are assembled here; without one, offers are rejected. */
+    public synchronized void setIncomingDirectory(File directory) {
+        this.incomingDirectory = directory;
+    }
+
+    public synchronized void setOnFileReceived(BiConsumer<String, File> onFileReceived) {
+        this.onFileReceived = onFileReceived;
+    }
+
+    /**
+     * Starts sending {@code file} to {@code address}. The future completes once the peer
+     * has stored every chunk; it survives disconnects and resumes on the next link.
+     */
+    public synchronized CompletableFuture<Void> send(String address, File file, long id) {
+        Outgoing out;
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            out = new Outgoing(id, address, file.getName(), channel, channel.size());
+        } catch (IOException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        outgoing.put(id, out);
+        OutboundQueue link = links.outboundFor(address);
+        if (link != null) {
+            offer(link, out);
+        }
+        return out.result;
+    }
+
+    /** A link that can carry files came up: offer again whatever is unfinished for it. */
+    public synchronized void onLinkUp(String address, OutboundQueue link) {
+        for (Outgoing out : outgoing.values()) {
+            if (out.address.equals(address)) {
+                out.nextToSend = out.acked;
+                offer(link, out);
+            }
+        }
+    }
+
+    public synchronized void onFrame(String address, OutboundQueue link, byte type,
+                                     byte[] buffer, int offset, int length) {
+        if (length < 8) {
+            return;
+        }
+        long id = readLong(buffer, offset);
+        try {
+            dispatch(address, link, type, id, buffer, offset, length);
+        } catch (IOException e) {
+            // A local storage problem ends this transfer, not the link.
+            Log.e(TAG, "Receiving transfer " + Long.toHexString(id) + " failed", e);
+            abandon(id);
+            sendAck(link, id, 0, ACK_REJECT);
+        }
+    }
+
+    private void dispatch(String address, OutboundQueue link, byte type, long id,
+                          byte[] buffer, int offset, int length) throws IOException {
+        switch (type) {
+            case FrameCodec.TYPE_FILE_OFFER:
+                if (length >= 20) {
+                    onOffer(address, link, id, readLong(buffer, offset + 8), readInt(buffer, offset + 16),
+                            new String(buffer, offset + 20, length - 20, StandardCharsets.UTF_8));
+                }
+                break;
+            case FrameCodec.TYPE_FILE_CHUNK:
+                if (length >= CHUNK_HEADER) {
+                    onChunk(address, link, id, readInt(buffer, offset + 8), readInt(buffer, offset + 12),
+                            buffer, offset + CHUNK_HEADER, length - CHUNK_HEADER);
+                }
+                break;
+            case FrameCodec.TYPE_FILE_ACK:
+                if (length >= 13) {
+                    onAck(link, id, readInt(buffer, offset + 8), buffer[offset + 12]);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void offer(OutboundQueue link, Outgoing out) {
+        byte[] name = out.name.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[20 + name.length];
+        writeLong(payload, 0, out.id);
+        writeLong(payload, 8, out.size);
+        writeInt(payload, 16, CHUNK_SIZE);
+        System.arraycopy(name, 0, payload, 20, name.length);
+        link.offer(OutboundQueue.LANE_CONTROL, FrameCodec.encode(FrameCodec.TYPE_FILE_OFFER, payload));
+    }
+
+    private void onAck(OutboundQueue link, long id, int next, int flags) {
+        Outgoing out = outgoing.get(id);
+        if (out == null) {
+            return;
+        }
+        if ((flags & ACK_REJECT) != 0) {
+            finish(out, new IOException("Peer refused " + out.name));
+            return;
+        }
+        if (next > out.acked) {
+            out.acked = Math.min(next, out.chunkCount);
+        }
+        if ((flags & ACK_RESEND) != 0 || out.nextToSend < out.acked) {
+            out.nextToSend = out.acked;
+        }
+        if (out.acked == out.chunkCount) {
+            finish(out, null);
+            return;
+        }
+        try {
+            while (out.nextToSend < out.chunkCount && out.nextToSend - out.acked < WINDOW) {
+                sendChunk(link, out, out.nextToSend++);
+            }
+        } catch (IOException e) {
+            finish(out, e);
+        }
+    }
+
+    private void sendChunk(OutboundQueue link, Outgoing out, int index) throws IOException {
+        long position = (long) index * CHUNK_SIZE;
+        int length = (int) Math.min(CHUNK_SIZE, out.size - position);
+        int frameLength = FrameCodec.HEADER_SIZE + CHUNK_HEADER + length;
+        byte[] frame = frameLength == pool.bufferSize() ? pool.acquire() : new byte[frameLength];
+
+        int dataOffset = FrameCodec.HEADER_SIZE + CHUNK_HEADER;
+        ByteBuffer dst = ByteBuffer.wrap(frame, dataOffset, length);
+        while (dst.hasRemaining()) {
+            if (out.file.read(dst, position + dst.position() - dataOffset) < 0) {
+                pool.release(frame);
+                throw new IOException(out.name + " shrank while sending");
+            }
+        }
+        crc.reset();
+        crc.update(frame, dataOffset, length);
+
+        FrameCodec.writeHeader(FrameCodec.TYPE_FILE_CHUNK, (byte) 0, CHUNK_HEADER + length, frame, 0);
+        writeLong(frame, FrameCodec.HEADER_SIZE, out.id);
+        writeInt(frame, FrameCodec.HEADER_SIZE + 8, index);
+        writeInt(frame, FrameCodec.HEADER_SIZE + 12, (int) crc.getValue());
+        // A chunk that never makes it out is resent after the next ack or reconnect.
+        link.offer(OutboundQueue.LANE_BULK, frame).whenComplete((v, e) -> pool.release(frame));
+    }
+
+    private void finish(Outgoing out, IOException failure) {
+        outgoing.remove(out.id);
+        try {
+            out.file.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close() of " + out.name + " failed", e);
+        }
+        if (failure != null) {
+            out.result.completeExceptionally(failure);
+        } else {
+            out.result.complete(null);
+        }
+    }
+
+    private void onOffer(String address, OutboundQueue link, long id, long size, int chunkSize, String name)
+            throws IOException {
+        Incoming in = incoming.get(id);
+        if (in == null) {
+            if (incomingDirectory == null || chunkSize <= 0 || chunkSize > FrameCodec.MAX_PAYLOAD - CHUNK_HEADER
+                    || size < 0) {
+                sendAck(link, id, 0, ACK_REJECT);
+                return;
+            }
+            File part = new File(incomingDirectory, Long.toHexString(id) + ".part");
+            FileChannel channel = FileChannel.open(part.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            in = new Incoming(safeName(name), part, channel, size, chunkSize);
+            // Resume from the last whole chunk already on disk.
+            in.next = (int) Math.min(channel.size() / chunkSize, in.chunkCount);
+            channel.truncate((long) in.next * chunkSize);
+            incoming.put(id, in);
+            Log.d(TAG, "receiving " + in.name + " from " + address + ", resuming at chunk " + in.next);
+            if (in.next == in.chunkCount) {
+                sendAck(link, id, in.next, 0);
+                complete(address, id, in);
+                return;
+            }
+        }
+        // A transfer already under way completes from the writer once its last chunk is stored.
+        in.awaitingResend = false;
+        sendAck(link, id, in.next, 0);
+    }
+
+    private void onChunk(String address, OutboundQueue link, long id, int index, int checksum,
+                         byte[] buffer, int offset, int length) {
+        Incoming in = incoming.get(id);
+        if (in == null) {
+            return;
+        }
+        long position = (long) index * in.chunkSize;
+        if (index == in.next && length != Math.min(in.chunkSize, in.size - position)) {
+            Log.w(TAG, "Chunk " + index + " of " + in.name + " has " + length + " bytes; rejecting");
+            abandon(id);
+            sendAck(link, id, 0, ACK_REJECT);
+            return;
+        }
+        crc.reset();
+        crc.update(buffer, offset, length);
+        if (index != in.next || (int) crc.getValue() != checksum) {
+            if (!in.awaitingResend) {
+                in.awaitingResend = true;
+                sendAck(link, id, in.next, ACK_RESEND);
+            }
+            return;
+        }
+        in.next++;
+        in.awaitingResend = false;
+        // The read buffer is reused for the next frame, so the writer gets its own copy.
+        byte[] data = length <= pool.bufferSize() ? pool.acquire() : new byte[length];
+        System.arraycopy(buffer, offset, data, 0, length);
+        writer.execute(() -> store(address, link, id, in, index, data, length));
+    }
+
+    /** Runs on {@link #writer}: puts a checked chunk on disk, then acks it. */
+    private void store(String address, OutboundQueue link, long id, Incoming in, int index,
+                       byte[] data, int length) {
+        IOException failure = null;
+        try {
+            ByteBuffer src = ByteBuffer.wrap(data, 0, length);
+            long position = (long) index * in.chunkSize;
+            while (src.hasRemaining()) {
+                in.file.write(src, position + src.position());
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            pool.release(data);
+        }
+        synchronized (this) {
+            if (incoming.get(id) != in) {
+                // Abandoned or closed meanwhile; whatever reached the .part file is kept.
+                return;
+            }
+            try {
+                if (failure != null) {
+                    throw failure;
+                }
+                sendAck(link, id, index + 1, 0);
+                if (index + 1 == in.chunkCount) {
+                    complete(address, id, in);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Storing transfer " + Long.toHexString(id) + " failed", e);
+                abandon(id);
+                sendAck(link, id, 0, ACK_REJECT);
+            }
+        }
+    }
+
+    private void complete(String address, long id, Incoming in) throws IOException {
+        incoming.remove(id);
+        in.file.force(true);
+        in.file.close();
+        File target = new File(incomingDirectory, in.name);
+        if (target.exists()) {
+            target = new File(incomingDirectory, Long.toHexString(id) + "-" + in.name);
+        }
+        if (!in.part.renameTo(target)) {
+            throw new IOException("Could not move " + in.part + " to " + target);
+        }
+        if (onFileReceived != null) {
+            onFileReceived.accept(address, target);
+        }
+    }
+
+    private static void sendAck(OutboundQueue link, long id, int next, int flags) {
+        byte[] ack = new byte[13];
+        writeLong(ack, 0, id);
+        writeInt(ack, 8, next);
+        ack[12] = (byte) flags;
+        // The sender has no timer and waits for this ack, so a lane full of route or pong
+        // frames must not drop it. At most one ack per chunk in the sender's window.
+        link.offerUnbounded(OutboundQueue.LANE_CONTROL, FrameCodec.encode(FrameCodec.TYPE_FILE_ACK, ack));
+    }
+
+    private static String safeName(String name) {
+        String base = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        return base.isEmpty() || base.equals(".") || base.equals("..") ? "file" : base;
+    }
+
+    private void abandon(long id) {
+        Incoming in = incoming.remove(id);
+        if (in != null) {
+            try {
+                in.file.close();
+            } catch (IOException e) {
+                Log.w(TAG, "close() of " + in.part + " failed", e);
+            }
+        }
+    }
+
+    /** Closes open files; unfinished sends fail, partial downloads stay on disk for resume. */
+    public synchronized void close() {
+        for (Long id : new ArrayList<>(incoming.keySet())) {
+            abandon(id);
+        }
+        for (Outgoing out : new ArrayList<>(outgoing.values())) {
+            finish(out, new IOException("Transfers closed"));
+        }
+    }
+
+    private static long readLong(byte[] b, int off) {
+        return ((long) readInt(b, off) << 32) | (readInt(b, off + 4) & 0xFFFFFFFFL);
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return ReliableChannel.readInt(b, off);
+    }
+
+    private static void writeLong(byte[] b, int off, long v) {
+        writeInt(b, off, (int) (v >>> 32));
+        writeInt(b, off + 4, (int) v);
+    }
+
+    private static void writeInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+}
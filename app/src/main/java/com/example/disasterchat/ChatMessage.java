@@ -0,0 +1,184 @@
+package com.example.disasterchat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * One chat-list entry, classified once where it is created or decoded. The display text
+ * is built up front so binding a row is a plain lookup.
+ */
+public final class ChatMessage {
+    public static final int KIND_SYSTEM = 0;
+    public static final int KIND_SENT = 1;
+    public static final int KIND_RECEIVED = 2;
+    public static final int KIND_SOS_SENT = 3;
+    public static final int KIND_SOS_RECEIVED = 4;
+    static final int KIND_COUNT = 5;
+
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_SOS = 1;
+
+    private static final byte RECORD_VERSION_TEXT = 1;
+    private static final byte RECORD_VERSION = 2;
+    private static final int RECORD_HEADER = 15;
+    /** Version 2 adds the packet type and length after the version 1 header. */
+    private static final int RECORD_PACKET_HEADER = RECORD_HEADER + 3;
+
+    public final int kind;
+    public final int senderId;
+    public final long timestamp;
+    public final int priority;
+    public final String body;
+    /** Journal position, or -1 if the message is not journaled. */
+    public final long sequence;
+    public final String displayText;
+    /**
+     * For a received geotagged SOS, the sender's alert as it stood right after this report
+     * was merged in; {@code reports == 1} means this was the first. Null otherwise.
+     */
+    public final SosAlert alert;
+    /**
+     * The mesh packet as sent or received, with the frame type it travelled as, so a
+     * restarted node can take back what it had seen. Null for system lines and for
+     * messages journaled before packets were kept.
+     */
+    final byte[] packet;
+    final byte packetType;
+
+    public ChatMessage(int kind, int senderId, long timestamp, int priority, String body, long sequence) {
+        this(kind, senderId, timestamp, priority, body, sequence, null, (byte) 0, null);
+    }
+
+    private ChatMessage(int kind, int senderId, long timestamp, int priority, String body, long sequence,
+                        SosAlert alert, byte packetType, byte[] packet) {
+        this.kind = kind;
+        this.senderId = senderId;
+        this.timestamp = timestamp;
+        this.priority = priority;
+        this.body = body;
+        this.sequence = sequence;
+        this.displayText = render(kind, senderId, body);
+        this.alert = alert;
+        this.packetType = packetType;
+        this.packet = packet;
+    }
+
+    public static ChatMessage system(String text) {
+        return new ChatMessage(KIND_SYSTEM, 0, System.currentTimeMillis(), PRIORITY_NORMAL, text, -1);
+    }
+
+    public static ChatMessage sent(int senderId, boolean sos, String body) {
+        return new ChatMessage(sos ? KIND_SOS_SENT : KIND_SENT, senderId, System.currentTimeMillis(),
+                sos ? PRIORITY_SOS : PRIORITY_NORMAL, body, -1);
+    }
+
+    public static ChatMessage received(byte frameType, int senderId, long timestamp, String body) {
+        return received(frameType, senderId, timestamp, body, null);
+    }
+
+    public static ChatMessage received(byte frameType, int senderId, long timestamp, String body, SosAlert alert) {
+        boolean sos = frameType == FrameCodec.TYPE_SOS;
+        return new ChatMessage(sos ? KIND_SOS_RECEIVED : KIND_RECEIVED, senderId, timestamp,
+                sos ? PRIORITY_SOS : PRIORITY_NORMAL, body, -1, alert, (byte) 0, null);
+    }
+
+    /** A message this node originated as {@code packet}, sent as a {@code packetType} frame. */
+    static ChatMessage sent(byte packetType, byte[] packet, String body) {
+        boolean sos = packetType == FrameCodec.TYPE_SOS;
+        return new ChatMessage(sos ? KIND_SOS_SENT : KIND_SENT, MeshPacket.originOf(MeshPacket.readMessageId(packet, 0)),
+                System.currentTimeMillis(), sos ? PRIORITY_SOS : PRIORITY_NORMAL, body, -1, null, packetType, packet);
+    }
+
+    /** A message that arrived as {@code packet} in a {@code packetType} frame; DIRECT shows as chat. */
+    static ChatMessage received(byte packetType, byte[] packet, String body, SosAlert alert) {
+        boolean sos = packetType == FrameCodec.TYPE_SOS;
+        return new ChatMessage(sos ? KIND_SOS_RECEIVED : KIND_RECEIVED,
+                MeshPacket.originOf(MeshPacket.readMessageId(packet, 0)), MeshPacket.readTimestampMillis(packet, 0),
+                sos ? PRIORITY_SOS : PRIORITY_NORMAL, body, -1, alert, packetType, packet);
+    }
+
+    public ChatMessage withSequence(long sequence) {
+        return new ChatMessage(kind, senderId, timestamp, priority, body, sequence, alert, packetType, packet);
+    }
+
+    /** The mesh message id, or 0 if the packet was not kept. */
+    public long messageId() {
+        return packet != null ? MeshPacket.readMessageId(packet, 0) : 0;
+    }
+
+    public boolean isSos() {
+        return kind == KIND_SOS_SENT || kind == KIND_SOS_RECEIVED;
+    }
+
+    public static String formatNodeId(int nodeId) {
+        return String.format(Locale.US, "%08X", nodeId);
+    }
+
+    private static String render(int kind, int senderId, String body) {
+        switch (kind) {
+            case KIND_SENT:
+                return "Sent: " + body;
+            case KIND_RECEIVED:
+                return "Received (" + formatNodeId(senderId) + "): " + body;
+            case KIND_SOS_SENT:
+                return "🚨 SOS SENT: " + body;
+            case KIND_SOS_RECEIVED:
+                return "🚨 SOS from " + formatNodeId(senderId) + ": " + body;
+            default:
+                return body;
+        }
+    }
+
+    /**
+     * Journal form: [u8 version][u8 kind][u32 sender][u64 timestamp][u8 priority]
+     * [u8 packet type][u16 packet length][packet][utf-8 body]; the packet length is 0
+     * when there is none.
+     */
+    public byte[] toRecord() {
+        byte[] text = body.getBytes(StandardCharsets.UTF_8);
+        int packetLength = packet != null ? packet.length : 0;
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_PACKET_HEADER + packetLength + text.length)
+                .put(RECORD_VERSION)
+                .put((byte) kind)
+                .putInt(senderId)
+                .putLong(timestamp)
+                .put((byte) priority)
+                .put(packetType)
+                .putShort((short) packetLength);
+        if (packet != null) {
+            buffer.put(packet);
+        }
+        return buffer.put(text).array();
+    }
+
+    public static ChatMessage fromRecord(long sequence, byte[] record) {
+        int version = record.length > 0 ? record[0] : 0;
+        int header = version == RECORD_VERSION ? RECORD_PACKET_HEADER : RECORD_HEADER;
+        if (record.length < header || (version != RECORD_VERSION && version != RECORD_VERSION_TEXT)) {
+            // Early journals stored the rendered line only.
+            return new ChatMessage(KIND_SYSTEM, 0, 0, PRIORITY_NORMAL,
+                    new String(record, StandardCharsets.UTF_8), sequence);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.get();
+        int kind = buffer.get();
+        int senderId = buffer.getInt();
+        long timestamp = buffer.getLong();
+        int priority = buffer.get();
+        byte packetType = 0;
+        byte[] packet = null;
+        if (version == RECORD_VERSION) {
+            packetType = buffer.get();
+            int packetLength = buffer.getShort() & 0xFFFF;
+            if (packetLength >= MeshPacket.HEADER_SIZE && packetLength <= buffer.remaining()) {
+                packet = new byte[packetLength];
+                buffer.get(packet);
+            } else {
+                buffer.position(Math.min(record.length, buffer.position() + packetLength));
+            }
+        }
+        String body = new String(record, buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+        return new ChatMessage(kind, senderId, timestamp, priority, body, sequence, null, packetType, packet);
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.disasterchat;
+
+/**
+ * Where protocol code reads the time, so a simulation can run the same code on virtual
+ * time. Devices use {@link #SYSTEM}.
+ */
+public interface Clock {
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /** Wall-clock time, as stamped on messages and routes. */
+    long currentTimeMillis();
+
+    /** Monotonic time for pacing, round trips and relay shares. */
+    long nanoTime();
+}
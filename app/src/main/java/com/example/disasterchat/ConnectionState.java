@@ -0,0 +1,143 @@
+package com.example.disasterchat;
+
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The service's connection state, changed only by compare-and-set so readers never wait.
+ * The state and the number of transitions so far share one atomic word, which numbers
+ * every transition in the order it took effect. Listeners see transitions in exactly
+ * that order, each starting where the previous one ended, even when several threads
+ * change the state at once.
+ */
+public class ConnectionState {
+    private static final String TAG = "ConnectionState";
+
+    public static final int NONE = 0;
+    public static final int LISTEN = 1;
+    public static final int CONNECTING = 2;
+    public static final int CONNECTED = 3;
+    static final String[] NAMES = {"none", "listen", "connecting", "connected"};
+
+    public static final class Transition {
+        /** 1 for the first transition, then counting up without gaps. */
+        public final long sequence;
+        public final int from;
+        public final int to;
+        public final long nanos;
+
+        Transition(long sequence, int from, int to, long nanos) {
+            this.sequence = sequence;
+            this.from = from;
+            this.to = to;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + sequence + " " + NAMES[from] + " -> " + NAMES[to];
+        }
+    }
+
+    /** Runs on the thread that made a transition; must not block. */
+    public interface Listener {
+        void onTransition(Transition transition);
+    }
+
+    /** Low byte: state; the rest: transitions so far. */
+    private final AtomicLong word = new AtomicLong(NONE);
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ConcurrentSkipListMap<Long, Transition> undelivered = new ConcurrentSkipListMap<>();
+    private final AtomicInteger drainers = new AtomicInteger();
+    // Only touched by the thread currently draining.
+    private long nextToDeliver = 1;
+
+    public int get() {
+        return (int) (word.get() & 0xFF);
+    }
+
+    public long transitionCount() {
+        return word.get() >>> 8;
+    }
+
+    /** Only a service that is running can be connected, so NONE never jumps to CONNECTED. */
+    public static boolean isAllowed(int from, int to) {
+        return from != to && !(from == NONE && to == CONNECTED);
+    }
+
+    /** Moves from {@code expected} to {@code next}; false if the state is not {@code expected}. */
+    public boolean compareAndSet(int expected, int next) {
+        if (!isAllowed(expected, next)) {
+            return false;
+        }
+        while (true) {
+            long current = word.get();
+            if ((int) (current & 0xFF) != expected) {
+                return false;
+            }
+            long sequence = (current >>> 8) + 1;
+            if (word.compareAndSet(current, (sequence << 8) | next)) {
+                publish(new Transition(sequence, expected, next, System.nanoTime()));
+                return true;
+            }
+        }
+    }
+
+    /** Moves to {@code next} from whatever the state is; false if already there or not allowed. */
+    public boolean moveTo(int next) {
+        while (true) {
+            int current = get();
+            if (!isAllowed(current, next)) {
+                return false;
+            }
+            if (compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /** Receives transitions made after this call. */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * A transition is parked under its number and delivered once every earlier one has
+     * been. Whichever thread finds the drain free delivers everything that is ready; a
+     * thread that arrives while another drains leaves its work to that one.
+     */
+    private void publish(Transition transition) {
+        undelivered.put(transition.sequence, transition);
+        if (drainers.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            Transition next;
+            while ((next = undelivered.remove(nextToDeliver)) != null) {
+                nextToDeliver++;
+                for (Listener listener : listeners) {
+                    try {
+                        listener.onTransition(next);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Listener failed on " + next, e);
+                    }
+                }
+            }
+            missed = drainers.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    @Override
+    public String toString() {
+        return NAMES[get()];
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.disasterchat;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-memory "seen" set for mesh message IDs. Two open-addressed generations are kept;
+ * once the current one holds {@code generationSize} IDs the older one is wiped and the
+ * two swap, so between {@code generationSize} and {@code 2 * generationSize} of the most
+ * recent IDs are always remembered.
+ */
+public class DuplicateFilter {
+    private static final long EMPTY = 0L;
+    private static final long ZERO_KEY = 0x9E3779B97F4A7C15L;
+
+    private final int generationSize;
+    private final int mask;
+    private long[] current;
+    private long[] previous;
+    private int currentCount;
+
+    public DuplicateFilter(int generationSize) {
+        if (generationSize < 1) {
+            throw new IllegalArgumentException("generationSize must be positive");
+        }
+        this.generationSize = generationSize;
+        int tableSize = Integer.highestOneBit(generationSize * 2 - 1) << 1;
+        this.mask = tableSize - 1;
+        this.current = new long[tableSize];
+        this.previous = new long[tableSize];
+    }
+
+    /** Records {@code id} and returns true if it had not been seen recently. */
+    public synchronized boolean add(long id) {
+        if (id == EMPTY) {
+            id = ZERO_KEY;
+        }
+        if (contains(previous, id)) {
+            return false;
+        }
+        int slot = slot(id);
+        while (current[slot] != EMPTY) {
+            if (current[slot] == id) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (currentCount == generationSize) {
+            rotate();
+            slot = slot(id);
+            while (current[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+        }
+        current[slot] = id;
+        currentCount++;
+        return true;
+    }
+
+    public synchronized boolean mightContain(long id) {
+        if (id == EMPTY) {
+            id = ZERO_KEY;
+        }
+        return contains(current, id) || contains(previous, id);
+    }
+
+    private boolean contains(long[] table, long id) {
+        int slot = slot(id);
+        while (table[slot] != EMPTY) {
+            if (table[slot] == id) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    private void rotate() {
+        long[] cleared = previous;
+        Arrays.fill(cleared, EMPTY);
+        previous = current;
+        current = cleared;
+        currentCount = 0;
+    }
+
+    private int slot(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
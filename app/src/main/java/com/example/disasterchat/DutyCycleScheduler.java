@@ -0,0 +1,268 @@
+package com.example.disasterchat;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Decides when the radio spends time finding peers: inquiry scans, discoverable windows
+ * and listening for incoming links. An isolated node scans every
+ * {@link #MIN_SCAN_GAP_MS} and always listens. Once linked, each scan doubles the gap to
+ * the next, up to {@link #MAX_SCAN_GAP_MS}; losing a link starts over from the shortest
+ * gap, and the more links were lost lately the lower the ceiling. Discoverable windows
+ * back off the same way: every request raises a system prompt, so after each window the
+ * pause before the next doubles, from {@link #MIN_SCAN_GAP_MS} up to
+ * {@link #MAX_SCAN_GAP_MS}, and a lost link starts it over. While messages are flowing,
+ * scans are put off, since an inquiry slows open links. Low battery stretches every gap,
+ * including the pause between discoverable windows, and, once linked, listens in windows
+ * instead of throughout; charging lifts all of that.
+ *
+ * <p>Radio-on time is estimated from what was granted: a scan keeps the radio busy
+ * throughout, while being discoverable or listening wakes it for an 11.25 ms window
+ * every 1.28 s, the Bluetooth defaults for inquiry and page scans.
+ */
+public class DutyCycleScheduler {
+    /** How long an inquiry scan runs. */
+    public static final long SCAN_MS = 12_000;
+    static final long MIN_SCAN_GAP_MS = 30_000;
+    static final long MAX_SCAN_GAP_MS = 15 * 60_000;
+    static final int ISOLATED_DISCOVERABLE_SECONDS = 300;
+    static final int LINKED_DISCOVERABLE_SECONDS = 120;
+    /** On low battery a linked node listens this long out of every three, or six when critical. */
+    static final long LISTEN_WINDOW_MS = 20_000;
+    /** Plans are looked at again at least this often, to follow battery and traffic. */
+    static final long MAX_CHECK_MS = 60_000;
+    static final int LOW_BATTERY = 30;
+    static final int CRITICAL_BATTERY = 15;
+    /** Traffic, in messages over roughly the last minute, at which linked nodes put off scans. */
+    static final double BUSY_MESSAGES = 10;
+    private static final double TRAFFIC_DECAY_MS = 60_000;
+    private static final double LOSS_DECAY_MS = 10 * 60_000;
+    private static final double SCAN_WINDOW_DUTY = 11.25 / 1280;
+
+    /** What to do now. */
+    public static final class Plan {
+        /** Start an inquiry scan. */
+        public final boolean scan;
+        /** Ask to be discoverable for this long; 0 leaves it as it is. */
+        public final int discoverableSeconds;
+        public final boolean listen;
+        /** When to ask for the next plan, at the latest. */
+        public final long nextCheckMillis;
+
+        Plan(boolean scan, int discoverableSeconds, boolean listen, long nextCheckMillis) {
+            this.scan = scan;
+            this.discoverableSeconds = discoverableSeconds;
+            this.listen = listen;
+            this.nextCheckMillis = nextCheckMillis;
+        }
+    }
+
+    private final LongSupplier clock;
+    private final long startMillis;
+
+    private int links;
+    private int freeSlots = 1;
+    private int batteryPercent = 100;
+    private boolean charging;
+    private double traffic;
+    private double losses;
+    private long decayedAt;
+    private boolean lostSinceDiscoverable;
+
+    private long scanGap = MIN_SCAN_GAP_MS;
+    private long nextScanAt;
+    private long scanStart;
+    private long scanUntil;
+    private long discoverableStart;
+    private long discoverableUntil;
+    private long nextDiscoverableAt;
+    /** Pause after the current discoverable window before asking again, before battery stretch. */
+    private long discoverablePause;
+    /** What {@link #discoverablePause} becomes at the next request. */
+    private long nextDiscoverablePause = MIN_SCAN_GAP_MS;
+    private boolean listening = true;
+
+    private long accruedTo;
+    private double radioOnMillis;
+
+    /** {@code clock} gives the time in milliseconds; scheduling starts from its first reading. */
+    public DutyCycleScheduler(LongSupplier clock) {
+        this.clock = clock;
+        long now = clock.getAsLong();
+        this.startMillis = now;
+        this.decayedAt = now;
+        this.accruedTo = now;
+        this.nextScanAt = now;
+        this.nextDiscoverableAt = now;
+    }
+
+    /** Open links and how many more the service would take. */
+    public synchronized void onLinksChanged(int links, int freeSlots) {
+        long now = clock.getAsLong();
+        decay(now);
+        if (links < this.links) {
+            losses += this.links - links;
+            lostSinceDiscoverable = true;
+            scanGap = MIN_SCAN_GAP_MS;
+            discoverablePause = 0;
+            nextDiscoverablePause = MIN_SCAN_GAP_MS;
+            nextScanAt = Math.min(nextScanAt, Math.max(now, scanUntil));
+        }
+        this.links = links;
+        this.freeSlots = freeSlots;
+    }
+
+    /** A message was sent or received. */
+    public synchronized void onTraffic() {
+        decay(clock.getAsLong());
+        traffic++;
+    }
+
+    public synchronized void setBattery(int percent, boolean charging) {
+        this.batteryPercent = percent;
+        this.charging = charging;
+    }
+
+    /** A scan was started outside the plan, such as by hand; it counts like a planned one. */
+    public synchronized void onScanStarted() {
+        long now = clock.getAsLong();
+        accrue(now);
+        scanStart = now;
+        scanUntil = now + SCAN_MS;
+        nextScanAt = Math.max(nextScanAt, scanUntil + gap());
+    }
+
+    public synchronized void onScanFinished() {
+        long now = clock.getAsLong();
+        accrue(now);
+        scanUntil = Math.min(scanUntil, now);
+    }
+
+    /**
+     * How long discoverability was actually granted for the last request; 0 if it was
+     * refused, after which it is not asked for again until a link is lost or the longest
+     * scan gap has passed.
+     */
+    public synchronized void onDiscoverable(int seconds) {
+        long now = clock.getAsLong();
+        accrue(now);
+        discoverableStart = now;
+        discoverableUntil = now + seconds * 1000L;
+        if (seconds <= 0) {
+            nextDiscoverableAt = now + MAX_SCAN_GAP_MS;
+            lostSinceDiscoverable = false;
+        }
+    }
+
+    public synchronized Plan next() {
+        long now = clock.getAsLong();
+        accrue(now);
+        decay(now);
+        int stretch = stretch();
+        boolean isolated = links == 0;
+
+        boolean scan = false;
+        if (now >= nextScanAt && now >= scanUntil) {
+            if (!isolated && traffic >= BUSY_MESSAGES) {
+                nextScanAt = now + MIN_SCAN_GAP_MS;
+            } else {
+                scan = true;
+                scanStart = now;
+                scanUntil = now + SCAN_MS;
+                nextScanAt = scanUntil + gap();
+                if (!isolated) {
+                    scanGap = Math.min(MAX_SCAN_GAP_MS, scanGap * 2);
+                }
+            }
+        }
+
+        int discoverable = 0;
+        long discoverableAgainAt = discoverableUntil + discoverablePause * stretch;
+        if (now >= discoverableAgainAt && now >= nextDiscoverableAt
+                && (isolated || (lostSinceDiscoverable && stretch < 4))) {
+            discoverable = isolated ? ISOLATED_DISCOVERABLE_SECONDS : LINKED_DISCOVERABLE_SECONDS;
+            discoverableStart = now;
+            discoverableUntil = now + discoverable * 1000L;
+            lostSinceDiscoverable = false;
+            discoverablePause = nextDiscoverablePause;
+            nextDiscoverablePause = Math.min(MAX_SCAN_GAP_MS, nextDiscoverablePause * 2);
+        }
+
+        long nextCheck = Math.min(now + MAX_CHECK_MS, nextScanAt);
+        if (scanUntil > now) {
+            nextCheck = Math.min(nextCheck, scanUntil);
+        }
+        if (discoverableUntil > now) {
+            nextCheck = Math.min(nextCheck, discoverableUntil);
+        } else if (isolated && discoverableAgainAt > now) {
+            nextCheck = Math.min(nextCheck, discoverableAgainAt);
+        }
+        if (freeSlots == 0) {
+            listening = false;
+        } else if (isolated || stretch == 1) {
+            listening = true;
+        } else {
+            long period = LISTEN_WINDOW_MS * 3 * stretch / 2;
+            long phase = (now - startMillis) % period;
+            listening = phase < LISTEN_WINDOW_MS;
+            nextCheck = Math.min(nextCheck, now + (listening ? LISTEN_WINDOW_MS : period) - phase);
+        }
+        return new Plan(scan, discoverable, listening, Math.max(nextCheck, now + 1));
+    }
+
+    /** Estimated time the radio has been on for discovery since the scheduler started. */
+    public synchronized long radioOnMillis() {
+        accrue(clock.getAsLong());
+        return (long) radioOnMillis;
+    }
+
+    /** Share of the time since the scheduler started that the radio was on for discovery. */
+    public synchronized double dutyCycle() {
+        long now = clock.getAsLong();
+        accrue(now);
+        return now == startMillis ? 0 : radioOnMillis / (now - startMillis);
+    }
+
+    /** Gap between scans as things stand. */
+    private long gap() {
+        if (links == 0) {
+            return MIN_SCAN_GAP_MS * stretch();
+        }
+        long ceiling = Math.max(MIN_SCAN_GAP_MS, (long) (MAX_SCAN_GAP_MS / (1 + losses)));
+        return Math.min(scanGap, ceiling) * stretch();
+    }
+
+    /** How much battery stretches gaps and shortens windows. */
+    private int stretch() {
+        if (charging) {
+            return 1;
+        }
+        return batteryPercent <= CRITICAL_BATTERY ? 4 : batteryPercent <= LOW_BATTERY ? 2 : 1;
+    }
+
+    private void decay(long now) {
+        long elapsed = now - decayedAt;
+        if (elapsed > 0) {
+            traffic *= Math.exp(-elapsed / TRAFFIC_DECAY_MS);
+            losses *= Math.exp(-elapsed / LOSS_DECAY_MS);
+            decayedAt = now;
+        }
+    }
+
+    private void accrue(long now) {
+        long from = accruedTo;
+        if (now <= from) {
+            return;
+        }
+        double on = overlap(from, now, scanStart, scanUntil)
+                + overlap(from, now, discoverableStart, discoverableUntil) * SCAN_WINDOW_DUTY;
+        if (listening) {
+            on += (now - from) * SCAN_WINDOW_DUTY;
+        }
+        radioOnMillis += on;
+        accruedTo = now;
+    }
+
+    private static long overlap(long from, long to, long start, long end) {
+        return Math.max(0, Math.min(to, end) - Math.max(from, start));
+    }
+}
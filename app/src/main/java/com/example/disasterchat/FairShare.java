@@ -0,0 +1,40 @@
+package com.example.disasterchat;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Max-min fair admission of relayed frames onto one link, by the neighbour they came
+ * from. Admissions are counted per one-second window. While the link is congested, a
+ * source that already had more than an equal share of the window's admissions is turned
+ * away, so a chatty neighbour cannot crowd out the others; below its share, a source is
+ * always let through.
+ */
+public class FairShare {
+    static final long WINDOW_NANOS = 1_000_000_000L;
+
+    private final Map<String, int[]> counts = new HashMap<>();
+    private int total;
+    private boolean started;
+    private long windowStart;
+
+    public synchronized boolean admit(String source, boolean congested, long nowNanos) {
+        if (!started || nowNanos - windowStart >= WINDOW_NANOS) {
+            started = true;
+            windowStart = nowNanos;
+            counts.clear();
+            total = 0;
+        }
+        int[] count = counts.get(source);
+        if (count == null) {
+            count = new int[1];
+            counts.put(source, count);
+        }
+        if (congested && (long) count[0] * counts.size() > total) {
+            return false;
+        }
+        count[0]++;
+        total++;
+        return true;
+    }
+}
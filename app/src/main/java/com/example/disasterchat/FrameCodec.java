@@ -0,0 +1,74 @@
+package com.example.disasterchat;
+
+import java.io.IOException;
+
+/**
+ * Wire format shared by every link:
+ * [u8 version][u8 type][u8 flags][u16 payload length][payload].
+ */
+public final class FrameCodec {
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 5;
+    public static final int MAX_PAYLOAD = 0xFFFF;
+
+    public static final byte TYPE_CHAT = 1;
+    public static final byte TYPE_SOS = 2;
+    public static final byte TYPE_HELLO = 3;
+    public static final byte TYPE_PING = 4;
+    public static final byte TYPE_PONG = 5;
+    public static final byte TYPE_ACK = 6;
+    public static final byte TYPE_FILE_OFFER = 7;
+    public static final byte TYPE_FILE_CHUNK = 8;
+    public static final byte TYPE_FILE_ACK = 9;
+    public static final byte TYPE_ROUTE = 10;
+    public static final byte TYPE_DIRECT = 11;
+    public static final byte TYPE_SYNC = 12;
+    public static final byte TYPE_SYNC_NEED = 13;
+
+    public static final byte FLAG_COMPRESSED = 0x01;
+    /** Payload starts with a u32 sequence number; see {@link ReliableChannel}. */
+    public static final byte FLAG_SEQUENCED = 0x02;
+
+    private FrameCodec() {
+    }
+
+    public static byte[] encode(byte type, byte[] payload) {
+        return encode(type, (byte) 0, payload, 0, payload.length);
+    }
+
+    public static byte[] encode(byte type, byte flags, byte[] payload, int offset, int length) {
+        byte[] frame = new byte[HEADER_SIZE + length];
+        encode(type, flags, payload, offset, length, frame, 0);
+        return frame;
+    }
+
+    /** Writes one frame into {@code dst} and returns the number of bytes used. */
+    public static int encode(byte type, byte flags, byte[] payload, int offset, int length,
+                             byte[] dst, int dstOffset) {
+        writeHeader(type, flags, length, dst, dstOffset);
+        System.arraycopy(payload, offset, dst, dstOffset + HEADER_SIZE, length);
+        return HEADER_SIZE + length;
+    }
+
+    /** Writes just the header for a payload of {@code length} bytes that the caller fills in. */
+    public static void writeHeader(byte type, byte flags, int length, byte[] dst, int dstOffset) {
+        if (length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Payload too large: " + length);
+        }
+        dst[dstOffset] = VERSION;
+        dst[dstOffset + 1] = type;
+        dst[dstOffset + 2] = flags;
+        dst[dstOffset + 3] = (byte) (length >>> 8);
+        dst[dstOffset + 4] = (byte) length;
+    }
+
+    static int payloadLength(byte[] buffer, int offset) {
+        return ((buffer[offset + 3] & 0xFF) << 8) | (buffer[offset + 4] & 0xFF);
+    }
+
+    static void checkVersion(byte[] buffer, int offset) throws IOException {
+        if (buffer[offset] != VERSION) {
+            throw new IOException("Unsupported frame version " + (buffer[offset] & 0xFF));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.disasterchat;
+
+import java.io.IOException;
+
+/**
+ * Streaming decoder for {@link FrameCodec} frames. Complete frames are handed to the
+ * listener straight out of the read buffer; only a trailing partial frame is copied
+ * aside until the rest of it arrives.
+ */
+public class FrameDecoder {
+
+    public interface Listener {
+        void onFrame(byte type, byte flags, byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    private final Listener listener;
+    private final byte[] pending = new byte[FrameCodec.HEADER_SIZE + FrameCodec.MAX_PAYLOAD];
+    private int pendingLength;
+
+    public FrameDecoder(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void feed(byte[] data, int offset, int length) throws IOException {
+        int end = offset + length;
+
+        if (pendingLength > 0) {
+            offset = completePending(data, offset, end);
+            if (pendingLength > 0) {
+                return;
+            }
+        }
+
+        while (end - offset >= FrameCodec.HEADER_SIZE) {
+            FrameCodec.checkVersion(data, offset);
+            int frameLength = FrameCodec.HEADER_SIZE + FrameCodec.payloadLength(data, offset);
+            if (end - offset < frameLength) {
+                break;
+            }
+            listener.onFrame(data[offset + 1], data[offset + 2], data,
+                    offset + FrameCodec.HEADER_SIZE, frameLength - FrameCodec.HEADER_SIZE);
+            offset += frameLength;
+        }
+
+        if (offset < end) {
+            System.arraycopy(data, offset, pending, 0, end - offset);
+            pendingLength = end - offset;
+        }
+    }
+
+    private int completePending(byte[] data, int offset, int end) throws IOException {
+        if (pendingLength < FrameCodec.HEADER_SIZE) {
+            int n = Math.min(FrameCodec.HEADER_SIZE - pendingLength, end - offset);
+            System.arraycopy(data, offset, pending, pendingLength, n);
+            pendingLength += n;
+            offset += n;
+            if (pendingLength < FrameCodec.HEADER_SIZE) {
+                return offset;
+            }
+            FrameCodec.checkVersion(pending, 0);
+        }
+
+        int frameLength = FrameCodec.HEADER_SIZE + FrameCodec.payloadLength(pending, 0);
+        int n = Math.min(frameLength - pendingLength, end - offset);
+        System.arraycopy(data, offset, pending, pendingLength, n);
+        pendingLength += n;
+        offset += n;
+
+        if (pendingLength == frameLength) {
+            pendingLength = 0;
+            listener.onFrame(pending[1], pending[2], pending,
+                    FrameCodec.HEADER_SIZE, frameLength - FrameCodec.HEADER_SIZE);
+        }
+        return offset;
+    }
+
+    public void reset() {
+        pendingLength = 0;
+    }
+}
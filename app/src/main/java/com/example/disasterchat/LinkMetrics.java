@@ -0,0 +1,124 @@
+package com.example.disasterchat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for one peer address. Survives reconnects, so connect and failure counts
+ * describe the peer rather than a single socket. Hot-path updates are lock-free.
+ */
+public final class LinkMetrics {
+    private final String address;
+
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder framesIn = new LongAdder();
+    final LongAdder framesOut = new LongAdder();
+    final LongAdder retransmits = new LongAdder();
+    final Histogram writeLatencyNanos = new Histogram();
+    final Histogram queueDepth = new Histogram();
+    final Histogram rttNanos = new Histogram();
+    final LongAdder relaysShed = new LongAdder();
+    volatile long sendRate;
+
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong connectFailures = new AtomicLong();
+    private final AtomicLong connectedNanos = new AtomicLong();
+    private final AtomicLong connectedSince = new AtomicLong(-1);
+
+    LinkMetrics(String address) {
+        this.address = address;
+    }
+
+    void onConnected(long nowNanos) {
+        connects.incrementAndGet();
+        connectedSince.set(nowNanos);
+    }
+
+    void onDisconnected(long nowNanos) {
+        long since = connectedSince.getAndSet(-1);
+        if (since >= 0) {
+            connectedNanos.addAndGet(nowNanos - since);
+        }
+    }
+
+    void onConnectFailed() {
+        connectFailures.incrementAndGet();
+    }
+
+    void onFramesWritten(int frames, int bytes) {
+        framesOut.add(frames);
+        bytesOut.add(bytes);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getFramesIn() {
+        return framesIn.sum();
+    }
+
+    public long getFramesOut() {
+        return framesOut.sum();
+    }
+
+    /** Bytes per second the link's rate limiter allowed after its latest write; 0 if unlimited. */
+    public long getSendRate() {
+        return sendRate;
+    }
+
+    /** Relayed frames not queued on this link because their source had its fair share. */
+    public long getRelaysShed() {
+        return relaysShed.sum();
+    }
+
+    /** Frames sent again after a reconnect because the peer had not acknowledged them. */
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    public Histogram getWriteLatencyNanos() {
+        return writeLatencyNanos;
+    }
+
+    /** Outbound queue depth, sampled each time the writer picks up a batch. */
+    public Histogram getQueueDepth() {
+        return queueDepth;
+    }
+
+    public Histogram getRttNanos() {
+        return rttNanos;
+    }
+
+    public long getConnectCount() {
+        return connects.get();
+    }
+
+    /** Successful connects after the first one. */
+    public long getReconnectCount() {
+        return Math.max(0, connects.get() - 1);
+    }
+
+    public long getConnectFailures() {
+        return connectFailures.get();
+    }
+
+    public boolean isConnected() {
+        return connectedSince.get() >= 0;
+    }
+
+    /** Total time spent connected, including the current connection if any. */
+    public long getConnectedNanos(long nowNanos) {
+        long since = connectedSince.get();
+        return connectedNanos.get() + (since >= 0 ? nowNanos - since : 0);
+    }
+}
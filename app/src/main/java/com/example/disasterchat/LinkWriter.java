@@ -0,0 +1,198 @@
+package com.example.disasterchat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drains an {@link OutboundQueue} into a link's output stream. With batching enabled,
+ * queued frames are copied into one buffer until it reaches {@code maxBatchBytes} or
+ * {@code lingerNanos} have passed since the first frame, then written with a single
+ * flush. SOS frames flush the batch immediately instead of waiting out the linger.
+ * Once the peer has agreed to compression, payloads are deflated as they are copied out.
+ */
+public class LinkWriter implements Runnable {
+    public static final int DEFAULT_MAX_BATCH_BYTES = 4096;
+    public static final long DEFAULT_LINGER_NANOS = 2_000_000L;
+
+    public interface FailureListener {
+        void onWriteFailed(IOException e);
+    }
+
+    private final OutboundQueue queue;
+    private final OutputStream out;
+    private final AtomicLong bytesWritten;
+    private final FailureListener failureListener;
+    private final int maxBatchBytes;
+    private final long lingerNanos;
+    private final byte[] batch;
+    private final List<OutboundQueue.Entry> batched = new ArrayList<>();
+    private volatile PayloadCompressor compressor;
+    private volatile LinkMetrics metrics;
+    private volatile RateLimiter limiter;
+    private byte[] scratch;
+
+    private long flushes;
+
+    /** {@code maxBatchBytes <= 0} disables batching: every frame is written and flushed alone. */
+    public LinkWriter(OutboundQueue queue, OutputStream out, AtomicLong bytesWritten,
+                      FailureListener failureListener, int maxBatchBytes, long lingerNanos) {
+        this.queue = queue;
+        this.out = out;
+        this.bytesWritten = bytesWritten;
+        this.failureListener = failureListener;
+        this.maxBatchBytes = maxBatchBytes;
+        this.lingerNanos = lingerNanos;
+        this.batch = maxBatchBytes > 0 ? new byte[maxBatchBytes] : null;
+    }
+
+    /** Compresses eligible payloads from now on; called once the peer's hello matches. */
+    public void setCompressor(PayloadCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /** Records frames, bytes, queue depth and enqueue-to-flush latency into {@code metrics}. */
+    public void setMetrics(LinkMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** Reports how long each write blocked, so {@code limiter} can follow the link's speed. */
+    public void setRateLimiter(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    @Override
+    public void run() {
+        try {
+            OutboundQueue.Entry entry;
+            while ((entry = queue.take()) != null) {
+                LinkMetrics m = metrics;
+                if (m != null) {
+                    m.queueDepth.record(queue.size() + 1);
+                }
+                if (batch == null) {
+                    writeSingle(entry);
+                } else {
+                    writeBatch(entry);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            failBatch(e);
+            queue.close(e);
+            failureListener.onWriteFailed(e);
+        }
+    }
+
+    private void writeSingle(OutboundQueue.Entry entry) throws IOException {
+        batched.add(entry);
+        PayloadCompressor c = compressor;
+        if (c == null || entry.lane == OutboundQueue.LANE_BULK) {
+            long start = System.nanoTime();
+            out.write(entry.frame, 0, entry.length);
+            out.flush();
+            completeBatch(entry.length, start);
+            return;
+        }
+        if (scratch == null || scratch.length < entry.length) {
+            scratch = new byte[Math.max(entry.length, DEFAULT_MAX_BATCH_BYTES)];
+        }
+        int length = c.encodeFrame(entry.frame, entry.length, scratch, 0);
+        long start = System.nanoTime();
+        out.write(scratch, 0, length);
+        out.flush();
+        completeBatch(length, start);
+    }
+
+    private void writeBatch(OutboundQueue.Entry first) throws IOException, InterruptedException {
+        if (first.length >= maxBatchBytes) {
+            writeSingle(first);
+            return;
+        }
+
+        int length = append(first, 0);
+        long deadline = System.nanoTime() + lingerNanos;
+        boolean urgent = first.lane == OutboundQueue.LANE_SOS;
+
+        while (!urgent && length < maxBatchBytes) {
+            OutboundQueue.Entry next = queue.poll();
+            if (next == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || (next = queue.poll(remaining)) == null) {
+                    break;
+                }
+            }
+            if (length + next.length > maxBatchBytes) {
+                flushBatch(length);
+                length = 0;
+                deadline = System.nanoTime() + lingerNanos;
+                if (next.length >= maxBatchBytes) {
+                    writeSingle(next);
+                    continue;
+                }
+            }
+            length = append(next, length);
+            urgent = next.lane == OutboundQueue.LANE_SOS;
+        }
+
+        if (length > 0) {
+            flushBatch(length);
+        }
+    }
+
+    private int append(OutboundQueue.Entry entry, int length) {
+        PayloadCompressor c = compressor;
+        batched.add(entry);
+        if (c != null) {
+            return length + c.encodeFrame(entry.frame, entry.length, batch, length);
+        }
+        System.arraycopy(entry.frame, 0, batch, length, entry.length);
+        return length + entry.length;
+    }
+
+    private void flushBatch(int length) throws IOException {
+        long start = System.nanoTime();
+        out.write(batch, 0, length);
+        out.flush();
+        completeBatch(length, start);
+    }
+
+    private void completeBatch(int length, long writeStartNanos) {
+        flushes++;
+        bytesWritten.addAndGet(length);
+        long now = System.nanoTime();
+        RateLimiter l = limiter;
+        if (l != null) {
+            l.onWritten(length, now - writeStartNanos, now);
+        }
+        LinkMetrics m = metrics;
+        if (m != null) {
+            if (l != null) {
+                m.sendRate = l.getRate();
+            }
+            m.onFramesWritten(batched.size(), length);
+            for (OutboundQueue.Entry entry : batched) {
+                m.writeLatencyNanos.record(now - entry.enqueuedNanos);
+            }
+        }
+        for (OutboundQueue.Entry entry : batched) {
+            entry.complete();
+        }
+        batched.clear();
+    }
+
+    private void failBatch(IOException e) {
+        for (OutboundQueue.Entry entry : batched) {
+            entry.fail(e);
+        }
+        batched.clear();
+    }
+
+    /** Number of flushes issued so far; only meaningful from the writer thread or after it exits. */
+    long getFlushCount() {
+        return flushes;
+    }
+}
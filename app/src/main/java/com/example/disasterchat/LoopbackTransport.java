@@ -0,0 +1,275 @@
+package com.example.disasterchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * In-process transport: peers register by name on a shared {@link Network} and are joined
+ * by a pair of bounded byte pipes, so hundreds of virtual peers can run in one JVM. A
+ * network can cap each pipe's throughput to stand in for a slow radio link: bytes then
+ * reach the reader no faster than the cap, and writers block once the pipe is full.
+ */
+public class LoopbackTransport implements Transport {
+    private static final int PIPE_CAPACITY = 64 * 1024;
+
+    /** Namespace of listening loopback peers. */
+    public static class Network {
+        private final Map<String, LoopbackServer> servers = new ConcurrentHashMap<>();
+        private final int bytesPerSecond;
+
+        public Network() {
+            this(0);
+        }
+
+        /** {@code bytesPerSecond <= 0} leaves pipes unthrottled. */
+        public Network(int bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+    }
+
+    private final Network network;
+    private final String address;
+
+    public LoopbackTransport(Network network, String address) {
+        this.network = network;
+        this.address = address;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public Server listen() throws IOException {
+        LoopbackServer server = new LoopbackServer();
+        if (network.servers.putIfAbsent(address, server) != null) {
+            throw new IOException("Address in use: " + address);
+        }
+        return server;
+    }
+
+    @Override
+    public Connection open(String remoteAddress) {
+        return new LoopbackConnection(remoteAddress, null, null);
+    }
+
+    private class LoopbackServer implements Server {
+        private final BlockingQueue<Connection> pending = new LinkedBlockingQueue<>();
+        private volatile boolean closed;
+
+        @Override
+        public Connection accept() throws IOException {
+            try {
+                Connection connection = pending.take();
+                if (closed) {
+                    throw new IOException("Server closed");
+                }
+                return connection;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("accept interrupted");
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                network.servers.remove(address, this);
+                pending.add(new LoopbackConnection(address, null, null));
+            }
+        }
+    }
+
+    private class LoopbackConnection implements Connection {
+        private final String remoteAddress;
+        private volatile Pipe in;
+        private volatile Pipe out;
+        private volatile boolean closed;
+
+        LoopbackConnection(String remoteAddress, Pipe in, Pipe out) {
+            this.remoteAddress = remoteAddress;
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public String getAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public String getName() {
+            return remoteAddress;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            LoopbackServer server = network.servers.get(remoteAddress);
+            if (server == null || server.closed) {
+                throw new IOException("Connection refused: " + remoteAddress);
+            }
+            Pipe toServer = new Pipe(network.bytesPerSecond);
+            Pipe toClient = new Pipe(network.bytesPerSecond);
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                in = toClient;
+                out = toServer;
+            }
+            server.pending.add(new LoopbackConnection(address, toServer, toClient));
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (in == null) {
+                throw new IOException("Not connected");
+            }
+            return in.input;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                throw new IOException("Not connected");
+            }
+            return out.output;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            if (in != null) {
+                in.close();
+            }
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /** Bounded single-direction byte ring with blocking reads and writes. */
+    private static class Pipe {
+        private final byte[] buffer = new byte[PIPE_CAPACITY];
+        private final int bytesPerSecond;
+        private final long startNanos = System.nanoTime();
+        private long delivered;
+        private int head;
+        private int size;
+        private boolean closed;
+
+        Pipe(int bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        final InputStream input = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            long allowed = Long.MAX_VALUE;
+            try {
+                while (true) {
+                    while (size == 0 && !closed) {
+                        wait();
+                    }
+                    if (size == 0 || bytesPerSecond <= 0) {
+                        break;
+                    }
+                    // A radio does not save up airtime: idle time buys at most 20 ms of burst.
+                    long budget = (System.nanoTime() - startNanos) * bytesPerSecond / 1_000_000_000L;
+                    delivered = Math.max(delivered, budget - Math.max(512, bytesPerSecond / 50));
+                    allowed = budget - delivered;
+                    if (allowed > 0) {
+                        break;
+                    }
+                    long waitNanos = (1 - allowed) * 1_000_000_000L / bytesPerSecond + 1;
+                    wait(waitNanos / 1_000_000L, (int) (waitNanos % 1_000_000L));
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("read interrupted");
+            }
+            if (size == 0) {
+                return -1;
+            }
+            int n = (int) Math.min(Math.min(len, size), allowed);
+            delivered += n;
+            int first = Math.min(n, buffer.length - head);
+            System.arraycopy(buffer, head, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, n - first);
+            head = (head + n) % buffer.length;
+            size -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                try {
+                    while (size == buffer.length && !closed) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("write interrupted");
+                }
+                if (closed) {
+                    throw new IOException("Pipe closed");
+                }
+                int n = Math.min(len, buffer.length - size);
+                int tail = (head + size) % buffer.length;
+                int first = Math.min(n, buffer.length - tail);
+                System.arraycopy(b, off, buffer, tail, first);
+                System.arraycopy(b, off + first, buffer, 0, n - first);
+                size += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+}
@@ -9,28 +9,51 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.BatteryManager;
 import android.os.Bundle;
 import android.os.Build;
 import android.os.Handler;
-import android.view.View;
+import android.os.ParcelUuid;
+import android.util.Log;
 import android.widget.*;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 
 public class MainActivity extends AppCompatActivity {
+    private static final String TAG = "MainActivity";
 
     // Request codes
     private static final int REQUEST_ENABLE_BT = 1;
     private static final int REQUEST_DISCOVERABLE = 2;
     private static final int REQUEST_PERMISSIONS = 3;
 
+    // Message window
+    private static final int WINDOW_CAPACITY = 500;
+    private static final int PAGE_SIZE = 100;
+
+    // Search
+    private static final String FIND_COMMAND = "/find ";
+    private static final int FIND_RESULTS = 20;
+
+    // SOS triage
+    private static final int SOS_SEVERITY = 4;
+    private static final double NEARBY_SOS_METERS = 5000;
+
     // UI Components
-    private ListView messagesList;
+    private RecyclerView messagesList;
     private EditText messageInput;
     private Button sendButton, discoverButton, sosButton;
     private TextView statusText, infoText;
@@ -38,12 +61,21 @@ public class MainActivity extends AppCompatActivity {
     // Bluetooth Components
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothChatService chatService;
-    private BluetoothDevice connectedDevice;
 
     // Data
-    private ArrayAdapter<String> messagesAdapter;
-    private ArrayList<String> messages = new ArrayList<>();
+    private MessagesAdapter messagesAdapter;
+    private boolean detachedFromLatest;
+    private int unseenWhileDetached;
     private Handler handler = new Handler();
+    private MessageJournal journal;
+    private SearchIndex searchIndex;
+    /** Read threads and the UI thread journal messages; each append is indexed before the next. */
+    private final Object journalLock = new Object();
+    private PeerCache peerCache;
+    private final DutyCycleScheduler dutyCycle = new DutyCycleScheduler(System::currentTimeMillis);
+    private final Runnable dutyCycleTick = this::runDutyCycle;
+    /** The running scan was started by the duty cycle, so it is not narrated in the chat. */
+    private boolean automaticScan;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -51,6 +83,8 @@ public class MainActivity extends AppCompatActivity {
         setContentView(R.layout.activity_main);
 
         initializeUI();
+        openJournal();
+        openPeerCache();
         initializeBluetooth();
         setupEventListeners();
         requestAllPermissions();
@@ -67,30 +101,21 @@ public class MainActivity extends AppCompatActivity {
         infoText = findViewById(R.id.info_text);
 
         // Setup messages list
-        messagesAdapter = new ArrayAdapter<String>(this,
-                android.R.layout.simple_list_item_1, messages) {
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        layoutManager.setStackFromEnd(true);
+        messagesList.setLayoutManager(layoutManager);
+        messagesAdapter = new MessagesAdapter(this, WINDOW_CAPACITY);
+        messagesList.setAdapter(messagesAdapter);
+        messagesList.addOnScrollListener(new RecyclerView.OnScrollListener() {
             @Override
-            public View getView(int position, View convertView, android.view.ViewGroup parent) {
-                View view = super.getView(position, convertView, parent);
-                TextView textView = (TextView) view;
-                textView.setTextColor(ContextCompat.getColor(getContext(), R.color.white));
-                textView.setPadding(16, 8, 16, 8);
-
-                String message = getItem(position);
-                if (message.startsWith("SOS") || message.startsWith("🚨")) {
-                    textView.setBackgroundColor(ContextCompat.getColor(getContext(), R.color.sos_button));
-                } else if (message.startsWith("Sent:")) {
-                    textView.setBackgroundColor(ContextCompat.getColor(getContext(), R.color.send_button));
-                } else if (message.startsWith("Received:")) {
-                    textView.setBackgroundColor(ContextCompat.getColor(getContext(), R.color.discover_button));
-                } else {
-                    textView.setBackgroundColor(ContextCompat.getColor(getContext(), R.color.info_background));
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (dy < 0 && !recyclerView.canScrollVertically(-1)) {
+                    recyclerView.post(() -> loadOlderPage());
+                } else if (dy > 0 && detachedFromLatest && !recyclerView.canScrollVertically(1)) {
+                    recyclerView.post(() -> loadNewerPage());
                 }
-
-                return view;
             }
-        };
-        messagesList.setAdapter(messagesAdapter);
+        });
 
         // Add welcome message
         addMessage("System: 🚨 Disaster Chat initialized");
@@ -98,6 +123,145 @@ public class MainActivity extends AppCompatActivity {
         addMessage("System: Tap 'Find Devices' to connect with others nearby");
     }
 
+    private void openJournal() {
+        try {
+            journal = new MessageJournal(new File(getFilesDir(), "journal"));
+            List<ChatMessage> restored = readJournal(journal.nextSequence() - PAGE_SIZE, PAGE_SIZE);
+            messagesAdapter.prepend(restored);
+            if (!restored.isEmpty()) {
+                addMessage("System: Restored " + (journal.nextSequence() - journal.firstSequence())
+                        + " earlier messages");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Message journal unavailable", e);
+            journal = null;
+            return;
+        }
+        openSearchIndex();
+    }
+
+    /** Loads the saved index and indexes whatever was journaled after it was saved. */
+    private void openSearchIndex() {
+        searchIndex = new SearchIndex(new File(getFilesDir(), "search.idx"));
+        try {
+            searchIndex.load();
+        } catch (IOException e) {
+            Log.e(TAG, "Search index unreadable, rebuilding", e);
+        }
+        searchIndex.removeBefore(journal.firstSequence());
+        try {
+            long[] sequence = {Math.max(searchIndex.nextSequence(), journal.firstSequence())};
+            journal.read(sequence[0], (int) Math.min(Integer.MAX_VALUE, journal.nextSequence() - sequence[0]),
+                    record -> {
+                        searchIndex.add(sequence[0], ChatMessage.fromRecord(sequence[0], record).body);
+                        sequence[0]++;
+                    });
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to index journal", e);
+        }
+    }
+
+    private void saveSearchIndex() {
+        searchIndex.removeBefore(journal.firstSequence());
+        try {
+            searchIndex.save();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save search index", e);
+        }
+    }
+
+    private void openPeerCache() {
+        peerCache = new PeerCache(new File(getFilesDir(), "peers.bin"));
+        try {
+            peerCache.load(System.currentTimeMillis());
+        } catch (IOException e) {
+            Log.e(TAG, "Peer cache unreadable, starting empty", e);
+        }
+    }
+
+    private void savePeerCache() {
+        try {
+            peerCache.save();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save peer cache", e);
+        }
+    }
+
+    /**
+     * Hands the chat service the newest journaled messages, so after a restart peers do
+     * not send them all again and it carries on with the history it had.
+     */
+    private void restoreMeshState() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            for (ChatMessage message : readJournal(journal.nextSequence() - MeshNode.HISTORY_CAPACITY,
+                    MeshNode.HISTORY_CAPACITY)) {
+                chatService.restore(message);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to restore journaled messages", e);
+        }
+    }
+
+    private List<ChatMessage> readJournal(long fromSequence, int count) throws IOException {
+        List<ChatMessage> rows = new ArrayList<>(Math.max(count, 0));
+        if (count > 0) {
+            long[] sequence = {Math.max(fromSequence, journal.firstSequence())};
+            journal.read(sequence[0], count, record ->
+                    rows.add(ChatMessage.fromRecord(sequence[0]++, record)));
+        }
+        return rows;
+    }
+
+    private void loadOlderPage() {
+        long oldest = messagesAdapter.oldestSequence();
+        if (journal == null || oldest <= journal.firstSequence()) {
+            return;
+        }
+        try {
+            long from = Math.max(journal.firstSequence(), oldest - PAGE_SIZE);
+            if (messagesAdapter.prepend(readJournal(from, (int) (oldest - from))) > 0) {
+                detachedFromLatest = true;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to page in older messages", e);
+        }
+    }
+
+    private void loadNewerPage() {
+        if (journal == null || !detachedFromLatest) {
+            return;
+        }
+        try {
+            long from = messagesAdapter.newestSequence() + 1;
+            for (ChatMessage row : readJournal(from, PAGE_SIZE)) {
+                messagesAdapter.append(row);
+            }
+            if (messagesAdapter.newestSequence() + 1 >= journal.nextSequence()) {
+                detachedFromLatest = false;
+                unseenWhileDetached = 0;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to page in newer messages", e);
+        }
+    }
+
+    private void jumpToLatest() {
+        if (!detachedFromLatest) {
+            return;
+        }
+        messagesAdapter.clear();
+        detachedFromLatest = false;
+        unseenWhileDetached = 0;
+        try {
+            messagesAdapter.prepend(readJournal(journal.nextSequence() - PAGE_SIZE, PAGE_SIZE));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to reload latest messages", e);
+        }
+    }
+
     private void initializeBluetooth() {
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 
@@ -107,10 +271,10 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
-        // Make device discoverable
+        // The duty cycle makes the device discoverable and scans as needed
         if (bluetoothAdapter.isEnabled()) {
-            makeDeviceDiscoverable();
             initializeChatService();
+            runDutyCycle();
         } else {
             requestEnableBluetooth();
         }
@@ -121,36 +285,104 @@ public class MainActivity extends AppCompatActivity {
         startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
     }
 
-    private void makeDeviceDiscoverable() {
+    private void makeDeviceDiscoverable(int seconds) {
         Intent discoverableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_DISCOVERABLE);
-        discoverableIntent.putExtra(BluetoothAdapter.EXTRA_DISCOVERABLE_DURATION, 300);
+        discoverableIntent.putExtra(BluetoothAdapter.EXTRA_DISCOVERABLE_DURATION, seconds);
         startActivityForResult(discoverableIntent, REQUEST_DISCOVERABLE);
     }
 
+    /** Carries out the duty cycle's plan: scans, discoverable windows and listening, then waits for the next check. */
+    private void runDutyCycle() {
+        handler.removeCallbacks(dutyCycleTick);
+        if (bluetoothAdapter == null || !bluetoothAdapter.isEnabled() || chatService == null) {
+            return;
+        }
+        readBattery();
+        DutyCycleScheduler.Plan plan = dutyCycle.next();
+        if (plan.scan) {
+            // Known peers first; an inquiry only when they are stale or all linked already.
+            if (bluetoothAdapter.isDiscovering()
+                    || (!peerCache.isStale(System.currentTimeMillis()) && connectToBestPeers())
+                    || !hasBluetoothPermissions() || !bluetoothAdapter.startDiscovery()) {
+                dutyCycle.onScanFinished();
+            } else {
+                automaticScan = true;
+            }
+        }
+        if (plan.discoverableSeconds > 0) {
+            makeDeviceDiscoverable(plan.discoverableSeconds);
+        }
+        chatService.setListening(plan.listen);
+        Log.d(TAG, String.format(Locale.US, "duty cycle: radio on %d s (%.2f%%)",
+                dutyCycle.radioOnMillis() / 1000, dutyCycle.dutyCycle() * 100));
+        handler.postDelayed(dutyCycleTick, Math.max(0, plan.nextCheckMillis - System.currentTimeMillis()));
+    }
+
+    private void readBattery() {
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return;
+        }
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if (level >= 0 && scale > 0) {
+            dutyCycle.setBattery(level * 100 / scale, battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0);
+        }
+    }
+
+    private void onLinksChanged() {
+        dutyCycle.onLinksChanged(chatService.getLinkCount(), chatService.getFreeLinkSlots());
+        runDutyCycle();
+    }
+
     private void initializeChatService() {
         if (bluetoothAdapter != null && bluetoothAdapter.isEnabled()) {
-            chatService = new BluetoothChatService(this, handler,
-                    (message) -> runOnUiThread(() -> {
-                        addMessage("Received: " + message);
-                        updateConnectionStatus(true);
-
-                        // Auto-respond to SOS messages
-                        if (message.contains("SOS") || message.contains("🚨")) {
-                            playSOSAlert();
-                        }
-                    }),
-                    (device) -> runOnUiThread(() -> {
-                        connectedDevice = device;
-                        addMessage("Connected to: " + device.getName());
+            chatService = new BluetoothChatService(this, handler, new RfcommTransport(bluetoothAdapter),
+                    (message) -> {
+                        dutyCycle.onTraffic();
+                        ChatMessage journaled = journalMessage(message);
+                        runOnUiThread(() -> {
+                            addReceived(journaled);
+                            updateConnectionStatus(true);
+
+                            // Auto-respond to SOS messages
+                            if (journaled.isSos()) {
+                                onSosReceived(journaled);
+                            }
+                        });
+                    },
+                    (peer) -> runOnUiThread(() -> {
+                        peerCache.onSuccess(peer.getAddress(), System.currentTimeMillis());
+                        savePeerCache();
+                        addMessage("Connected to: " + peer.getName());
+                        onLinksChanged();
                         updateConnectionStatus(true);
-                        updateInfoText("Connected! You can now send messages.");
+                        updateInfoText("Connected to " + chatService.getLinkCount()
+                                + " device(s). You can now send messages.");
                     }),
-                    () -> runOnUiThread(() -> {
-                        connectedDevice = null;
-                        updateConnectionStatus(false);
-                        updateInfoText("Connection lost. Tap 'Find Devices' to reconnect.");
+                    (peer) -> runOnUiThread(() -> {
+                        onLinksChanged();
+                        boolean stillConnected = chatService.isConnected();
+                        updateConnectionStatus(stillConnected);
+                        if (stillConnected) {
+                            updateInfoText("Link to " + peer.getName() + " lost. "
+                                    + chatService.getLinkCount() + " link(s) still open.");
+                        } else {
+                            updateInfoText("Connection lost. Retrying known peers; tap 'Find Devices' to search.");
+                        }
                     })
             );
+            chatService.setOnMessageSent(message -> runOnUiThread(() -> recordMessage(message)));
+            restoreMeshState();
+            chatService.addStateListener(transition -> runOnUiThread(() ->
+                    updateConnectionStatus(transition.to == ConnectionState.CONNECTED)));
+            File incoming = new File(getFilesDir(), "incoming");
+            if (incoming.isDirectory() || incoming.mkdirs()) {
+                chatService.setIncomingFileDirectory(incoming);
+            }
+            chatService.setOnFileReceived((address, file) -> runOnUiThread(() ->
+                    addMessage("System: Received " + file.getName() + " (" + (file.length() + 1023) / 1024
+                            + " KB) from " + address)));
             addMessage("System: Bluetooth service ready - waiting for connections");
             updateInfoText("Ready! Tap 'Find Devices' to connect with others.");
         }
@@ -215,9 +447,16 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
+        if (message.startsWith(FIND_COMMAND)) {
+            findMessages(message.substring(FIND_COMMAND.length()));
+            messageInput.setText("");
+            return;
+        }
+
         if (chatService != null && chatService.isConnected()) {
-            chatService.write(message.getBytes());
-            addMessage("Sent: " + message);
+            chatService.write(message)
+                    .whenComplete((ignored, error) -> reportSendFailure(error));
+            dutyCycle.onTraffic();
             messageInput.setText("");
             scrollToBottom();
         } else {
@@ -226,12 +465,37 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    /** Lists the newest journaled messages holding every word; {@code word*} matches a prefix. */
+    private void findMessages(String query) {
+        if (searchIndex == null) {
+            addMessage("System: Search needs the message journal, which is unavailable");
+            return;
+        }
+        // Segments the journal has since dropped are forgotten first, so every match can be read back.
+        searchIndex.removeBefore(journal.firstSequence());
+        long[] matches = searchIndex.search(query, FIND_RESULTS);
+        addMessage("System: 🔍 " + (matches.length == 0 ? "No messages match" : "Newest matches")
+                + " for \"" + query + "\"");
+        try {
+            for (int i = matches.length - 1; i >= 0; i--) {
+                for (ChatMessage row : readJournal(matches[i], 1)) {
+                    addMessage("System: 🔍 " + row.displayText);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read search results", e);
+        }
+    }
+
     private void sendSOSMessage() {
         String sosMessage = getString(R.string.sos_message);
 
         if (chatService != null && chatService.isConnected()) {
-            chatService.write(sosMessage.getBytes());
-            addMessage("🚨 SOS SENT: " + sosMessage);
+            Location here = lastKnownLocation();
+            (here != null
+                    ? chatService.writeSos(here.getLatitude(), here.getLongitude(), SOS_SEVERITY, sosMessage)
+                    : chatService.write(FrameCodec.TYPE_SOS, sosMessage))
+                    .whenComplete((ignored, error) -> reportSendFailure(error));
             Toast.makeText(this, "SOS message broadcasted!", Toast.LENGTH_SHORT).show();
         } else {
             addMessage("System: SOS failed - no connection! Find devices first.");
@@ -240,15 +504,19 @@ public class MainActivity extends AppCompatActivity {
         scrollToBottom();
     }
 
+    private void reportSendFailure(Throwable error) {
+        if (error != null) {
+            Throwable cause = error.getCause() != null ? error.getCause() : error;
+            runOnUiThread(() -> addMessage("System: Delivery failed on a link - " + cause.getMessage()));
+        }
+    }
+
     private void discoverDevices() {
         if (bluetoothAdapter == null || !bluetoothAdapter.isEnabled()) {
             Toast.makeText(this, "Bluetooth must be enabled", Toast.LENGTH_SHORT).show();
             return;
         }
 
-        addMessage("System: 🔍 Searching for nearby devices...");
-        updateInfoText("Searching for devices... Make sure other devices are also searching.");
-
         if (bluetoothAdapter.isDiscovering()) {
             bluetoothAdapter.cancelDiscovery();
         }
@@ -256,10 +524,23 @@ public class MainActivity extends AppCompatActivity {
         // Also check paired devices
         checkPairedDevices();
 
+        // An inquiry scan takes ~12 s and slows open links; skip it while the cache is fresh
+        if (!peerCache.isStale(System.currentTimeMillis()) && connectToBestPeers()) {
+            addMessage("System: Connecting to recently seen peers");
+            updateInfoText("Connecting to known peers... Tap 'Find Devices' again to search.");
+            return;
+        }
+
+        addMessage("System: 🔍 Searching for nearby devices...");
+        updateInfoText("Searching for devices... Make sure other devices are also searching.");
+
         // Start discovery
         boolean started = bluetoothAdapter.startDiscovery();
         if (!started) {
             addMessage("System: Failed to start device discovery");
+        } else {
+            automaticScan = false;
+            dutyCycle.onScanStarted();
         }
     }
 
@@ -272,6 +553,7 @@ public class MainActivity extends AppCompatActivity {
                 addMessage("System: Found " + pairedDevices.size() + " paired devices");
                 for (BluetoothDevice device : pairedDevices) {
                     addMessage("Paired: " + device.getName() + " - " + device.getAddress());
+                    peerCache.onBonded(device.getAddress(), device.getName(), advertisesChatService(device));
                 }
             }
         }
@@ -287,40 +569,115 @@ public class MainActivity extends AppCompatActivity {
                     String deviceName = device.getName();
                     if (deviceName == null) deviceName = "Unknown Device";
 
-                    addMessage("Found: " + deviceName + " (" + device.getAddress() + ")");
+                    short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, PeerCache.RSSI_UNKNOWN);
 
-                    // Auto-connect to first disaster chat device found
-                    if (deviceName.contains("Disaster") || connectedDevice == null) {
-                        bluetoothAdapter.cancelDiscovery();
-                        connectToDevice(device);
+                    if (!automaticScan) {
+                        addMessage("Found: " + deviceName + " (" + device.getAddress() + ")"
+                                + (rssi != PeerCache.RSSI_UNKNOWN ? " " + rssi + " dBm" : ""));
                     }
+
+                    // Connections are made once the scan ends, best-ranked first
+                    peerCache.onSeen(device.getAddress(), device.getName(), rssi,
+                            advertisesChatService(device) || deviceName.contains("Disaster"),
+                            System.currentTimeMillis());
                 }
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
-                addMessage("System: Device search completed");
-                updateInfoText("Search complete. If no devices found, make sure others are also searching.");
+                dutyCycle.onScanFinished();
+                if (!automaticScan) {
+                    addMessage("System: Device search completed");
+                }
+                savePeerCache();
+                if (!connectToBestPeers() && !automaticScan) {
+                    updateInfoText("Search complete. If no devices found, make sure others are also searching.");
+                }
+                automaticScan = false;
             }
         }
     };
 
-    private void connectToDevice(BluetoothDevice device) {
-        addMessage("System: Connecting to " + device.getName() + "...");
-        updateInfoText("Connecting to " + device.getName() + "...");
+    private static boolean advertisesChatService(BluetoothDevice device) {
+        ParcelUuid[] uuids = device.getUuids();
+        if (uuids != null) {
+            for (ParcelUuid uuid : uuids) {
+                if (RfcommTransport.SERVICE_UUID.equals(uuid.getUuid())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Connects to the best-ranked cached peers while link slots are free; false if there were none. */
+    private boolean connectToBestPeers() {
+        if (chatService == null) {
+            return false;
+        }
+        List<String> best = peerCache.ranked(System.currentTimeMillis(), chatService.getFreeLinkSlots(),
+                chatService::isLinkedOrConnecting);
+        for (String address : best) {
+            connectToPeer(address);
+        }
+        return !best.isEmpty();
+    }
+
+    private void connectToPeer(String address) {
+        PeerCache.Entry entry = peerCache.get(address);
+        String name = entry != null && entry.name != null ? entry.name : address;
+        addMessage("System: Connecting to " + name + "...");
+        updateInfoText("Connecting to " + name + "...");
 
-        if (chatService != null) {
-            chatService.connect(device);
+        peerCache.onAttempt(address);
+        chatService.connect(address);
+    }
+
+    private void recordMessage(ChatMessage message) {
+        jumpToLatest();
+        addRow(journalMessage(message));
+    }
+
+    /** Returns the message stamped with its journal sequence, or unchanged if not journaled. */
+    private ChatMessage journalMessage(ChatMessage message) {
+        MessageJournal j = journal;
+        if (j != null) {
+            try {
+                synchronized (journalLock) {
+                    ChatMessage journaled = message.withSequence(j.append(message.toRecord()));
+                    if (searchIndex != null) {
+                        searchIndex.add(journaled.sequence, journaled.body);
+                    }
+                    return journaled;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to journal message", e);
+            }
         }
+        return message;
+    }
+
+    private void addReceived(ChatMessage row) {
+        if (detachedFromLatest && row.sequence >= 0) {
+            // Paged in from the journal once the user scrolls back down.
+            unseenWhileDetached++;
+            updateInfoText(unseenWhileDetached + " new message(s) below");
+            return;
+        }
+        addRow(row);
     }
 
     private void addMessage(String message) {
-        messages.add(message);
-        messagesAdapter.notifyDataSetChanged();
+        jumpToLatest();
+        addRow(ChatMessage.system(message));
+    }
+
+    private void addRow(ChatMessage row) {
+        messagesAdapter.append(row);
         scrollToBottom();
     }
 
     private void scrollToBottom() {
         messagesList.post(() -> {
-            if (messages.size() > 0) {
-                messagesList.setSelection(messages.size() - 1);
+            if (!detachedFromLatest && messagesAdapter.getItemCount() > 0) {
+                messagesList.scrollToPosition(messagesAdapter.getItemCount() - 1);
             }
         });
     }
@@ -335,6 +692,48 @@ public class MainActivity extends AppCompatActivity {
         infoText.setText(text);
     }
 
+    /**
+     * Alerts once per sender; repeats only add to the alert already shown. Whether this was
+     * the first report is read from the message, not the live index, which the read thread
+     * may have moved on by now.
+     */
+    private void onSosReceived(ChatMessage message) {
+        SosAlert alert = message.alert;
+        if (alert == null) {
+            playSOSAlert();
+            return;
+        }
+        if (alert.reports > 1) {
+            return;
+        }
+        playSOSAlert();
+        Location here = lastKnownLocation();
+        String where = here == null
+                ? String.format(Locale.US, "at %.5f, %.5f", alert.latitude(), alert.longitude())
+                : String.format(Locale.US, "%.1f km away (%d alerts within %.0f km)",
+                        alert.distanceMeters(here.getLatitude(), here.getLongitude()) / 1000,
+                        chatService.getSosAlerts().countWithin(here.getLatitude(), here.getLongitude(),
+                                NEARBY_SOS_METERS),
+                        NEARBY_SOS_METERS / 1000);
+        addMessage("System: SOS severity " + alert.severity + " from "
+                + ChatMessage.formatNodeId(alert.sender) + " " + where);
+    }
+
+    /** Most recent fix from GPS or the network, or null without one or without permission. */
+    private Location lastKnownLocation() {
+        LocationManager locations = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+        if (locations == null) {
+            return null;
+        }
+        try {
+            Location gps = locations.getLastKnownLocation(LocationManager.GPS_PROVIDER);
+            return gps != null ? gps : locations.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
+        } catch (SecurityException | IllegalArgumentException e) {
+            Log.w(TAG, "No location for SOS", e);
+            return null;
+        }
+    }
+
     private void playSOSAlert() {
         // Simple vibration for SOS alert
         Toast.makeText(this, "🚨 EMERGENCY SOS RECEIVED! 🚨", Toast.LENGTH_LONG).show();
@@ -347,13 +746,14 @@ public class MainActivity extends AppCompatActivity {
         if (requestCode == REQUEST_ENABLE_BT) {
             if (resultCode == RESULT_OK) {
                 addMessage("System: Bluetooth enabled");
-                makeDeviceDiscoverable();
                 initializeChatService();
+                runDutyCycle();
             } else {
                 addMessage("System: Bluetooth is required for this app");
                 Toast.makeText(this, "Bluetooth is required!", Toast.LENGTH_LONG).show();
             }
         } else if (requestCode == REQUEST_DISCOVERABLE) {
+            dutyCycle.onDiscoverable(Math.max(0, resultCode));
             if (resultCode > 0) {
                 addMessage("System: Device is discoverable for " + resultCode + " seconds");
             }
@@ -387,6 +787,9 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        handler.removeCallbacks(dutyCycleTick);
+        Log.i(TAG, String.format(Locale.US, "Radio on for discovery about %d s, %.2f%% of the session",
+                dutyCycle.radioOnMillis() / 1000, dutyCycle.dutyCycle() * 100));
         try {
             unregisterReceiver(deviceDiscoveryReceiver);
         } catch (IllegalArgumentException e) {
@@ -399,6 +802,27 @@ public class MainActivity extends AppCompatActivity {
 
         if (chatService != null) {
             chatService.stop();
+            try {
+                chatService.getMetrics().dump(new File(getFilesDir(), "metrics.txt"));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write link metrics", e);
+            }
+        }
+
+        if (peerCache != null) {
+            savePeerCache();
+        }
+
+        if (journal != null) {
+            if (searchIndex != null) {
+                saveSearchIndex();
+            }
+            try {
+                journal.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close message journal", e);
+            }
+            journal = null;
         }
     }
 
@@ -409,6 +833,7 @@ public class MainActivity extends AppCompatActivity {
             if (!chatService.isConnected()) {
                 chatService.start();
             }
+            runDutyCycle();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,327 @@
+package com.example.disasterchat;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A node's end of one link: decodes what arrives and answers on the link's
+ * {@link OutboundQueue}, whatever then carries the frames. Covers the hello, numbered
+ * delivery through the peer's {@link ReliableChannel}, pings, route exchange, history
+ * reconciliation, relay admission and handing new messages to the {@link MeshNode}.
+ * The service drives one from each connected thread; a simulation drives them from
+ * virtual links, so both run the same protocol code.
+ *
+ * <p>{@link #receive} is called from one thread at a time.
+ */
+public class MeshLink implements FrameDecoder.Listener {
+    private static final String TAG = "MeshLink";
+
+    static final int CAP_COMPRESSION = 0x01;
+    static final int CAP_RELIABLE = 0x02;
+    static final int CAP_FILES = 0x04;
+    /** Most missing messages sent in answer to one sync frame; the rest wait for the next link. */
+    static final int SYNC_PUSH_LIMIT = 256;
+    /** Queued chat frames at which a link counts as congested and relays are shared out fairly. */
+    static final int RELAY_CONGESTION_FRAMES = 16;
+
+    /** What the link leaves to whoever carries its frames. */
+    public interface Host {
+        /** The peer has the same dictionary; frames written from now on may be compressed. */
+        void onCompressionAgreed(PayloadCompressor compressor);
+
+        /** The peer takes files, sent on this link's outbound queue. */
+        void onPeerTakesFiles();
+
+        void onFileFrame(byte type, byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    final MeshNode node;
+    /** The peer's address, as routes name it. */
+    final String address;
+    final OutboundQueue outbound;
+    final ReliableChannel channel;
+    final LinkMetrics metrics;
+    /** Decodes message text on the thread that feeds this link. */
+    final TextCodec text = new TextCodec(FrameCodec.MAX_PAYLOAD);
+    private final RateLimiter limiter;
+    private final PayloadCompressor compressor;
+    private final Host host;
+    private final FrameDecoder decoder = new FrameDecoder(this);
+    private final FairShare relayShare = new FairShare();
+    private byte[] inflated;
+
+    /**
+     * {@code limiter} and {@code compressor} may be null for a link without pacing or
+     * compression; with a null {@code host} the link does not take files.
+     */
+    public MeshLink(MeshNode node, String address, OutboundQueue outbound, ReliableChannel channel,
+                    RateLimiter limiter, PayloadCompressor compressor, LinkMetrics metrics, Host host) {
+        this.node = node;
+        this.address = address;
+        this.outbound = outbound;
+        this.channel = channel;
+        this.limiter = limiter;
+        this.compressor = compressor;
+        this.metrics = metrics;
+        this.host = host;
+    }
+
+    /**
+     * Queues the hello and route table. Call before {@link MeshNode#linkUp}: they go on
+     * lanes drained first, so the peer learns our session before any numbered frame.
+     */
+    void start() {
+        sendHello();
+        sendRouteTable();
+    }
+
+    /** Decodes bytes read from the link, then acknowledges the numbered frames among them. */
+    void receive(byte[] buffer, int offset, int length) throws IOException {
+        decoder.feed(buffer, offset, length);
+        channel.takeAcks(outbound);
+    }
+
+    /** The link is gone: unacknowledged frames wait in the channel for the next link to the peer. */
+    void close(IOException cause) {
+        channel.detach(outbound);
+        outbound.close(cause);
+    }
+
+    /** {@code [u8 caps][u32 dictionary id][u32 session]}; the session is new each time the node starts. */
+    private void sendHello() {
+        int dictionaryId = compressor != null ? compressor.getDictionaryId() : 0;
+        int session = node.session;
+        byte[] hello = {
+                (byte) (CAP_RELIABLE | (host != null ? CAP_FILES : 0) | (compressor != null ? CAP_COMPRESSION : 0)),
+                (byte) (dictionaryId >>> 24), (byte) (dictionaryId >>> 16),
+                (byte) (dictionaryId >>> 8), (byte) dictionaryId,
+                (byte) (session >>> 24), (byte) (session >>> 16),
+                (byte) (session >>> 8), (byte) session
+        };
+        outbound.offer(OutboundQueue.LANE_SOS, FrameCodec.encode(FrameCodec.TYPE_HELLO, hello));
+    }
+
+    /** Tells a new neighbour about this node and every route not learned from it. */
+    private void sendRouteTable() {
+        byte[] table = new byte[MeshNode.ROUTE_ENTRY_SIZE * (MeshNode.ROUTE_CAPACITY + 1)];
+        MeshNode.writeRouteEntry(table, 0, node.nodeId, node.routeSequence(), 0);
+        int[] length = {MeshNode.ROUTE_ENTRY_SIZE};
+        node.routes.forEach(node.clock.currentTimeMillis(), (destination, nextHop, hops, sequence) -> {
+            if (!nextHop.equals(address)) {
+                MeshNode.writeRouteEntry(table, length[0], destination, sequence, hops);
+                length[0] += MeshNode.ROUTE_ENTRY_SIZE;
+            }
+        });
+        outbound.offer(OutboundQueue.LANE_CONTROL,
+                FrameCodec.encode(FrameCodec.TYPE_ROUTE, (byte) 0, table, 0, length[0]));
+    }
+
+    /** Learns routes through this neighbour and passes the ones taken on to the other links. */
+    private void onRoutes(byte[] buffer, int offset, int length) {
+        long now = node.clock.currentTimeMillis();
+        byte[] taken = null;
+        int takenLength = 0;
+        for (int i = offset; i + MeshNode.ROUTE_ENTRY_SIZE <= offset + length; i += MeshNode.ROUTE_ENTRY_SIZE) {
+            int destination = ReliableChannel.readInt(buffer, i);
+            int hops = (buffer[i + 8] & 0xFF) + 1;
+            if (destination == node.nodeId || hops > MeshPacket.DEFAULT_TTL) {
+                continue;
+            }
+            int sequence = ReliableChannel.readInt(buffer, i + 4);
+            if (node.routes.update(destination, address, hops, sequence, now)) {
+                if (taken == null) {
+                    taken = new byte[length];
+                }
+                MeshNode.writeRouteEntry(taken, takenLength, destination, sequence, hops);
+                takenLength += MeshNode.ROUTE_ENTRY_SIZE;
+            }
+        }
+        if (taken != null) {
+            byte[] frame = FrameCodec.encode(FrameCodec.TYPE_ROUTE, (byte) 0, taken, 0, takenLength);
+            for (MeshLink link : node.links()) {
+                if (link != this) {
+                    link.outbound.offer(OutboundQueue.LANE_CONTROL, frame);
+                }
+            }
+        }
+    }
+
+    void sendPing() {
+        long now = node.clock.nanoTime();
+        byte[] ping = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            ping[i] = (byte) (now >>> (56 - 8 * i));
+        }
+        outbound.offer(OutboundQueue.LANE_CONTROL, FrameCodec.encode(FrameCodec.TYPE_PING, ping));
+    }
+
+    private void onPong(byte[] buffer, int offset, int length) {
+        if (length != 8) {
+            return;
+        }
+        long sent = 0;
+        for (int i = 0; i < 8; i++) {
+            sent = (sent << 8) | (buffer[offset + i] & 0xFF);
+        }
+        long now = node.clock.nanoTime();
+        metrics.rttNanos.record(now - sent);
+        if (limiter != null) {
+            limiter.onRtt(now - sent, now);
+        }
+    }
+
+    /**
+     * Whether a frame relayed from {@code source} may be queued here. SOS is always
+     * relayed; other frames share the link fairly between sources once it is congested.
+     */
+    boolean admitRelay(byte type, MeshLink source, long nowNanos) {
+        if (type == FrameCodec.TYPE_SOS) {
+            return true;
+        }
+        boolean congested = outbound.laneSize(OutboundQueue.LANE_CHAT) >= RELAY_CONGESTION_FRAMES;
+        if (relayShare.admit(source.address, congested, nowNanos)) {
+            return true;
+        }
+        metrics.relaysShed.increment();
+        return false;
+    }
+
+    private void onHello(byte[] buffer, int offset, int length) {
+        int caps = length >= 1 ? buffer[offset] : 0;
+        if (compressor != null && host != null && length >= 5 && (caps & CAP_COMPRESSION) != 0
+                && ReliableChannel.readInt(buffer, offset + 1) == compressor.getDictionaryId()) {
+            Log.d(TAG, "compression enabled for " + address);
+            host.onCompressionAgreed(compressor);
+        }
+        // Peers from before reliable delivery send a 5-byte hello and get plain frames.
+        boolean reliable = length >= 9 && (caps & CAP_RELIABLE) != 0;
+        int peerSession = reliable ? ReliableChannel.readInt(buffer, offset + 5) : 0;
+        metrics.retransmits.add(channel.attach(outbound, reliable, peerSession));
+        // One side starts reconciling history; peers without reliable delivery predate it.
+        if (reliable && node.session < peerSession) {
+            long since = node.clock.currentTimeMillis() / 1000 - MeshNode.SYNC_HORIZON_SECONDS;
+            outbound.offer(OutboundQueue.LANE_CONTROL,
+                    FrameCodec.encode(FrameCodec.TYPE_SYNC, node.history.initiate(since)));
+        }
+        if (host != null && (caps & CAP_FILES) != 0) {
+            host.onPeerTakesFiles();
+        }
+    }
+
+    @Override
+    public void onFrame(byte type, byte flags, byte[] buffer, int offset, int length) throws IOException {
+        if ((flags & FrameCodec.FLAG_COMPRESSED) != 0) {
+            if (compressor == null) {
+                throw new IOException("Compressed frame on a link without compression");
+            }
+            if (inflated == null) {
+                inflated = new byte[FrameCodec.MAX_PAYLOAD];
+            }
+            length = compressor.decompress(buffer, offset, length, inflated);
+            buffer = inflated;
+            offset = 0;
+        }
+
+        metrics.framesIn.increment();
+        switch (type) {
+            case FrameCodec.TYPE_HELLO:
+                onHello(buffer, offset, length);
+                break;
+            case FrameCodec.TYPE_PING:
+                outbound.offer(OutboundQueue.LANE_CONTROL,
+                        FrameCodec.encode(FrameCodec.TYPE_PONG, (byte) 0, buffer, offset, length));
+                break;
+            case FrameCodec.TYPE_PONG:
+                onPong(buffer, offset, length);
+                break;
+            case FrameCodec.TYPE_FILE_OFFER:
+            case FrameCodec.TYPE_FILE_CHUNK:
+            case FrameCodec.TYPE_FILE_ACK:
+                if (host != null) {
+                    host.onFileFrame(type, buffer, offset, length);
+                }
+                break;
+            case FrameCodec.TYPE_ACK:
+                if (length >= 1 + ReliableChannel.SEQ_SIZE && buffer[offset] >= 0
+                        && buffer[offset] <= ReliableChannel.STREAM_CHAT) {
+                    channel.onAck(buffer[offset], ReliableChannel.readInt(buffer, offset + 1), limiter);
+                }
+                break;
+            case FrameCodec.TYPE_ROUTE:
+                onRoutes(buffer, offset, length);
+                break;
+            case FrameCodec.TYPE_SYNC:
+                onSync(buffer, offset, length);
+                break;
+            case FrameCodec.TYPE_SYNC_NEED:
+                pushHistory(node.history.onNeed(buffer, offset, length));
+                break;
+            case FrameCodec.TYPE_CHAT:
+            case FrameCodec.TYPE_SOS:
+            case FrameCodec.TYPE_DIRECT:
+                if ((flags & FrameCodec.FLAG_SEQUENCED) != 0) {
+                    if (length < ReliableChannel.SEQ_SIZE || !channel.accept(ReliableChannel.streamFor(type),
+                            ReliableChannel.readInt(buffer, offset))) {
+                        break;
+                    }
+                    offset += ReliableChannel.SEQ_SIZE;
+                    length -= ReliableChannel.SEQ_SIZE;
+                }
+                if (length < MeshPacket.HEADER_SIZE) {
+                    break;
+                }
+                long messageId = MeshPacket.readMessageId(buffer, offset);
+                if (!node.seenMessages.add(messageId)) {
+                    break;
+                }
+                if (type == FrameCodec.TYPE_DIRECT) {
+                    onDirect(buffer, offset, length);
+                    break;
+                }
+                node.history.add(type, buffer, offset, length);
+                node.deliver(this, type, buffer, offset, length);
+                node.relay(this, type, buffer, offset, length);
+                break;
+            default:
+                Log.w(TAG, "Dropping frame of unknown type " + type);
+                break;
+        }
+    }
+
+    private void onSync(byte[] buffer, int offset, int length) throws IOException {
+        MessageHistory.Reply reply = node.history.respond(buffer, offset, length);
+        for (byte[] payload : reply.syncPayloads) {
+            outbound.offer(OutboundQueue.LANE_CONTROL, FrameCodec.encode(FrameCodec.TYPE_SYNC, payload));
+        }
+        for (byte[] payload : reply.needPayloads) {
+            outbound.offer(OutboundQueue.LANE_CONTROL, FrameCodec.encode(FrameCodec.TYPE_SYNC_NEED, payload));
+        }
+        pushHistory(reply.push);
+    }
+
+    /**
+     * Sends messages the peer missed, SOS first and newest first. They go out with one
+     * hop left: the peer shows them but does not relay them, since its other
+     * neighbours reconcile with it themselves.
+     */
+    private void pushHistory(List<MessageHistory.Stored> missing) {
+        for (int i = 0; i < missing.size() && i < SYNC_PUSH_LIMIT; i++) {
+            MessageHistory.Stored stored = missing.get(i);
+            stored.packet[MeshPacket.TTL_OFFSET] = 1;
+            channel.send(stored.type, stored.packet);
+        }
+    }
+
+    private void onDirect(byte[] buffer, int offset, int length) {
+        if (length < MeshNode.DIRECT_HEADER_SIZE) {
+            return;
+        }
+        if (ReliableChannel.readInt(buffer, offset + MeshPacket.HEADER_SIZE) != node.nodeId) {
+            node.relay(this, FrameCodec.TYPE_DIRECT, buffer, offset, length);
+            return;
+        }
+        node.deliver(this, FrameCodec.TYPE_DIRECT, buffer, offset, length);
+    }
+}
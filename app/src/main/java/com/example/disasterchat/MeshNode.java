@@ -0,0 +1,230 @@
+package com.example.disasterchat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What a mesh node keeps across its links: its id, the messages it has seen, routes to
+ * other nodes, recent history for reconciliation, and the links that are open. New
+ * messages are flooded to every link, or sent along their route when directed; relays
+ * go to every link but the one they came in on. What happens on each link is in
+ * {@link MeshLink}. {@link BluetoothChatService} runs one node over real transports; a
+ * simulation can run many over virtual links, on virtual time through its {@link Clock}.
+ */
+public class MeshNode {
+    static final int SEEN_GENERATION_SIZE = 4096;
+    static final int ROUTE_CAPACITY = 256;
+    /** {@code [u32 node][u32 sequence][u8 hops]}, repeated in a ROUTE frame. */
+    static final int ROUTE_ENTRY_SIZE = 9;
+    /** DIRECT packets carry the destination node id right after the mesh header. */
+    static final int DIRECT_HEADER_SIZE = MeshPacket.HEADER_SIZE + 4;
+    static final int HISTORY_CAPACITY = 4096;
+    /** Messages older than this are not reconciled when peers link up. */
+    static final long SYNC_HORIZON_SECONDS = 6 * 3600;
+
+    /** Receives messages new to this node, on the thread of the link they came in on. */
+    public interface Listener {
+        /**
+         * A chat or SOS packet, or a DIRECT packet addressed to this node, at
+         * {@code buffer[offset..offset+length)}; only valid during the call.
+         */
+        void onMessage(MeshLink link, byte type, byte[] buffer, int offset, int length);
+    }
+
+    final int nodeId;
+    /** Announced in hellos; a new one tells peers this node restarted and lost its receive state. */
+    final int session;
+    final Clock clock;
+    final DuplicateFilter seenMessages = new DuplicateFilter(SEEN_GENERATION_SIZE);
+    final RoutingTable routes = new RoutingTable(ROUTE_CAPACITY);
+    final MessageHistory history = new MessageHistory(HISTORY_CAPACITY);
+    private final AtomicInteger messageCounter = new AtomicInteger();
+    private final AtomicInteger routeSequence = new AtomicInteger();
+    private final Listener listener;
+    /** Replaced on every change, for the send path to read without locking. */
+    private volatile MeshLink[] links = new MeshLink[0];
+
+    /** For a node whose id is never reused, which can then double as its session. */
+    public MeshNode(int nodeId, Clock clock, Listener listener) {
+        this(nodeId, nodeId, clock, listener);
+    }
+
+    /**
+     * A node that keeps its id across restarts needs a fresh {@code session} each time.
+     * The message counter starts at the clock's epoch second, so a restarted node does
+     * not reuse ids from an earlier run even for messages {@link #restore} never saw.
+     */
+    public MeshNode(int nodeId, int session, Clock clock, Listener listener) {
+        this.nodeId = nodeId;
+        this.session = session;
+        this.clock = clock;
+        this.listener = listener;
+        messageCounter.set((int) (clock.currentTimeMillis() / 1000));
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    /** Links that are up, in the order they came up. */
+    MeshLink[] links() {
+        return links;
+    }
+
+    /** Makes {@code link} a target for new messages, relays and route announcements. */
+    synchronized void linkUp(MeshLink link) {
+        MeshLink[] grown = Arrays.copyOf(links, links.length + 1);
+        grown[links.length] = link;
+        links = grown;
+    }
+
+    /** Stops using {@code link} and forgets the routes learned through it. */
+    synchronized void linkDown(MeshLink link) {
+        List<MeshLink> remaining = new ArrayList<>(Arrays.asList(links));
+        if (remaining.remove(link)) {
+            links = remaining.toArray(new MeshLink[0]);
+            routes.removeVia(link.address);
+        }
+    }
+
+    /** A fresh id for a message from this node, already marked seen so its echoes are dropped. */
+    long newMessageId() {
+        long messageId = MeshPacket.messageId(nodeId, messageCounter.incrementAndGet());
+        seenMessages.add(messageId);
+        return messageId;
+    }
+
+    /**
+     * Takes back a message this node had before it restarted: it is marked seen, so its
+     * echoes and reconciliation leave it alone; chat and SOS within the sync horizon are
+     * kept for reconciliation again; and new ids from this node continue past its own.
+     */
+    void restore(byte type, byte[] packet) {
+        long messageId = MeshPacket.readMessageId(packet, 0);
+        seenMessages.add(messageId);
+        long horizon = clock.currentTimeMillis() - SYNC_HORIZON_SECONDS * 1000;
+        if (type != FrameCodec.TYPE_DIRECT && MeshPacket.readTimestampMillis(packet, 0) >= horizon) {
+            history.add(type, packet, 0, packet.length);
+        }
+        if (MeshPacket.originOf(messageId) == nodeId) {
+            int counter = (int) messageId;
+            messageCounter.accumulateAndGet(counter, (current, restored) ->
+                    Integer.compareUnsigned(restored, current) > 0 ? restored : current);
+        }
+    }
+
+    int routeSequence() {
+        return routeSequence.get();
+    }
+
+    /**
+     * Sends a packet made here under an id from {@link #newMessageId}. Chat and SOS are
+     * kept for reconciliation and flooded; DIRECT goes along its route. The future
+     * completes when every linked peer it went to has acknowledged it, or fails with the
+     * first link error, or at once when no link is up. The packet is in
+     * {@code buffer[offset..offset+length)} and copied before this returns.
+     */
+    CompletableFuture<Void> originate(byte type, byte[] buffer, int offset, int length) {
+        MeshLink[] targets = links;
+        if (type != FrameCodec.TYPE_DIRECT) {
+            history.add(type, buffer, offset, length);
+        } else {
+            MeshLink next = nextHop(buffer, offset, null);
+            if (next != null) {
+                return next.channel.send(type, buffer, offset, length);
+            }
+        }
+        if (targets.length == 0) {
+            CompletableFuture<Void> notConnected = new CompletableFuture<>();
+            notConnected.completeExceptionally(new IOException("Not connected"));
+            return notConnected;
+        }
+        CompletableFuture<?>[] results = new CompletableFuture<?>[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            results[i] = targets[i].channel.send(type, buffer, offset, length);
+        }
+        return CompletableFuture.allOf(results);
+    }
+
+    /**
+     * Passes on a packet that came in on {@code source}, one hop closer to its end. The
+     * TTL is lowered in place, so the packet must not be read for anything else after.
+     */
+    void relay(MeshLink source, byte type, byte[] buffer, int offset, int length) {
+        int ttl = MeshPacket.readTtl(buffer, offset);
+        if (ttl <= 1) {
+            return;
+        }
+        buffer[offset + MeshPacket.TTL_OFFSET] = (byte) (ttl - 1);
+        long now = clock.nanoTime();
+        if (type == FrameCodec.TYPE_DIRECT) {
+            MeshLink next = nextHop(buffer, offset, source);
+            if (next != null) {
+                if (next.admitRelay(type, source, now)) {
+                    next.channel.send(type, buffer, offset, length);
+                }
+                return;
+            }
+        }
+        for (MeshLink link : links) {
+            if (link != source && link.admitRelay(type, source, now)) {
+                link.channel.send(type, buffer, offset, length);
+            }
+        }
+    }
+
+    /**
+     * The link on the route to a DIRECT packet's destination, other than {@code source}.
+     * With no route the packet is flooded instead, and the first node that knows a route
+     * narrows it again.
+     */
+    private MeshLink nextHop(byte[] packet, int offset, MeshLink source) {
+        int destination = ReliableChannel.readInt(packet, offset + MeshPacket.HEADER_SIZE);
+        String nextHop = routes.nextHop(destination, clock.currentTimeMillis());
+        if (nextHop != null) {
+            for (MeshLink link : links) {
+                if (link != source && link.address.equals(nextHop)) {
+                    return link;
+                }
+            }
+        }
+        return null;
+    }
+
+    void deliver(MeshLink link, byte type, byte[] buffer, int offset, int length) {
+        listener.onMessage(link, type, buffer, offset, length);
+    }
+
+    /** True if a live route to {@code node} is known. */
+    boolean hasRouteTo(int node) {
+        return routes.nextHop(node, clock.currentTimeMillis()) != null;
+    }
+
+    /** Announces this node on every link with a new sequence number, and drops lapsed routes. */
+    void announceRoute() {
+        routes.expire(clock.currentTimeMillis());
+        byte[] entry = new byte[ROUTE_ENTRY_SIZE];
+        writeRouteEntry(entry, 0, nodeId, routeSequence.incrementAndGet(), 0);
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_ROUTE, entry);
+        for (MeshLink link : links) {
+            link.outbound.offer(OutboundQueue.LANE_CONTROL, frame);
+        }
+    }
+
+    static void writeRouteEntry(byte[] dst, int offset, int node, int sequence, int hops) {
+        writeInt(dst, offset, node);
+        writeInt(dst, offset + 4, sequence);
+        dst[offset + 8] = (byte) hops;
+    }
+
+    static void writeInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >>> 24);
+        dst[offset + 1] = (byte) (value >>> 16);
+        dst[offset + 2] = (byte) (value >>> 8);
+        dst[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.disasterchat;
+
+/**
+ * Mesh envelope carried at the start of every chat and SOS payload:
+ * [u64 message id][u8 hops left][u32 origin time, epoch seconds][body]. The upper 32 bits
+ * of the message id are the originating node id, the lower 32 bits that node's message
+ * counter.
+ */
+public final class MeshPacket {
+    public static final int HEADER_SIZE = 13;
+    public static final int TTL_OFFSET = 8;
+    public static final int DEFAULT_TTL = 8;
+
+    private MeshPacket() {
+    }
+
+    public static long messageId(int nodeId, int counter) {
+        return ((long) nodeId << 32) | (counter & 0xFFFFFFFFL);
+    }
+
+    public static int originOf(long messageId) {
+        return (int) (messageId >>> 32);
+    }
+
+    public static byte[] encode(long messageId, int ttl, long timestampMillis, byte[] body) {
+        byte[] payload = new byte[HEADER_SIZE + body.length];
+        writeHeader(messageId, ttl, timestampMillis, payload, 0);
+        System.arraycopy(body, 0, payload, HEADER_SIZE, body.length);
+        return payload;
+    }
+
+    public static void writeHeader(long messageId, int ttl, long timestampMillis, byte[] dst, int offset) {
+        for (int i = 0; i < 8; i++) {
+            dst[offset + i] = (byte) (messageId >>> (56 - 8 * i));
+        }
+        dst[offset + TTL_OFFSET] = (byte) ttl;
+        int seconds = (int) (timestampMillis / 1000);
+        for (int i = 0; i < 4; i++) {
+            dst[offset + 9 + i] = (byte) (seconds >>> (24 - 8 * i));
+        }
+    }
+
+    public static long readMessageId(byte[] buffer, int offset) {
+        long id = 0;
+        for (int i = 0; i < 8; i++) {
+            id = (id << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return id;
+    }
+
+    public static int readTtl(byte[] buffer, int offset) {
+        return buffer[offset + TTL_OFFSET] & 0xFF;
+    }
+
+    public static long readTimestampMillis(byte[] buffer, int offset) {
+        long seconds = 0;
+        for (int i = 0; i < 4; i++) {
+            seconds = (seconds << 8) | (buffer[offset + 9 + i] & 0xFF);
+        }
+        return seconds * 1000;
+    }
+}
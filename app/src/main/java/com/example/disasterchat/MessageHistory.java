@@ -0,0 +1,390 @@
+package com.example.disasterchat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Recent chat and SOS packets by message id, and range-based reconciliation of two
+ * peers' sets when they link up. The initiator sends a fingerprint (count and XOR of
+ * mixed ids) of its whole set; each side answers a range whose fingerprint differs from
+ * its own by splitting it at its median id, or, once it holds few ids there, by listing
+ * them. A listed range is settled directly: the other side sends what the list lacks and
+ * asks for what it lacks itself. Matching ranges cost nothing further, so the bytes
+ * exchanged grow with the difference (times a log factor), not with the history.
+ *
+ * <pre>
+ * SYNC [u32 since, epoch seconds] then ranges:
+ *      [u64 lo][u64 hi] [u8 0][u32 count][u64 fingerprint]   or   [u8 1][u16 n][u64 id] x n
+ * NEED [u64 id] x n
+ * </pre>
+ *
+ * Only messages sent at or after {@code since} take part, so both sides compare the same
+ * window whatever else they remember.
+ */
+public class MessageHistory {
+    static final int IDS_THRESHOLD = 16;
+    private static final byte RANGE_FINGERPRINT = 0;
+    private static final byte RANGE_IDS = 1;
+    private static final int MAX_SYNC_PAYLOAD = 32 * 1024;
+    private static final int MAX_IDS_PER_NEED = 4096;
+    /** Packet room per message the history can hold; chat and SOS packets are mostly smaller. */
+    static final int ARENA_BYTES_PER_MESSAGE = 256;
+
+    /** SOS before chat, then newest first: the order missing messages are sent in. */
+    static final Comparator<Stored> PUSH_ORDER = (a, b) -> {
+        boolean sosA = a.type == FrameCodec.TYPE_SOS;
+        boolean sosB = b.type == FrameCodec.TYPE_SOS;
+        if (sosA != sosB) {
+            return sosA ? -1 : 1;
+        }
+        int newer = Long.compare(b.millis, a.millis);
+        return newer != 0 ? newer : Long.compare(b.id, a.id);
+    };
+
+    public static final class Stored {
+        public final long id;
+        public final byte type;
+        /** A copy of the mesh packet as first received, the caller's to keep. */
+        public final byte[] packet;
+        final long millis;
+
+        Stored(long id, byte type, byte[] packet, long millis) {
+            this.id = id;
+            this.type = type;
+            this.packet = packet;
+            this.millis = millis;
+        }
+    }
+
+    /** What to do after reading a SYNC frame. */
+    public static final class Reply {
+        public final List<byte[]> syncPayloads = new ArrayList<>();
+        public final List<byte[]> needPayloads = new ArrayList<>();
+        /** Messages the peer lacks, in {@link #PUSH_ORDER}. */
+        public final List<Stored> push = new ArrayList<>();
+
+        public boolean isEmpty() {
+            return syncPayloads.isEmpty() && needPayloads.isEmpty() && push.isEmpty();
+        }
+    }
+
+    private final int capacity;
+    /** Packets back to back in arrival order, wrapping around; see {@link #place}. */
+    private final byte[] arena;
+    private int arenaHead;
+
+    // Slots form a ring in arrival order, starting at first.
+    private final long[] slotId;
+    private final byte[] slotType;
+    private final long[] slotMillis;
+    private final int[] slotOffset;
+    private final int[] slotLength;
+    private int first;
+    private int count;
+
+    /** Ids of the stored messages in ascending order, and the slot holding each. */
+    private final long[] sortedIds;
+    private final int[] sortedSlots;
+
+    /**
+     * Remembers up to {@code capacity} messages. Their packets share room for
+     * {@link #ARENA_BYTES_PER_MESSAGE} each, so many large ones make it remember fewer;
+     * all of it is allocated up front, and adding never allocates.
+     */
+    public MessageHistory(int capacity) {
+        this.capacity = capacity;
+        this.arena = new byte[Math.max(FrameCodec.MAX_PAYLOAD, capacity * ARENA_BYTES_PER_MESSAGE)];
+        this.slotId = new long[capacity];
+        this.slotType = new byte[capacity];
+        this.slotMillis = new long[capacity];
+        this.slotOffset = new int[capacity];
+        this.slotLength = new int[capacity];
+        this.sortedIds = new long[capacity];
+        this.sortedSlots = new int[capacity];
+    }
+
+    /** Keeps a copy of the packet; the oldest arrivals are forgotten to make room. */
+    public synchronized boolean add(byte type, byte[] buffer, int offset, int length) {
+        long id = MeshPacket.readMessageId(buffer, offset);
+        int index = Arrays.binarySearch(sortedIds, 0, count, id);
+        if (index >= 0 || length > arena.length) {
+            return false;
+        }
+        boolean evicted = false;
+        while (count == capacity || !place(length)) {
+            evictOldest();
+            evicted = true;
+        }
+        if (evicted) {
+            index = Arrays.binarySearch(sortedIds, 0, count, id);
+        }
+        int slot = (first + count) % capacity;
+        slotId[slot] = id;
+        slotType[slot] = type;
+        slotMillis[slot] = MeshPacket.readTimestampMillis(buffer, offset);
+        slotOffset[slot] = arenaHead;
+        slotLength[slot] = length;
+        System.arraycopy(buffer, offset, arena, arenaHead, length);
+        arenaHead += length;
+
+        int at = -index - 1;
+        System.arraycopy(sortedIds, at, sortedIds, at + 1, count - at);
+        System.arraycopy(sortedSlots, at, sortedSlots, at + 1, count - at);
+        sortedIds[at] = id;
+        sortedSlots[at] = slot;
+        count++;
+        return true;
+    }
+
+    /**
+     * Points {@link #arenaHead} at room for {@code length} bytes after the newest packet,
+     * wrapping to the start of the arena when the end is too near; false if the oldest
+     * packets are in the way.
+     */
+    private boolean place(int length) {
+        if (count == 0) {
+            arenaHead = 0;
+            return true;
+        }
+        int tail = slotOffset[first];
+        if (arenaHead > tail) {
+            if (arenaHead + length <= arena.length) {
+                return true;
+            }
+            if (length <= tail) {
+                arenaHead = 0;
+                return true;
+            }
+            return false;
+        }
+        return arenaHead + length <= tail;
+    }
+
+    private void evictOldest() {
+        int index = Arrays.binarySearch(sortedIds, 0, count, slotId[first]);
+        System.arraycopy(sortedIds, index + 1, sortedIds, index, count - index - 1);
+        System.arraycopy(sortedSlots, index + 1, sortedSlots, index, count - index - 1);
+        first = (first + 1) % capacity;
+        count--;
+    }
+
+    public synchronized boolean contains(long id) {
+        return Arrays.binarySearch(sortedIds, 0, count, id) >= 0;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /** A copy of what {@code slot} holds, safe to keep after the slot is reused. */
+    private Stored stored(int slot) {
+        int offset = slotOffset[slot];
+        return new Stored(slotId[slot], slotType[slot], Arrays.copyOfRange(arena, offset, offset + slotLength[slot]),
+                slotMillis[slot]);
+    }
+
+    /** The first SYNC payload, covering every id. */
+    public synchronized byte[] initiate(long sinceSeconds) {
+        SyncWriter out = new SyncWriter(sinceSeconds);
+        emit(Long.MIN_VALUE, Long.MAX_VALUE, inRange(Long.MIN_VALUE, Long.MAX_VALUE, sinceSeconds), out);
+        return out.finish().get(0);
+    }
+
+    public synchronized Reply respond(byte[] buffer, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer, offset, length));
+        long since = in.readInt() & 0xFFFFFFFFL;
+        Reply reply = new Reply();
+        SyncWriter out = new SyncWriter(since);
+        List<Long> need = new ArrayList<>();
+
+        while (in.available() > 0) {
+            long lo = in.readLong();
+            long hi = in.readLong();
+            byte kind = in.readByte();
+            List<Stored> mine = inRange(lo, hi, since);
+            if (kind == RANGE_FINGERPRINT) {
+                int count = in.readInt();
+                long fingerprint = in.readLong();
+                if (count != mine.size() || fingerprint != fingerprint(mine)) {
+                    split(lo, hi, mine, out);
+                }
+            } else if (kind == RANGE_IDS) {
+                int n = in.readUnsignedShort();
+                Set<Long> theirs = new HashSet<>();
+                for (int i = 0; i < n; i++) {
+                    long id = in.readLong();
+                    theirs.add(id);
+                    if (!contains(id)) {
+                        need.add(id);
+                    }
+                }
+                for (Stored s : mine) {
+                    if (!theirs.contains(s.id)) {
+                        reply.push.add(s);
+                    }
+                }
+            } else {
+                throw new IOException("Unknown range kind " + kind);
+            }
+        }
+
+        reply.syncPayloads.addAll(out.finish());
+        for (int from = 0; from < need.size(); from += MAX_IDS_PER_NEED) {
+            List<Long> ids = need.subList(from, Math.min(need.size(), from + MAX_IDS_PER_NEED));
+            byte[] payload = new byte[ids.size() * 8];
+            for (int i = 0; i < ids.size(); i++) {
+                writeLong(payload, i * 8, ids.get(i));
+            }
+            reply.needPayloads.add(payload);
+        }
+        reply.push.sort(PUSH_ORDER);
+        return reply;
+    }
+
+    /** Messages asked for in a NEED payload that are still here, in {@link #PUSH_ORDER}. */
+    public synchronized List<Stored> onNeed(byte[] buffer, int offset, int length) {
+        List<Stored> found = new ArrayList<>();
+        for (int i = offset; i + 8 <= offset + length; i += 8) {
+            int index = Arrays.binarySearch(sortedIds, 0, count, MeshPacket.readMessageId(buffer, i));
+            if (index >= 0) {
+                found.add(stored(sortedSlots[index]));
+            }
+        }
+        found.sort(PUSH_ORDER);
+        return found;
+    }
+
+    private List<Stored> inRange(long lo, long hi, long since) {
+        List<Stored> result = new ArrayList<>();
+        int index = Arrays.binarySearch(sortedIds, 0, count, lo);
+        for (int i = index >= 0 ? index : -index - 1; i < count && sortedIds[i] <= hi; i++) {
+            int slot = sortedSlots[i];
+            if (slotMillis[slot] >= since * 1000) {
+                result.add(stored(slot));
+            }
+        }
+        return result;
+    }
+
+    /** Answers a mismatched range: list it if small, otherwise halve it at the median id. */
+    private static void split(long lo, long hi, List<Stored> mine, SyncWriter out) {
+        if (mine.size() <= IDS_THRESHOLD) {
+            out.ids(lo, hi, mine);
+            return;
+        }
+        int half = mine.size() / 2;
+        long mid = mine.get(half).id;
+        emit(lo, mid - 1, mine.subList(0, half), out);
+        emit(mid, hi, mine.subList(half, mine.size()), out);
+    }
+
+    private static void emit(long lo, long hi, List<Stored> mine, SyncWriter out) {
+        if (mine.size() <= IDS_THRESHOLD) {
+            out.ids(lo, hi, mine);
+        } else {
+            out.fingerprint(lo, hi, mine.size(), fingerprint(mine));
+        }
+    }
+
+    static long fingerprint(List<Stored> stored) {
+        long fingerprint = 0;
+        for (Stored s : stored) {
+            fingerprint ^= mix(s.id);
+        }
+        return fingerprint;
+    }
+
+    /** SplitMix64 finalizer, so neighbouring ids don't cancel out under XOR. */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static void writeLong(byte[] dst, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            dst[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+
+    /**
+     * Collects ranges into SYNC payloads, starting a new one before it gets too large.
+     * Writes go to memory, so the stream never actually throws.
+     */
+    private static final class SyncWriter {
+        private final long since;
+        private final List<byte[]> payloads = new ArrayList<>();
+        private ByteArrayOutputStream bytes;
+        private DataOutputStream out;
+        private boolean empty;
+
+        SyncWriter(long since) {
+            this.since = since;
+            start();
+        }
+
+        private void start() {
+            bytes = new ByteArrayOutputStream();
+            out = new DataOutputStream(bytes);
+            empty = true;
+            try {
+                out.writeInt((int) since);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private void next() {
+            if (bytes.size() > MAX_SYNC_PAYLOAD) {
+                payloads.add(bytes.toByteArray());
+                start();
+            }
+            empty = false;
+        }
+
+        void fingerprint(long lo, long hi, int count, long fingerprint) {
+            next();
+            try {
+                out.writeLong(lo);
+                out.writeLong(hi);
+                out.writeByte(RANGE_FINGERPRINT);
+                out.writeInt(count);
+                out.writeLong(fingerprint);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        void ids(long lo, long hi, List<Stored> stored) {
+            next();
+            try {
+                out.writeLong(lo);
+                out.writeLong(hi);
+                out.writeByte(RANGE_IDS);
+                out.writeShort(stored.size());
+                for (Stored s : stored) {
+                    out.writeLong(s.id);
+                }
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        /** Payloads holding at least one range; empty if nothing was written. */
+        List<byte[]> finish() {
+            if (!empty) {
+                payloads.add(bytes.toByteArray());
+            }
+            return payloads;
+        }
+    }
+}
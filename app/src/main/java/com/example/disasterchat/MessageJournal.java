@@ -0,0 +1,290 @@
+package com.example.disasterchat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only message log split into fixed-size memory-mapped segments. A record is
+ * [u32 length][u32 crc32][bytes]; a zero length marks the end of a segment's data, and a
+ * record whose checksum does not match is treated as a torn tail and cut off on open.
+ * Every record gets a sequence number, and each segment file is named after the sequence
+ * of its first record, so ranges can be read back without an in-memory index.
+ * <p>
+ * Appends are a copy into the mapped page cache, so they survive the process being
+ * killed straight away; {@code force()} to the disk is batched on a background timer and
+ * runs outside the journal's lock, so appends never wait on an msync. Only the newest
+ * {@code maxSegments} segments are kept; sealed ones are mapped read-only once, on first
+ * read, and that map is reused until the segment is compacted away or the journal closes.
+ */
+public class MessageJournal implements Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+    public static final int DEFAULT_MAX_SEGMENTS = 16;
+    private static final int RECORD_HEADER = 8;
+    private static final long FLUSH_INTERVAL_MS = 500;
+    private static final String SUFFIX = ".seg";
+
+    private static final class Scan {
+        int end;
+        int records;
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final List<Long> segments = new ArrayList<>();
+    private final Map<Long, MappedByteBuffer> sealed = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+    private final ScheduledExecutorService flusher;
+
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private long nextSequence;
+    private boolean dirty;
+
+    public MessageJournal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    public MessageJournal(File directory, int segmentSize, int maxSegments) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+
+        String[] names = directory.list((dir, name) -> name.endsWith(SUFFIX));
+        if (names != null) {
+            for (String name : names) {
+                segments.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+            }
+        }
+        segments.sort(null);
+
+        if (segments.isEmpty()) {
+            openSegment(0);
+        } else {
+            long first = segments.get(segments.size() - 1);
+            openSegment(first);
+            Scan scan = scan(mapped.duplicate(), 0, Integer.MAX_VALUE, null);
+            truncateTornTail(scan.end);
+            nextSequence = first + scan.records;
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "JournalFlusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly,
+                FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Appends a record and returns its sequence number. */
+    public synchronized long append(byte[] record) throws IOException {
+        return append(record, 0, record.length);
+    }
+
+    public synchronized long append(byte[] record, int offset, int length) throws IOException {
+        if (length <= 0 || RECORD_HEADER + length > segmentSize) {
+            throw new IllegalArgumentException("Record length " + length + " out of range");
+        }
+        if (mapped == null) {
+            throw new IOException("Journal closed");
+        }
+        if (mapped.remaining() < RECORD_HEADER + length) {
+            roll();
+        }
+        crc.reset();
+        crc.update(record, offset, length);
+        int start = mapped.position();
+        mapped.position(start + 4);
+        mapped.putInt((int) crc.getValue());
+        mapped.put(record, offset, length);
+        // Length goes in last so a torn write never looks like a complete record.
+        mapped.putInt(start, length);
+        dirty = true;
+        return nextSequence++;
+    }
+
+    /** Sequence number of the oldest record still retained. */
+    public synchronized long firstSequence() {
+        return segments.get(0);
+    }
+
+    /** Sequence number the next append will get. */
+    public synchronized long nextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Reads up to {@code count} records starting at {@code fromSequence} (clamped to the
+     * oldest retained record), oldest first.
+     */
+    public synchronized void read(long fromSequence, int count, Consumer<byte[]> consumer) throws IOException {
+        fromSequence = Math.max(fromSequence, firstSequence());
+        int index = segments.size() - 1;
+        while (index > 0 && segments.get(index) > fromSequence) {
+            index--;
+        }
+        long skip = fromSequence - segments.get(index);
+        for (; index < segments.size() && count > 0; index++) {
+            long segment = segments.get(index);
+            ByteBuffer buffer = index == segments.size() - 1 ? mapped.duplicate() : mapReadOnly(segment);
+            Scan scan = scan(buffer, skip, count, consumer);
+            count -= Math.max(0, scan.records - skip);
+            skip = 0;
+        }
+    }
+
+    /** Replays every surviving record, oldest first. */
+    public synchronized void replay(Consumer<byte[]> consumer) throws IOException {
+        read(firstSequence(), Integer.MAX_VALUE, consumer);
+    }
+
+    public void flush() throws IOException {
+        MappedByteBuffer target;
+        synchronized (this) {
+            if (!dirty || mapped == null) {
+                return;
+            }
+            target = mapped;
+            dirty = false;
+        }
+        try {
+            target.force();
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flusher.shutdown();
+        flush();
+        sealed.clear();
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            mapped = null;
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException ignored) {
+            // The next flush or close retries; the data is already in the page cache.
+        }
+    }
+
+    private void roll() throws IOException {
+        // The full segment is synced by the flusher, not here under the lock, and its map
+        // is kept for reads; the mapping outlives the channel.
+        MappedByteBuffer full = mapped;
+        sealed.put(segments.get(segments.size() - 1), full);
+        flusher.execute(full::force);
+        dirty = false;
+        channel.close();
+        openSegment(nextSequence);
+        compact();
+    }
+
+    /** Drops the oldest segments beyond the retention limit. */
+    private void compact() {
+        while (segments.size() > maxSegments) {
+            long oldest = segments.remove(0);
+            sealed.remove(oldest);
+            File file = segmentFile(oldest);
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private void openSegment(long firstSequence) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segmentFile(firstSequence), "rw");
+        channel = file.getChannel();
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        if (!segments.contains(firstSequence)) {
+            segments.add(firstSequence);
+        }
+    }
+
+    private ByteBuffer mapReadOnly(long firstSequence) throws IOException {
+        MappedByteBuffer map = sealed.get(firstSequence);
+        if (map == null) {
+            try (RandomAccessFile file = new RandomAccessFile(segmentFile(firstSequence), "r")) {
+                map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            }
+            sealed.put(firstSequence, map);
+        }
+        return map.duplicate();
+    }
+
+    private File segmentFile(long firstSequence) {
+        return new File(directory, String.format(Locale.US, "%012d", firstSequence) + SUFFIX);
+    }
+
+    private void truncateTornTail(int end) {
+        mapped.position(end);
+        if (end + 4 <= segmentSize && mapped.getInt(end) != 0) {
+            while (mapped.hasRemaining()) {
+                mapped.put((byte) 0);
+            }
+            mapped.position(end);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Walks valid records from the start of {@code buffer}, handing records after the first
+     * {@code skip} to {@code consumer} until {@code limit} have been delivered.
+     */
+    private Scan scan(ByteBuffer buffer, long skip, int limit, Consumer<byte[]> consumer) {
+        Scan scan = new Scan();
+        CRC32 check = new CRC32();
+        int position = 0;
+        while (position + RECORD_HEADER <= buffer.limit() && scan.records - skip < limit) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER + length > buffer.limit()) {
+                break;
+            }
+            if (scan.records >= skip || consumer == null) {
+                byte[] record = new byte[length];
+                buffer.position(position + RECORD_HEADER);
+                buffer.get(record);
+                check.reset();
+                check.update(record, 0, length);
+                if ((int) check.getValue() != buffer.getInt(position + 4)) {
+                    break;
+                }
+                if (consumer != null) {
+                    consumer.accept(record);
+                }
+            }
+            scan.records++;
+            position += RECORD_HEADER + length;
+        }
+        scan.end = position;
+        return scan;
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.disasterchat;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.ViewGroup;
+import android.widget.TextView;
+import androidx.annotation.NonNull;
+import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.List;
+
+/**
+ * Shows a bounded window of the chat history. Rows live in a {@link RingBuffer}; every
+ * change is reported as a precise insert or remove so only the affected rows rebind.
+ */
+public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.Holder> {
+
+    static class Holder extends RecyclerView.ViewHolder {
+        final TextView textView;
+
+        Holder(TextView textView) {
+            super(textView);
+            this.textView = textView;
+        }
+    }
+
+    private final RingBuffer<ChatMessage> rows;
+    private final int white;
+    private final int[] colorByKind = new int[ChatMessage.KIND_COUNT];
+
+    public MessagesAdapter(Context context, int capacity) {
+        this.rows = new RingBuffer<>(capacity);
+        this.white = ContextCompat.getColor(context, R.color.white);
+        colorByKind[ChatMessage.KIND_SYSTEM] = ContextCompat.getColor(context, R.color.info_background);
+        colorByKind[ChatMessage.KIND_SENT] = ContextCompat.getColor(context, R.color.send_button);
+        colorByKind[ChatMessage.KIND_RECEIVED] = ContextCompat.getColor(context, R.color.discover_button);
+        colorByKind[ChatMessage.KIND_SOS_SENT] = ContextCompat.getColor(context, R.color.sos_button);
+        colorByKind[ChatMessage.KIND_SOS_RECEIVED] = colorByKind[ChatMessage.KIND_SOS_SENT];
+    }
+
+    @NonNull
+    @Override
+    public Holder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        TextView textView = (TextView) LayoutInflater.from(parent.getContext())
+                .inflate(android.R.layout.simple_list_item_1, parent, false);
+        textView.setTextColor(white);
+        textView.setPadding(16, 8, 16, 8);
+        return new Holder(textView);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull Holder holder, int position) {
+        ChatMessage message = rows.get(position);
+        holder.textView.setText(message.displayText);
+        holder.textView.setBackgroundColor(colorByKind[message.kind]);
+    }
+
+    @Override
+    public int getItemCount() {
+        return rows.size();
+    }
+
+    public void append(ChatMessage row) {
+        if (rows.addLast(row) != null) {
+            notifyItemRemoved(0);
+        }
+        notifyItemInserted(rows.size() - 1);
+    }
+
+    /**
+     * Prepends rows older than the current window (given oldest first); returns how many
+     * of the newest rows had to be evicted to make room.
+     */
+    public int prepend(List<ChatMessage> older) {
+        int evicted = 0;
+        for (int i = older.size() - 1; i >= 0; i--) {
+            if (rows.addFirst(older.get(i)) != null) {
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            notifyItemRangeRemoved(rows.size() - older.size(), evicted);
+        }
+        notifyItemRangeInserted(0, older.size());
+        return evicted;
+    }
+
+    public void clear() {
+        int count = rows.size();
+        rows.clear();
+        notifyItemRangeRemoved(0, count);
+    }
+
+    /** Lowest journal sequence in the window, or -1 if no row is journaled. */
+    public long oldestSequence() {
+        long oldest = -1;
+        for (int i = 0; i < rows.size(); i++) {
+            long sequence = rows.get(i).sequence;
+            if (sequence >= 0 && (oldest < 0 || sequence < oldest)) {
+                oldest = sequence;
+            }
+        }
+        return oldest;
+    }
+
+    /** Highest journal sequence in the window, or -1 if no row is journaled. */
+    public long newestSequence() {
+        long newest = -1;
+        for (int i = 0; i < rows.size(); i++) {
+            newest = Math.max(newest, rows.get(i).sequence);
+        }
+        return newest;
+    }
+}
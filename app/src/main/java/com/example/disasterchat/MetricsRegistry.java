@@ -0,0 +1,103 @@
+package com.example.disasterchat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-link {@link LinkMetrics} keyed by peer address, plus time spent in each service
+ * state. {@link #dump} writes everything as one line per link, e.g.
+ * <pre>
+ * link AA:BB:CC:DD:EE:FF up=1 connects=3 reconnects=2 failures=1 connected_ms=52000
+ *     bytes=1820/2210 frames=31/40 retransmits=2 rate=24576 shed=0 qdepth=0/3/5 write_us=120/950/1800
+ *     rtt_ms=14/33/41
+ * </pre>
+ * where pairs are in/out, triples are p50/p99/max and rate is the send rate in bytes/s.
+ */
+public class MetricsRegistry {
+    private final String[] stateNames;
+    private final long[] stateNanos;
+    private final long createdNanos = System.nanoTime();
+    private final ConcurrentHashMap<String, LinkMetrics> links = new ConcurrentHashMap<>();
+    private int state;
+    private long stateSince = createdNanos;
+
+    public MetricsRegistry(String... stateNames) {
+        this.stateNames = stateNames;
+        this.stateNanos = new long[stateNames.length];
+    }
+
+    /** Metrics for {@code address}, created on first use. */
+    public LinkMetrics link(String address) {
+        return links.computeIfAbsent(address, LinkMetrics::new);
+    }
+
+    public Collection<LinkMetrics> getLinks() {
+        return links.values();
+    }
+
+    synchronized void onStateChanged(int newState) {
+        long now = System.nanoTime();
+        stateNanos[state] += now - stateSince;
+        state = newState;
+        stateSince = now;
+    }
+
+    /** Total time spent in {@code state}, including the current stretch. */
+    public synchronized long getStateNanos(int state) {
+        long nanos = stateNanos[state];
+        return state == this.state ? nanos + System.nanoTime() - stateSince : nanos;
+    }
+
+    public void dump(File file) throws IOException {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            dump(out);
+        }
+    }
+
+    public void dump(Writer out) throws IOException {
+        long now = System.nanoTime();
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("metrics uptime_ms=").append(TimeUnit.NANOSECONDS.toMillis(now - createdNanos));
+        for (int i = 0; i < stateNames.length; i++) {
+            sb.append(' ').append(stateNames[i]).append("_ms=")
+                    .append(TimeUnit.NANOSECONDS.toMillis(getStateNanos(i)));
+        }
+        out.write(sb.append('\n').toString());
+
+        List<LinkMetrics> snapshot = new ArrayList<>(links.values());
+        for (LinkMetrics link : snapshot) {
+            sb.setLength(0);
+            sb.append("link ").append(link.getAddress())
+                    .append(" up=").append(link.isConnected() ? 1 : 0)
+                    .append(" connects=").append(link.getConnectCount())
+                    .append(" reconnects=").append(link.getReconnectCount())
+                    .append(" failures=").append(link.getConnectFailures())
+                    .append(" connected_ms=").append(TimeUnit.NANOSECONDS.toMillis(link.getConnectedNanos(now)))
+                    .append(" bytes=").append(link.getBytesIn()).append('/').append(link.getBytesOut())
+                    .append(" frames=").append(link.getFramesIn()).append('/').append(link.getFramesOut())
+                    .append(" retransmits=").append(link.getRetransmits())
+                    .append(" rate=").append(link.getSendRate())
+                    .append(" shed=").append(link.getRelaysShed());
+            appendSummary(sb, " qdepth=", link.getQueueDepth(), 1);
+            appendSummary(sb, " write_us=", link.getWriteLatencyNanos(), 1_000);
+            appendSummary(sb, " rtt_ms=", link.getRttNanos(), 1_000_000);
+            out.write(sb.append('\n').toString());
+        }
+        out.flush();
+    }
+
+    private static void appendSummary(StringBuilder sb, String label, Histogram h, long divisor) {
+        sb.append(label).append(h.getPercentile(0.5) / divisor)
+                .append('/').append(h.getPercentile(0.99) / divisor)
+                .append('/').append(h.getMax() / divisor);
+    }
+}
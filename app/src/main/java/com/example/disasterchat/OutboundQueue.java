@@ -0,0 +1,265 @@
+package com.example.disasterchat;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Per-link outbound frames split into priority lanes. The writer always drains the
+ * highest-priority non-empty lane first, so an SOS never waits behind a chat backlog.
+ * Each lane is bounded; offers to a full lane fail fast instead of blocking the caller.
+ * With a {@link RateLimiter} set, the next frame leaves only when the limiter lets it;
+ * lanes keep their order, so a frame held back also holds back the lanes below it.
+ */
+public class OutboundQueue {
+    public static final int LANE_SOS = 0;
+    public static final int LANE_CONTROL = 1;
+    public static final int LANE_CHAT = 2;
+    /** File chunks: only written when nothing else is waiting. */
+    public static final int LANE_BULK = 3;
+    static final int LANE_COUNT = 4;
+
+    /** Told when a frame offered with {@link #offerUnbounded(Entry)} has been written or dropped. */
+    public interface WriteListener {
+        /** {@code failure} is null once written. */
+        void onWritten(Entry entry, Throwable failure);
+    }
+
+    public static final class Entry {
+        /** The frame is {@code frame[0..length)}; the array may be larger. */
+        final byte[] frame;
+        final int length;
+        final int lane;
+        /** Null for an entry that reports to a {@link WriteListener} instead. */
+        final CompletableFuture<Void> result;
+        private final WriteListener listener;
+        long enqueuedNanos;
+
+        Entry(byte[] frame, int length, int lane) {
+            this.frame = frame;
+            this.length = length;
+            this.lane = lane;
+            this.result = new CompletableFuture<>();
+            this.listener = null;
+        }
+
+        /**
+         * An entry its owner may offer again, without allocating, once {@code listener}
+         * has heard it was written or dropped.
+         */
+        public Entry(byte[] frame, int lane, WriteListener listener) {
+            this.frame = frame;
+            this.length = frame.length;
+            this.lane = lane;
+            this.result = null;
+            this.listener = listener;
+        }
+
+        void complete() {
+            if (result != null) {
+                result.complete(null);
+            } else {
+                listener.onWritten(this, null);
+            }
+        }
+
+        void fail(Throwable cause) {
+            if (result != null) {
+                result.completeExceptionally(cause);
+            } else {
+                listener.onWritten(this, cause);
+            }
+        }
+    }
+
+    private final ArrayDeque<Entry>[] lanes;
+    private final int laneCapacity;
+    private final Clock clock;
+    private int size;
+    private IOException closedCause;
+    private RateLimiter limiter;
+
+    public OutboundQueue(int laneCapacity) {
+        this(laneCapacity, Clock.SYSTEM);
+    }
+
+    /** {@code clock} times the rate limiter's decisions. */
+    @SuppressWarnings("unchecked")
+    public OutboundQueue(int laneCapacity, Clock clock) {
+        this.laneCapacity = laneCapacity;
+        this.clock = clock;
+        this.lanes = (ArrayDeque<Entry>[]) new ArrayDeque<?>[LANE_COUNT];
+        for (int i = 0; i < LANE_COUNT; i++) {
+            lanes[i] = new ArrayDeque<>();
+        }
+    }
+
+    public synchronized void setRateLimiter(RateLimiter limiter) {
+        this.limiter = limiter;
+        notifyAll();
+    }
+
+    public static int laneFor(byte frameType) {
+        switch (frameType) {
+            case FrameCodec.TYPE_SOS:
+                return LANE_SOS;
+            case FrameCodec.TYPE_CHAT:
+            case FrameCodec.TYPE_DIRECT:
+                return LANE_CHAT;
+            case FrameCodec.TYPE_FILE_CHUNK:
+                return LANE_BULK;
+            default:
+                return LANE_CONTROL;
+        }
+    }
+
+    public CompletableFuture<Void> offer(int lane, byte[] frame) {
+        return offer(lane, frame, frame.length);
+    }
+
+    /** Like {@link #offer(int, byte[])} for a frame in {@code frame[0..length)}. */
+    public CompletableFuture<Void> offer(int lane, byte[] frame, int length) {
+        Entry entry = new Entry(frame, length, lane);
+        offer(entry, laneCapacity);
+        return entry.result;
+    }
+
+    /**
+     * Like {@link #offer(int, byte[])}, but never refused for a full lane; only for frames
+     * that must not be dropped and whose caller bounds how many it queues.
+     */
+    public CompletableFuture<Void> offerUnbounded(int lane, byte[] frame) {
+        Entry entry = new Entry(frame, frame.length, lane);
+        offer(entry, Integer.MAX_VALUE);
+        return entry.result;
+    }
+
+    /**
+     * Queues an entry made for reuse, never refused for a full lane. Must not be offered
+     * again until its listener has been called.
+     */
+    public void offerUnbounded(Entry entry) {
+        offer(entry, Integer.MAX_VALUE);
+    }
+
+    private void offer(Entry entry, int capacity) {
+        IOException failure;
+        synchronized (this) {
+            if (closedCause == null && lanes[entry.lane].size() < capacity) {
+                entry.enqueuedNanos = System.nanoTime();
+                lanes[entry.lane].addLast(entry);
+                size++;
+                notifyAll();
+                failure = null;
+            } else {
+                failure = closedCause != null ? closedCause : new IOException("Outbound lane " + entry.lane + " full");
+            }
+        }
+        if (failure != null) {
+            entry.fail(failure);
+        } else {
+            offered();
+        }
+    }
+
+    /** Called after a frame is queued, outside the lock; for queues drained without a writer thread. */
+    protected void offered() {
+    }
+
+    /** Blocks until a frame may be sent; returns null once the queue is closed. */
+    public synchronized Entry take() throws InterruptedException {
+        while (closedCause == null) {
+            long delay = delayNanos();
+            if (delay == 0) {
+                return removeFirst();
+            }
+            if (delay < 0) {
+                wait();
+            } else {
+                wait(delay / 1_000_000L, (int) (delay % 1_000_000L));
+            }
+        }
+        return null;
+    }
+
+    public synchronized Entry poll() {
+        return closedCause == null && delayNanos() == 0 ? removeFirst() : null;
+    }
+
+    /** Until the next frame may be polled: 0 if now, -1 if none is waiting or the queue is closed. */
+    public synchronized long readyInNanos() {
+        return closedCause == null ? delayNanos() : -1;
+    }
+
+    /** Waits up to {@code timeoutNanos} for a frame that may be sent; returns null on timeout or close. */
+    public synchronized Entry poll(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (closedCause == null) {
+            long delay = delayNanos();
+            if (delay == 0) {
+                return removeFirst();
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            long wait = delay < 0 ? remaining : Math.min(delay, remaining);
+            wait(wait / 1_000_000L, (int) (wait % 1_000_000L));
+        }
+        return null;
+    }
+
+    /** Frames waiting on {@code lane}. */
+    public synchronized int laneSize(int lane) {
+        return lanes[lane].size();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /** Rejects further offers and fails every frame still waiting. */
+    public void close(IOException cause) {
+        ArrayDeque<Entry> dropped = new ArrayDeque<>();
+        synchronized (this) {
+            if (closedCause != null) {
+                return;
+            }
+            closedCause = cause;
+            for (ArrayDeque<Entry> lane : lanes) {
+                dropped.addAll(lane);
+                lane.clear();
+            }
+            size = 0;
+            notifyAll();
+        }
+        for (Entry entry : dropped) {
+            entry.fail(cause);
+        }
+    }
+
+    /** Until the next frame may go: 0 if now, -1 if there is none. */
+    private long delayNanos() {
+        for (ArrayDeque<Entry> lane : lanes) {
+            Entry head = lane.peekFirst();
+            if (head != null) {
+                return limiter == null ? 0 : limiter.delayNanos(head.lane, head.length, clock.nanoTime());
+            }
+        }
+        return -1;
+    }
+
+    private Entry removeFirst() {
+        for (ArrayDeque<Entry> lane : lanes) {
+            Entry entry = lane.pollFirst();
+            if (entry != null) {
+                size--;
+                if (limiter != null) {
+                    limiter.consume(entry.lane, entry.length, clock.nanoTime());
+                }
+                return entry;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.disasterchat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw-deflate payload compression primed with a preset dictionary of disaster
+ * vocabulary. Both ends must hold the same dictionary, which is why links advertise
+ * {@link #getDictionaryId()} in their hello frame before compressing anything.
+ * <p>
+ * One instance per link: {@link #encodeFrame} is only called from the writer thread and
+ * {@link #decompress} only from the read thread.
+ */
+public class PayloadCompressor {
+    public static final int MIN_COMPRESS_LENGTH = 48;
+
+    private static final String[] COMMON_PHRASES = {
+            "location", "address", "street", "building", "floor", "basement", "shelter",
+            "hospital", "ambulance", "doctor", "medicine", "insulin", "bleeding", "broken",
+            "unconscious", "breathing", "trapped", "collapsed", "fire", "smoke", "flood",
+            "water", "food", "blanket", "battery", "phone", "children", "elderly", "people",
+            "family", "missing", "safe", "evacuate", "rescue", "coming", "on the way",
+            "we are", "I am", "is anyone", "please", "need", "injured", "help", "SOS",
+    };
+
+    private final byte[] dictionary;
+    private final int dictionaryId;
+    private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+
+    public PayloadCompressor(byte[] dictionary) {
+        this.dictionary = dictionary;
+        this.dictionaryId = dictionaryId(dictionary);
+    }
+
+    /**
+     * Builds the preset dictionary. Deflate favours the closest matches, so the most
+     * frequent strings go last: shared phrases first, then the app's own strings.
+     */
+    public static byte[] buildDictionary(String... appStrings) {
+        StringBuilder sb = new StringBuilder();
+        for (String phrase : COMMON_PHRASES) {
+            sb.append(phrase).append(' ');
+        }
+        for (String s : appStrings) {
+            sb.append(s).append(' ');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static int dictionaryId(byte[] dictionary) {
+        CRC32 crc = new CRC32();
+        crc.update(dictionary, 0, dictionary.length);
+        return (int) crc.getValue();
+    }
+
+    public int getDictionaryId() {
+        return dictionaryId;
+    }
+
+    /**
+     * Copies {@code frame} into {@code dst}, compressing its payload when that makes it
+     * smaller. {@code dst} needs room for {@code frame.length} bytes; returns bytes used.
+     */
+    public int encodeFrame(byte[] frame, byte[] dst, int dstOffset) {
+        return encodeFrame(frame, frame.length, dst, dstOffset);
+    }
+
+    /** Like {@link #encodeFrame(byte[], byte[], int)} for a frame in {@code frame[0..length)}. */
+    public int encodeFrame(byte[] frame, int length, byte[] dst, int dstOffset) {
+        int payloadLength = length - FrameCodec.HEADER_SIZE;
+        byte type = frame[1];
+        if (payloadLength >= MIN_COMPRESS_LENGTH
+                && (type == FrameCodec.TYPE_CHAT || type == FrameCodec.TYPE_SOS)) {
+            int room = payloadLength - 1;
+            deflater.reset();
+            deflater.setDictionary(dictionary);
+            deflater.setInput(frame, FrameCodec.HEADER_SIZE, payloadLength);
+            deflater.finish();
+            int compressed = deflater.deflate(dst, dstOffset + FrameCodec.HEADER_SIZE, room);
+            if (deflater.finished()) {
+                dst[dstOffset] = frame[0];
+                dst[dstOffset + 1] = type;
+                dst[dstOffset + 2] = (byte) (frame[2] | FrameCodec.FLAG_COMPRESSED);
+                dst[dstOffset + 3] = (byte) (compressed >>> 8);
+                dst[dstOffset + 4] = (byte) compressed;
+                return FrameCodec.HEADER_SIZE + compressed;
+            }
+        }
+        System.arraycopy(frame, 0, dst, dstOffset, length);
+        return length;
+    }
+
+    /** Inflates a compressed payload into {@code dst} and returns the inflated length. */
+    public int decompress(byte[] src, int offset, int length, byte[] dst) throws IOException {
+        inflater.reset();
+        inflater.setDictionary(dictionary);
+        inflater.setInput(src, offset, length);
+        try {
+            int n = inflater.inflate(dst, 0, dst.length);
+            if (!inflater.finished()) {
+                throw new IOException("Compressed payload exceeds " + dst.length + " bytes");
+            }
+            return n;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload", e);
+        }
+    }
+}
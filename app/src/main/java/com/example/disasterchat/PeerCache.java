@@ -0,0 +1,212 @@
+package com.example.disasterchat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Devices seen during discovery or bonded, with signal strength, when they were last
+ * seen and last linked, and whether they run the chat service. Lets "Find Devices" go
+ * straight to known peers, ranked by signal and history, instead of a full inquiry scan.
+ * Persisted as a small binary file.
+ */
+public class PeerCache {
+    public static final short RSSI_UNKNOWN = Short.MIN_VALUE;
+    /** Nothing seen for this long means a fresh scan is worth its cost. */
+    public static final long STALE_AFTER_MS = 5 * 60_000;
+    private static final long FORGET_AFTER_MS = 7 * 24 * 3600_000L;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int FILE_VERSION = 1;
+
+    public static final class Entry {
+        public final String address;
+        public String name;
+        public long lastSeenMillis;
+        public short rssi = RSSI_UNKNOWN;
+        public long lastSuccessMillis;
+        public int attemptsSinceSuccess;
+        public boolean hasService;
+        public boolean bonded;
+
+        Entry(String address) {
+            this.address = address;
+        }
+    }
+
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    public PeerCache(File file) {
+        this.file = file;
+    }
+
+    /** Found during a scan; a sighting also clears earlier failed attempts. */
+    public synchronized void onSeen(String address, String name, short rssi, boolean hasService, long nowMillis) {
+        Entry e = entry(address);
+        if (name != null) {
+            e.name = name;
+        }
+        e.lastSeenMillis = nowMillis;
+        e.rssi = rssi;
+        e.hasService |= hasService;
+        e.attemptsSinceSuccess = 0;
+    }
+
+    public synchronized void onBonded(String address, String name, boolean hasService) {
+        Entry e = entry(address);
+        if (name != null) {
+            e.name = name;
+        }
+        e.bonded = true;
+        e.hasService |= hasService;
+    }
+
+    public synchronized void onAttempt(String address) {
+        entry(address).attemptsSinceSuccess++;
+    }
+
+    /** Linked over the chat service, which also proves the peer runs it. */
+    public synchronized void onSuccess(String address, long nowMillis) {
+        Entry e = entry(address);
+        e.lastSuccessMillis = nowMillis;
+        e.lastSeenMillis = nowMillis;
+        e.attemptsSinceSuccess = 0;
+        e.hasService = true;
+    }
+
+    /** True when no peer has been seen or linked within {@link #STALE_AFTER_MS}. */
+    public synchronized boolean isStale(long nowMillis) {
+        for (Entry e : entries.values()) {
+            if (nowMillis - e.lastSeenMillis <= STALE_AFTER_MS) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Up to {@code limit} addresses worth connecting to, best first. Candidates are peers
+     * seen recently or bonded peers known to run the service, minus those that have failed
+     * {@value #MAX_ATTEMPTS} times since last linking and those matched by {@code skip}.
+     */
+    public synchronized List<String> ranked(long nowMillis, int limit, Predicate<String> skip) {
+        List<Entry> candidates = new ArrayList<>();
+        for (Entry e : entries.values()) {
+            boolean fresh = nowMillis - e.lastSeenMillis <= STALE_AFTER_MS;
+            if ((fresh || (e.bonded && e.hasService)) && e.attemptsSinceSuccess < MAX_ATTEMPTS
+                    && !skip.test(e.address)) {
+                candidates.add(e);
+            }
+        }
+        candidates.sort(Comparator.comparingDouble((Entry e) -> -score(e, nowMillis)));
+        List<String> result = new ArrayList<>(Math.min(limit, candidates.size()));
+        for (int i = 0; i < candidates.size() && i < limit; i++) {
+            result.add(candidates.get(i).address);
+        }
+        return result;
+    }
+
+    public synchronized Entry get(String address) {
+        return entries.get(address);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Higher is better. Running the service dominates; then signal strength (-100 to
+     * -40 dBm maps to 0..40), a bonus for recent successful links that halves every hour,
+     * a small bonus for bonding, and a penalty per failed attempt.
+     */
+    static double score(Entry e, long nowMillis) {
+        double score = e.hasService ? 100 : 0;
+        if (e.rssi != RSSI_UNKNOWN) {
+            score += Math.max(0, Math.min(60, e.rssi + 100)) * 2 / 3.0;
+        }
+        if (e.lastSuccessMillis > 0) {
+            double hours = Math.max(0, nowMillis - e.lastSuccessMillis) / 3600_000.0;
+            score += 30 * Math.pow(0.5, hours);
+        }
+        if (e.bonded) {
+            score += 10;
+        }
+        return score - 15 * e.attemptsSinceSuccess;
+    }
+
+    private Entry entry(String address) {
+        Entry e = entries.get(address);
+        if (e == null) {
+            e = new Entry(address);
+            entries.put(address, e);
+        }
+        return e;
+    }
+
+    public synchronized void load(long nowMillis) throws IOException {
+        entries.clear();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readUnsignedByte() != FILE_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry e = new Entry(in.readUTF());
+                String name = in.readUTF();
+                e.name = name.isEmpty() ? null : name;
+                e.lastSeenMillis = in.readLong();
+                e.rssi = in.readShort();
+                e.lastSuccessMillis = in.readLong();
+                e.attemptsSinceSuccess = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                e.hasService = (flags & 1) != 0;
+                e.bonded = (flags & 2) != 0;
+                entries.put(e.address, e);
+            }
+        } catch (FileNotFoundException | EOFException e) {
+            // Nothing cached yet, or a write was cut short; whatever was read is kept.
+        }
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (!e.bonded && nowMillis - Math.max(e.lastSeenMillis, e.lastSuccessMillis) > FORGET_AFTER_MS) {
+                it.remove();
+            }
+        }
+    }
+
+    /** Writes to a temporary file and renames it over the old one. */
+    public synchronized void save() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeByte(FILE_VERSION);
+            out.writeInt(entries.size());
+            for (Entry e : entries.values()) {
+                out.writeUTF(e.address);
+                out.writeUTF(e.name != null ? e.name : "");
+                out.writeLong(e.lastSeenMillis);
+                out.writeShort(e.rssi);
+                out.writeLong(e.lastSuccessMillis);
+                out.writeByte(Math.min(255, e.attemptsSinceSuccess));
+                out.writeByte((e.hasService ? 1 : 0) | (e.bonded ? 2 : 0));
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+}
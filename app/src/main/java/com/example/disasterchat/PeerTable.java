@@ -0,0 +1,162 @@
+package com.example.disasterchat;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Predicate;
+
+/**
+ * Recently linked peers and when to next try each of them. A peer becomes a reconnect
+ * candidate when its link drops and stops being one once it is linked again, or once it
+ * has not been linked for {@code expiryMillis}. Failed attempts back off exponentially
+ * with jitter, so a peer that has gone away is retried less and less often.
+ */
+public class PeerTable {
+    public static final long DEFAULT_BASE_DELAY_MS = 1000;
+    public static final long DEFAULT_MAX_DELAY_MS = 60_000;
+    public static final long DEFAULT_EXPIRY_MS = 10 * 60_000;
+
+    private static final class Peer {
+        final String address;
+        long lastConnectedMillis;
+        long nextAttemptMillis;
+        int failures;
+        boolean lost;
+
+        Peer(String address) {
+            this.address = address;
+        }
+    }
+
+    private final int capacity;
+    private final Random random;
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+    private long baseDelayMillis = DEFAULT_BASE_DELAY_MS;
+    private long maxDelayMillis = DEFAULT_MAX_DELAY_MS;
+    private long expiryMillis = DEFAULT_EXPIRY_MS;
+
+    public PeerTable(int capacity, Random random) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.random = random;
+    }
+
+    public synchronized void setBackoff(long baseDelayMillis, long maxDelayMillis) {
+        if (baseDelayMillis < 1 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("need 1 <= baseDelay <= maxDelay");
+        }
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public synchronized void setExpiry(long expiryMillis) {
+        this.expiryMillis = expiryMillis;
+    }
+
+    public synchronized void onConnected(String address, long nowMillis) {
+        Peer peer = peers.remove(address);
+        if (peer == null) {
+            peer = new Peer(address);
+        }
+        peer.lastConnectedMillis = nowMillis;
+        peer.failures = 0;
+        peer.lost = false;
+        // Re-inserting keeps iteration order oldest-linked first, which is what gets evicted.
+        peers.put(address, peer);
+        if (peers.size() > capacity) {
+            Iterator<Peer> it = peers.values().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    /** A link to a known peer dropped; first retry comes after one jittered base delay. */
+    public synchronized void onLost(String address, long nowMillis) {
+        Peer peer = peers.get(address);
+        if (peer != null) {
+            peer.lost = true;
+            peer.failures = 0;
+            peer.nextAttemptMillis = nowMillis + delayFor(0);
+        }
+    }
+
+    public synchronized void onFailed(String address, long nowMillis) {
+        Peer peer = peers.get(address);
+        if (peer != null && peer.lost) {
+            peer.failures++;
+            peer.nextAttemptMillis = nowMillis + delayFor(peer.failures);
+        }
+    }
+
+    /** An attempt was abandoned because another candidate won the race; not held against it. */
+    public synchronized void onCancelled(String address, long nowMillis) {
+        Peer peer = peers.get(address);
+        if (peer != null && peer.lost) {
+            peer.nextAttemptMillis = nowMillis + delayFor(0);
+        }
+    }
+
+    public synchronized void remove(String address) {
+        peers.remove(address);
+    }
+
+    /**
+     * Up to {@code limit} lost peers whose retry time has come, best first: fewest
+     * consecutive failures, then most recently linked. Peers matched by {@code skip}
+     * (already linked or connecting) are left out.
+     */
+    public synchronized List<String> due(long nowMillis, int limit, Predicate<String> skip) {
+        expire(nowMillis);
+        List<Peer> candidates = new ArrayList<>();
+        for (Peer peer : peers.values()) {
+            if (peer.lost && peer.nextAttemptMillis <= nowMillis && !skip.test(peer.address)) {
+                candidates.add(peer);
+            }
+        }
+        candidates.sort((a, b) -> a.failures != b.failures
+                ? Integer.compare(a.failures, b.failures)
+                : Long.compare(b.lastConnectedMillis, a.lastConnectedMillis));
+        List<String> result = new ArrayList<>(Math.min(limit, candidates.size()));
+        for (int i = 0; i < candidates.size() && i < limit; i++) {
+            result.add(candidates.get(i).address);
+        }
+        return result;
+    }
+
+    /** Earliest retry time among lost peers not matched by {@code skip}, or Long.MAX_VALUE. */
+    public synchronized long nextAttemptMillis(Predicate<String> skip) {
+        long next = Long.MAX_VALUE;
+        for (Peer peer : peers.values()) {
+            if (peer.lost && !skip.test(peer.address)) {
+                next = Math.min(next, peer.nextAttemptMillis);
+            }
+        }
+        return next;
+    }
+
+    public synchronized int size() {
+        return peers.size();
+    }
+
+    /** Backoff after {@code failures} consecutive failures: half fixed, half random. */
+    long delayFor(int failures) {
+        long delay = Math.min(maxDelayMillis, baseDelayMillis << Math.min(failures, 20));
+        long half = delay / 2;
+        return delay - half + (long) (random.nextDouble() * (half + 1));
+    }
+
+    private void expire(long nowMillis) {
+        Iterator<Peer> it = peers.values().iterator();
+        while (it.hasNext()) {
+            Peer peer = it.next();
+            if (peer.lost && nowMillis - peer.lastConnectedMillis > expiryMillis) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.disasterchat;
+
+/**
+ * Token bucket pacing what one link's writer takes off its queue, in bytes per second.
+ * The rate follows the link. ACKs tell how fast bytes actually arrive and how long they
+ * took; pongs add round trips. While the bucket is what holds frames back, the rate
+ * grows: by what each write sent until the link first pushes back, then by a sixteenth
+ * of it (about 1 KB/s per second at 16 KB/s). Congestion shows as round trips well
+ * above the quietest seen, or as a write that blocks. On congestion the rate drops to
+ * half the delivery rate, so bytes queued below us drain, and returns to the delivery
+ * rate once round trips recover.
+ *
+ * <p>The last {@link #SOS_RESERVE_BYTES} of the bucket are for SOS frames only, so an SOS
+ * goes out at once however much chat is waiting. Control frames (acks, pings, routes, sync)
+ * never wait, since acks and pongs held back would read as congestion. What they take
+ * beyond the SOS reserve is owed rather than taken from it: refills top up the reserve
+ * first, then pay that debt, and only then let chat and bulk frames through. A large sync
+ * therefore delays chat, never SOS.
+ */
+public class RateLimiter {
+    public static final long MIN_RATE = 2 * 1024;
+    public static final long MAX_RATE = 1024 * 1024;
+    static final long INITIAL_RATE = 32 * 1024;
+    static final int BURST_BYTES = 8 * 1024;
+    static final int SOS_RESERVE_BYTES = BURST_BYTES / 4;
+    static final long WRITE_STALL_NANOS = 50_000_000L;
+    static final long RTT_SLACK_NANOS = 100_000_000L;
+    /** After a cut, the next one waits this long, so one episode of congestion counts once. */
+    static final long HOLDOFF_NANOS = 200_000_000L;
+    static final int INCREASE_DIVISOR = 16;
+    /** Acked bytes are turned into a delivery rate over at least this long. */
+    static final long SAMPLE_NANOS = 250_000_000L;
+    /** A delivery rate this old gives way to a lower one. */
+    static final long DELIVERY_MAX_AGE_NANOS = 2_000_000_000L;
+    private static final double DECREASE = 0.7;
+    private static final double DRAIN = 0.5;
+
+    private double rate = INITIAL_RATE;
+    private double tokens = BURST_BYTES;
+    /** Bytes control frames have sent that the bucket could not cover above the reserve. */
+    private double controlDebt;
+    private long refilledAt;
+    private boolean started;
+    private boolean throttled;
+    private boolean slowStart = true;
+    private boolean draining;
+    private long minRttNanos = Long.MAX_VALUE;
+    private boolean holding;
+    private long holdUntil;
+
+    private long deliveryRate;
+    private long deliveryAt;
+    private long sampleBytes;
+    private long sampleStart;
+    private boolean sampling;
+
+    /** How long a frame of {@code bytes} on {@code lane} must wait; 0 if it may go now. */
+    public synchronized long delayNanos(int lane, int bytes, long nowNanos) {
+        if (lane == OutboundQueue.LANE_CONTROL) {
+            return 0;
+        }
+        refill(nowNanos);
+        double missing;
+        if (lane == OutboundQueue.LANE_SOS) {
+            missing = -tokens;
+        } else {
+            // Refills pay control debt before anything above the reserve.
+            missing = Math.min(BURST_BYTES, SOS_RESERVE_BYTES + bytes) - tokens + controlDebt;
+        }
+        if (missing <= 0) {
+            return 0;
+        }
+        throttled = true;
+        return (long) Math.ceil(missing / rate * 1e9);
+    }
+
+    /**
+     * Charges a frame taken off {@code lane}. SOS frames may leave the bucket in debt;
+     * control frames leave the SOS reserve alone and owe what it would have covered.
+     */
+    public synchronized void consume(int lane, int bytes, long nowNanos) {
+        refill(nowNanos);
+        if (lane == OutboundQueue.LANE_CONTROL) {
+            double covered = Math.max(0, Math.min(bytes, tokens - SOS_RESERVE_BYTES));
+            tokens -= covered;
+            controlDebt += bytes - covered;
+        } else {
+            tokens -= bytes;
+        }
+    }
+
+    /** {@code blockedNanos}: how long writing and flushing {@code bytes} took. */
+    public synchronized void onWritten(int bytes, long blockedNanos, long nowNanos) {
+        if (blockedNanos > WRITE_STALL_NANOS) {
+            congested(nowNanos);
+        } else if (throttled && !draining) {
+            throttled = false;
+            rate = Math.min(MAX_RATE, rate + (slowStart ? bytes : (double) bytes / INCREASE_DIVISOR));
+        }
+    }
+
+    /** The peer acknowledged {@code bytes}; {@code rttNanos} is negative if unknown. */
+    public synchronized void onAcked(int bytes, long rttNanos, long nowNanos) {
+        if (!sampling) {
+            sampling = true;
+            sampleStart = nowNanos;
+        }
+        sampleBytes += bytes;
+        long elapsed = nowNanos - sampleStart;
+        if (elapsed >= SAMPLE_NANOS) {
+            long sample = sampleBytes * 1_000_000_000L / elapsed;
+            if (sample >= deliveryRate || nowNanos - deliveryAt > DELIVERY_MAX_AGE_NANOS) {
+                deliveryRate = sample;
+                deliveryAt = nowNanos;
+            }
+            sampleBytes = 0;
+            sampleStart = nowNanos;
+        }
+        if (rttNanos >= 0) {
+            onRtt(rttNanos, nowNanos);
+        }
+    }
+
+    public synchronized void onRtt(long rttNanos, long nowNanos) {
+        minRttNanos = Math.min(minRttNanos, rttNanos);
+        if (rttNanos > minRttNanos + RTT_SLACK_NANOS) {
+            congested(nowNanos);
+        } else if (draining) {
+            draining = false;
+            rate = Math.max(rate, deliveryRate);
+        }
+    }
+
+    public synchronized long getRate() {
+        return (long) rate;
+    }
+
+    /** Bytes per second the peer has been acknowledging lately; 0 before the first sample. */
+    public synchronized long getDeliveryRate() {
+        return deliveryRate;
+    }
+
+    private void congested(long nowNanos) {
+        if (holding && nowNanos - holdUntil < 0) {
+            return;
+        }
+        holding = true;
+        holdUntil = nowNanos + HOLDOFF_NANOS;
+        slowStart = false;
+        if (deliveryRate > 0) {
+            draining = true;
+            rate = Math.max(MIN_RATE, Math.min(rate, deliveryRate * DRAIN));
+        } else {
+            rate = Math.max(MIN_RATE, rate * DECREASE);
+        }
+    }
+
+    private void refill(long nowNanos) {
+        if (!started) {
+            started = true;
+            refilledAt = nowNanos;
+        }
+        double added = (nowNanos - refilledAt) * rate / 1e9;
+        refilledAt = nowNanos;
+        if (tokens < SOS_RESERVE_BYTES) {
+            double toReserve = Math.min(added, SOS_RESERVE_BYTES - tokens);
+            tokens += toReserve;
+            added -= toReserve;
+        }
+        double paid = Math.min(added, controlDebt);
+        controlDebt -= paid;
+        tokens = Math.min(BURST_BYTES, tokens + added - paid);
+    }
+}
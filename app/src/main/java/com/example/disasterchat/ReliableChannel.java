@@ -0,0 +1,410 @@
+package com.example.disasterchat;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Reliable delivery of chat and SOS frames to one peer, kept across reconnects.
+ *
+ * <p>Frames are numbered per lane (SOS and chat are separate sequence spaces, because SOS
+ * frames overtake queued chat frames on the wire) and carry the number as a u32 prefix
+ * in front of the payload, marked by {@link FrameCodec#FLAG_SEQUENCED}. The receiver
+ * answers with cumulative ACKs; up to {@code window} frames per lane may be unacked, the
+ * rest wait in a backlog. When a link drops, unacked frames stay here and are sent again,
+ * in order, on the next link to the same peer. The receiver drops numbers it has already
+ * seen, so redelivery is harmless.
+ *
+ * <p>There is no retransmit timer, so an ACK must never be dropped while the link is up.
+ * At most one ACK per lane is queued at a time, outside the control lane's bound; ACKs
+ * that fall due while it waits are coalesced into one carrying the latest number, queued
+ * as soon as the earlier one has been written.
+ *
+ * <p>Numbered frames are copied into pooled buffers and go back to the pool once acked
+ * and off every queue they were offered to, and each lane reuses one ACK frame, so a
+ * steady exchange of messages allocates no frame buffers.
+ *
+ * <p>Each side announces a session id in its hello. A new session id from the peer means
+ * it restarted and lost its receive state, so numbering from that peer starts over.
+ */
+public class ReliableChannel {
+    static final int SEQ_SIZE = 4;
+    static final int STREAM_SOS = 0;
+    static final int STREAM_CHAT = 1;
+    private static final int STREAMS = 2;
+    private static final int ACK_SIZE = FrameCodec.HEADER_SIZE + 1 + SEQ_SIZE;
+    /** Numbered frames go in the smallest of these that fits; bigger ones are allocated. */
+    private static final int[] FRAME_SIZES = {256, 1024, 4096};
+
+    private static final class Pending {
+        final int seq;
+        /** The frame is {@code frame[0..length)}, in a pooled buffer. */
+        final byte[] frame;
+        final int length;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        /** When the frame was last written out; 0 until then. */
+        long writtenNanos;
+        /** Offers of the frame not yet written or dropped; it is only recycled at 0. */
+        int queued;
+        /** Acked or given up on, so the frame is no longer needed here. */
+        boolean done;
+
+        Pending(int seq, byte[] frame, int length) {
+            this.seq = seq;
+            this.frame = frame;
+            this.length = length;
+        }
+    }
+
+    private final int window;
+    private final int backlogCapacity;
+    private final Clock clock;
+    private final int[] nextSeq = new int[STREAMS];
+    private final ArrayDeque<Pending>[] unacked;
+    private final ArrayDeque<Pending>[] backlog;
+    private final BufferPool[] framePools = new BufferPool[FRAME_SIZES.length];
+
+    private final int[] expected = new int[STREAMS];
+    private final boolean[] receiving = new boolean[STREAMS];
+    private final boolean[] ackDue = new boolean[STREAMS];
+    /** The ACK for the stream that is queued and not yet written, or null. */
+    private final OutboundQueue.Entry[] ackQueued = new OutboundQueue.Entry[STREAMS];
+    /** The link that ACK is queued on. */
+    private final OutboundQueue[] ackLink = new OutboundQueue[STREAMS];
+    /** One reusable ACK per stream, and whether it sits in a queue. */
+    private final OutboundQueue.Entry[] acks = new OutboundQueue.Entry[STREAMS];
+    private final boolean[] ackInUse = new boolean[STREAMS];
+    private final OutboundQueue.WriteListener ackListener = this::ackWritten;
+    private int peerSession;
+    private boolean peerSessionKnown;
+
+    private OutboundQueue link;
+    private boolean reliable;
+    private IOException closedCause;
+
+    public ReliableChannel(int window, int backlogCapacity) {
+        this(window, backlogCapacity, Clock.SYSTEM);
+    }
+
+    /** {@code clock} times the round trips reported to a rate limiter. */
+    @SuppressWarnings("unchecked")
+    public ReliableChannel(int window, int backlogCapacity, Clock clock) {
+        this.window = window;
+        this.backlogCapacity = backlogCapacity;
+        this.clock = clock;
+        this.unacked = (ArrayDeque<Pending>[]) new ArrayDeque<?>[STREAMS];
+        this.backlog = (ArrayDeque<Pending>[]) new ArrayDeque<?>[STREAMS];
+        for (int i = 0; i < STREAMS; i++) {
+            unacked[i] = new ArrayDeque<>();
+            backlog[i] = new ArrayDeque<>();
+            acks[i] = newAck(i);
+        }
+        for (int i = 0; i < FRAME_SIZES.length; i++) {
+            framePools[i] = new BufferPool(FRAME_SIZES[i], window);
+        }
+    }
+
+    static int streamFor(byte frameType) {
+        return frameType == FrameCodec.TYPE_SOS ? STREAM_SOS : STREAM_CHAT;
+    }
+
+    private static int laneFor(int stream) {
+        return stream == STREAM_SOS ? OutboundQueue.LANE_SOS : OutboundQueue.LANE_CHAT;
+    }
+
+    /**
+     * Queues a chat or SOS payload. On a reliable link the future completes when the peer
+     * acknowledges it; on a peer without reliable delivery, when it has been written.
+     */
+    public CompletableFuture<Void> send(byte type, byte[] payload) {
+        return send(type, payload, 0, payload.length);
+    }
+
+    /**
+     * Like {@link #send(byte, byte[])} for the payload in {@code buffer[offset..offset+length)},
+     * which is copied before this returns.
+     */
+    public synchronized CompletableFuture<Void> send(byte type, byte[] buffer, int offset, int length) {
+        if (closedCause != null) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(closedCause);
+            return failed;
+        }
+        if (link != null && !reliable) {
+            return link.offer(OutboundQueue.laneFor(type), FrameCodec.encode(type, (byte) 0, buffer, offset, length));
+        }
+
+        int stream = streamFor(type);
+        if (backlog[stream].size() >= backlogCapacity) {
+            CompletableFuture<Void> full = new CompletableFuture<>();
+            full.completeExceptionally(new IOException("Send backlog full"));
+            return full;
+        }
+        int frameLength = FrameCodec.HEADER_SIZE + SEQ_SIZE + length;
+        byte[] frame = acquireFrame(frameLength);
+        FrameCodec.writeHeader(type, FrameCodec.FLAG_SEQUENCED, SEQ_SIZE + length, frame, 0);
+        int seq = nextSeq[stream]++;
+        writeInt(frame, FrameCodec.HEADER_SIZE, seq);
+        System.arraycopy(buffer, offset, frame, FrameCodec.HEADER_SIZE + SEQ_SIZE, length);
+
+        Pending pending = new Pending(seq, frame, frameLength);
+        backlog[stream].addLast(pending);
+        if (link != null) {
+            release(stream);
+        }
+        return pending.result;
+    }
+
+    /**
+     * Binds a newly negotiated link. With {@code reliable}, every unacked frame is sent again
+     * in order before anything new; without it, queued frames are sent once, unnumbered.
+     * Returns the number of frames sent again.
+     */
+    public synchronized int attach(OutboundQueue link, boolean reliable, int peerSession) {
+        int retransmits = 0;
+        this.link = link;
+        this.reliable = reliable;
+        if (reliable && (!peerSessionKnown || peerSession != this.peerSession)) {
+            this.peerSession = peerSession;
+            this.peerSessionKnown = true;
+            for (int i = 0; i < STREAMS; i++) {
+                receiving[i] = false;
+                ackDue[i] = false;
+            }
+        }
+        for (int stream = 0; stream < STREAMS; stream++) {
+            if (reliable) {
+                for (Pending p : unacked[stream]) {
+                    retransmits++;
+                    offer(stream, p);
+                }
+                release(stream);
+            } else {
+                sendUnnumbered(stream, unacked[stream]);
+                sendUnnumbered(stream, backlog[stream]);
+            }
+        }
+        return retransmits;
+    }
+
+    /** The link went away; unacked frames are kept for the next one. */
+    public synchronized void detach(OutboundQueue link) {
+        if (this.link == link) {
+            this.link = null;
+        }
+    }
+
+    /** The peer has every frame up to and including {@code seq} on {@code stream}. */
+    public void onAck(int stream, int seq) {
+        onAck(stream, seq, null);
+    }
+
+    /**
+     * Like {@link #onAck(int, int)}, also telling {@code limiter} how many bytes arrived
+     * and how long the newest of them took from being written to being acknowledged.
+     */
+    public void onAck(int stream, int seq, RateLimiter limiter) {
+        List<Pending> done = new ArrayList<>();
+        int bytes = 0;
+        long written = 0;
+        synchronized (this) {
+            ArrayDeque<Pending> queue = unacked[stream];
+            while (!queue.isEmpty() && seq - queue.peekFirst().seq >= 0) {
+                Pending p = queue.pollFirst();
+                bytes += p.length;
+                written = p.writtenNanos;
+                finish(p);
+                done.add(p);
+            }
+            if (link != null) {
+                release(stream);
+            }
+        }
+        if (limiter != null && !done.isEmpty()) {
+            long now = clock.nanoTime();
+            limiter.onAcked(bytes, written != 0 ? now - written : -1, now);
+        }
+        for (Pending p : done) {
+            p.result.complete(null);
+        }
+    }
+
+    /** Receive side: true if {@code seq} is new and should be delivered. */
+    public synchronized boolean accept(int stream, int seq) {
+        ackDue[stream] = true;
+        if (receiving[stream] && seq - expected[stream] < 0) {
+            return false;
+        }
+        receiving[stream] = true;
+        expected[stream] = seq + 1;
+        return true;
+    }
+
+    /**
+     * Queues an ACK on {@code link} for every stream that received something since the
+     * last call, to be done once per read so acks stay cheap at full throughput. A stream
+     * whose previous ACK is still waiting on {@code link} is left due and acked when that
+     * one has been written. Returns the number queued.
+     */
+    public synchronized int takeAcks(OutboundQueue link) {
+        int count = 0;
+        for (int stream = 0; stream < STREAMS; stream++) {
+            if (ackDue[stream] && receiving[stream] && ackLink[stream] != link) {
+                queueAck(link, stream);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void queueAck(OutboundQueue link, int stream) {
+        ackDue[stream] = false;
+        OutboundQueue.Entry ack;
+        if (!ackInUse[stream]) {
+            ack = acks[stream];
+            ackInUse[stream] = true;
+        } else {
+            // Still queued on a link that went away and has not failed it yet.
+            ack = newAck(stream);
+        }
+        writeInt(ack.frame, FrameCodec.HEADER_SIZE + 1, expected[stream] - 1);
+        ackQueued[stream] = ack;
+        ackLink[stream] = link;
+        link.offerUnbounded(ack);
+    }
+
+    private OutboundQueue.Entry newAck(int stream) {
+        byte[] ack = new byte[ACK_SIZE];
+        FrameCodec.writeHeader(FrameCodec.TYPE_ACK, (byte) 0, 1 + SEQ_SIZE, ack, 0);
+        ack[FrameCodec.HEADER_SIZE] = (byte) stream;
+        return new OutboundQueue.Entry(ack, OutboundQueue.LANE_CONTROL, ackListener);
+    }
+
+    private synchronized void ackWritten(OutboundQueue.Entry ack, Throwable failure) {
+        int stream = ack.frame[FrameCodec.HEADER_SIZE];
+        if (ack == acks[stream]) {
+            ackInUse[stream] = false;
+        }
+        if (ackQueued[stream] != ack) {
+            return;
+        }
+        OutboundQueue link = ackLink[stream];
+        ackQueued[stream] = null;
+        ackLink[stream] = null;
+        if (failure != null) {
+            // The link is gone; the next one acks whatever it receives.
+            ackDue[stream] = true;
+        } else if (ackDue[stream] && receiving[stream]) {
+            queueAck(link, stream);
+        }
+    }
+
+    public synchronized int unackedCount() {
+        int n = 0;
+        for (int i = 0; i < STREAMS; i++) {
+            n += unacked[i].size() + backlog[i].size();
+        }
+        return n;
+    }
+
+    /** Fails everything still waiting and rejects further sends. */
+    public void close(IOException cause) {
+        List<Pending> dropped = new ArrayList<>();
+        synchronized (this) {
+            if (closedCause != null) {
+                return;
+            }
+            closedCause = cause;
+            link = null;
+            for (int i = 0; i < STREAMS; i++) {
+                dropped.addAll(unacked[i]);
+                dropped.addAll(backlog[i]);
+                unacked[i].clear();
+                backlog[i].clear();
+            }
+            for (Pending p : dropped) {
+                finish(p);
+            }
+        }
+        for (Pending p : dropped) {
+            p.result.completeExceptionally(cause);
+        }
+    }
+
+    private void release(int stream) {
+        while (unacked[stream].size() < window && !backlog[stream].isEmpty()) {
+            Pending p = backlog[stream].pollFirst();
+            unacked[stream].addLast(p);
+            offer(stream, p);
+        }
+    }
+
+    private void offer(int stream, Pending p) {
+        p.queued++;
+        link.offer(laneFor(stream), p.frame, p.length).whenComplete((v, e) -> written(p, e));
+    }
+
+    private synchronized void written(Pending p, Throwable failure) {
+        p.queued--;
+        if (failure == null) {
+            p.writtenNanos = clock.nanoTime();
+        }
+        if (p.done && p.queued == 0) {
+            recycle(p.frame);
+        }
+    }
+
+    /** The frame is no longer needed here; it is recycled once no queue holds it. */
+    private void finish(Pending p) {
+        p.done = true;
+        if (p.queued == 0) {
+            recycle(p.frame);
+        }
+    }
+
+    private byte[] acquireFrame(int length) {
+        for (BufferPool pool : framePools) {
+            if (length <= pool.bufferSize()) {
+                return pool.acquire();
+            }
+        }
+        return new byte[length];
+    }
+
+    private void recycle(byte[] frame) {
+        for (BufferPool pool : framePools) {
+            pool.release(frame);
+        }
+    }
+
+    /** Falls back to plain frames for a peer that does not ack. */
+    private void sendUnnumbered(int stream, ArrayDeque<Pending> queue) {
+        for (Pending p : queue) {
+            byte[] frame = FrameCodec.encode(p.frame[1], (byte) 0, p.frame,
+                    FrameCodec.HEADER_SIZE + SEQ_SIZE, p.length - FrameCodec.HEADER_SIZE - SEQ_SIZE);
+            finish(p);
+            link.offer(laneFor(stream), frame).whenComplete((v, e) -> {
+                if (e != null) {
+                    p.result.completeExceptionally(e);
+                } else {
+                    p.result.complete(null);
+                }
+            });
+        }
+        queue.clear();
+    }
+
+    static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16)
+                | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.disasterchat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/** Bluetooth Classic RFCOMM sockets, addressed by device MAC. */
+public class RfcommTransport implements Transport {
+    private static final String SERVICE_NAME = "DisasterChat";
+    static final UUID SERVICE_UUID = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+
+    private final BluetoothAdapter bluetoothAdapter;
+
+    public RfcommTransport(BluetoothAdapter bluetoothAdapter) {
+        this.bluetoothAdapter = bluetoothAdapter;
+    }
+
+    @Override
+    public Server listen() throws IOException {
+        BluetoothServerSocket serverSocket =
+                bluetoothAdapter.listenUsingRfcommWithServiceRecord(SERVICE_NAME, SERVICE_UUID);
+        return new Server() {
+            @Override
+            public Connection accept() throws IOException {
+                BluetoothSocket socket = serverSocket.accept();
+                return new SocketConnection(socket, socket.getRemoteDevice());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Connection open(String address) throws IOException {
+        BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
+        return new SocketConnection(device.createRfcommSocketToServiceRecord(SERVICE_UUID), device);
+    }
+
+    private class SocketConnection implements Connection {
+        private final BluetoothSocket socket;
+        private final BluetoothDevice device;
+
+        SocketConnection(BluetoothSocket socket, BluetoothDevice device) {
+            this.socket = socket;
+            this.device = device;
+        }
+
+        @Override
+        public String getAddress() {
+            return device.getAddress();
+        }
+
+        @Override
+        public String getName() {
+            String name = device.getName();
+            return name != null ? name : device.getAddress();
+        }
+
+        @Override
+        public void connect() throws IOException {
+            // An inquiry in progress slows the connection down considerably.
+            bluetoothAdapter.cancelDiscovery();
+            socket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
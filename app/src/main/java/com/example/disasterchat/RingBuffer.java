@@ -0,0 +1,86 @@
+package com.example.disasterchat;
+
+/**
+ * Fixed-capacity deque backed by a circular array. Adding to a full buffer evicts from
+ * the opposite end, so memory never grows past {@code capacity} entries.
+ */
+public class RingBuffer<T> {
+    private final Object[] items;
+    private int head;
+    private int size;
+
+    public RingBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.items = new Object[capacity];
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == items.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+        return (T) items[(head + index) % items.length];
+    }
+
+    /** Appends at the newest end; returns the oldest entry if one had to be evicted. */
+    public T addLast(T item) {
+        T evicted = isFull() ? removeFirst() : null;
+        items[(head + size) % items.length] = item;
+        size++;
+        return evicted;
+    }
+
+    /** Prepends at the oldest end; returns the newest entry if one had to be evicted. */
+    public T addFirst(T item) {
+        T evicted = isFull() ? removeLast() : null;
+        head = (head - 1 + items.length) % items.length;
+        items[head] = item;
+        size++;
+        return evicted;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T removeFirst() {
+        if (size == 0) {
+            return null;
+        }
+        T item = (T) items[head];
+        items[head] = null;
+        head = (head + 1) % items.length;
+        size--;
+        return item;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T removeLast() {
+        if (size == 0) {
+            return null;
+        }
+        int tail = (head + size - 1) % items.length;
+        T item = (T) items[tail];
+        items[tail] = null;
+        size--;
+        return item;
+    }
+
+    public void clear() {
+        while (size > 0) {
+            removeLast();
+        }
+        head = 0;
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.disasterchat;
+
+/**
+ * Next hop towards each known node id, learned from route announcements. Each node
+ * announces itself with a rising sequence number; a route is taken when its sequence is
+ * newer than the one held, or equally new but shorter, and it lapses unless refreshed
+ * within the expiry. Kept in parallel arrays with open addressing, so a table of a few
+ * hundred routes is a handful of small arrays rather than one object per route.
+ */
+public class RoutingTable {
+    public static final long DEFAULT_EXPIRY_MS = 90_000;
+
+    public interface Visitor {
+        void visit(int node, String nextHop, int hops, int sequence);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final int[] nodes;
+    /** Null marks a free slot. */
+    private final String[] nextHops;
+    private final byte[] hops;
+    private final int[] sequences;
+    private final long[] expiresAt;
+    private int size;
+    private long expiryMillis = DEFAULT_EXPIRY_MS;
+
+    public RoutingTable(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        this.mask = tableSize - 1;
+        this.nodes = new int[tableSize];
+        this.nextHops = new String[tableSize];
+        this.hops = new byte[tableSize];
+        this.sequences = new int[tableSize];
+        this.expiresAt = new long[tableSize];
+    }
+
+    public synchronized void setExpiry(long expiryMillis) {
+        this.expiryMillis = expiryMillis;
+    }
+
+    /**
+     * Offers a route to {@code node} through {@code nextHop}. Returns true if it was
+     * taken, which is when it is worth passing on to other neighbours.
+     */
+    public synchronized boolean update(int node, String nextHop, int hopCount, int sequence, long nowMillis) {
+        int slot = find(node);
+        if (slot < 0) {
+            if (size == capacity && expire(nowMillis) == 0) {
+                return false;
+            }
+            slot = freeSlot(node);
+            nodes[slot] = node;
+            size++;
+        } else if (expiresAt[slot] > nowMillis) {
+            int age = sequence - sequences[slot];
+            if (age < 0 || (age == 0 && hopCount >= hops[slot])) {
+                return false;
+            }
+        }
+        nextHops[slot] = nextHop;
+        hops[slot] = (byte) Math.min(hopCount, Byte.MAX_VALUE);
+        sequences[slot] = sequence;
+        expiresAt[slot] = nowMillis + expiryMillis;
+        return true;
+    }
+
+    /** Neighbour address leading to {@code node}, or null if no live route is known. */
+    public synchronized String nextHop(int node, long nowMillis) {
+        int slot = find(node);
+        return slot >= 0 && expiresAt[slot] > nowMillis ? nextHops[slot] : null;
+    }
+
+    /** Hops to {@code node}, or -1 if no live route is known. */
+    public synchronized int hops(int node, long nowMillis) {
+        int slot = find(node);
+        return slot >= 0 && expiresAt[slot] > nowMillis ? hops[slot] : -1;
+    }
+
+    /** Drops every route through a neighbour whose link went away; returns how many. */
+    public synchronized int removeVia(String nextHop) {
+        int removed = 0;
+        for (int slot = 0; slot < nextHops.length; slot++) {
+            // A removal can shift a later entry into this slot, so look at it again.
+            while (nextHops[slot] != null && nextHops[slot].equals(nextHop)) {
+                removeAt(slot);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public synchronized int expire(long nowMillis) {
+        int removed = 0;
+        for (int slot = 0; slot < nextHops.length; slot++) {
+            while (nextHops[slot] != null && expiresAt[slot] <= nowMillis) {
+                removeAt(slot);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /** Visits live routes; the visitor must not call back into the table. */
+    public synchronized void forEach(long nowMillis, Visitor visitor) {
+        for (int slot = 0; slot < nextHops.length; slot++) {
+            if (nextHops[slot] != null && expiresAt[slot] > nowMillis) {
+                visitor.visit(nodes[slot], nextHops[slot], hops[slot], sequences[slot]);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private int home(int node) {
+        return (node * 0x9E3779B9) >>> 7 & mask;
+    }
+
+    private int find(int node) {
+        int slot = home(node);
+        while (nextHops[slot] != null) {
+            if (nodes[slot] == node) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int freeSlot(int node) {
+        int slot = home(node);
+        while (nextHops[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /** Backward-shift deletion, so lookups never need tombstones. */
+    private void removeAt(int hole) {
+        nextHops[hole] = null;
+        size--;
+        int slot = (hole + 1) & mask;
+        while (nextHops[slot] != null) {
+            int home = home(nodes[slot]);
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                nodes[hole] = nodes[slot];
+                nextHops[hole] = nextHops[slot];
+                hops[hole] = hops[slot];
+                sequences[hole] = sequences[slot];
+                expiresAt[hole] = expiresAt[slot];
+                nextHops[slot] = null;
+                hole = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+}
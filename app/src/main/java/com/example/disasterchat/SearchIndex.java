@@ -0,0 +1,337 @@
+package com.example.disasterchat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Inverted index over journaled messages: each term maps to the journal sequences of the
+ * messages containing it, stored as ascending varint deltas, a byte or two per entry.
+ * Terms are kept sorted, so a prefix is a range of them. A query matches the messages
+ * holding every one of its terms; a word ending in {@code *} matches any term it starts.
+ * Persisted as a binary file that records how far the journal was indexed, so opening
+ * only indexes the records appended since. Sequences may be indexed out of order; the
+ * ones skipped over are remembered until they arrive, and catching up starts at the
+ * lowest of them.
+ */
+public class SearchIndex {
+    /** Longer terms are cut to this, and so are query terms. */
+    static final int MAX_TERM_LENGTH = 32;
+    private static final int FILE_VERSION = 1;
+
+    /** Sequences of the messages holding one term. */
+    static final class Postings {
+        private byte[] data = new byte[4];
+        private int length;
+        int count;
+        private long last = -1;
+
+        /** Appends in the common case; an older sequence arriving late is merged in order. */
+        void add(long sequence) {
+            if (sequence > last) {
+                append(sequence);
+                return;
+            }
+            long[] sequences = decode();
+            int at = Arrays.binarySearch(sequences, sequence);
+            if (at >= 0) {
+                return;
+            }
+            at = -at - 1;
+            length = 0;
+            count = 0;
+            last = -1;
+            for (int i = 0; i < at; i++) {
+                append(sequences[i]);
+            }
+            append(sequence);
+            for (int i = at; i < sequences.length; i++) {
+                append(sequences[i]);
+            }
+        }
+
+        private void append(long sequence) {
+            if (length + 10 > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + 10));
+            }
+            long delta = sequence - last;
+            while (delta >= 0x80) {
+                data[length++] = (byte) (delta | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte) delta;
+            last = sequence;
+            count++;
+        }
+
+        long[] decode() {
+            long[] sequences = new long[count];
+            long sequence = -1;
+            int at = 0;
+            for (int i = 0; i < count; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[at++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                sequence += delta;
+                sequences[i] = sequence;
+            }
+            return sequences;
+        }
+    }
+
+    private final File file;
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    private long firstSequence;
+    /** One past the highest sequence indexed. */
+    private long nextSequence;
+    /** Sequences below {@link #nextSequence} not indexed yet. */
+    private final TreeSet<Long> missing = new TreeSet<>();
+
+    public SearchIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Indexes a message body. Sequences may arrive out of order, as they do when several
+     * threads journal at once; one already indexed, or already dropped, is ignored.
+     */
+    public synchronized void add(long sequence, String text) {
+        if (sequence < firstSequence || (sequence < nextSequence && !missing.remove(sequence))) {
+            return;
+        }
+        for (long skipped = nextSequence; skipped < sequence; skipped++) {
+            missing.add(skipped);
+        }
+        for (String term : tokenize(text)) {
+            Postings postings = terms.get(term);
+            if (postings == null) {
+                postings = new Postings();
+                terms.put(term, postings);
+            }
+            postings.add(sequence);
+        }
+        nextSequence = Math.max(nextSequence, sequence + 1);
+    }
+
+    /** Lowest sequence not indexed yet: where catching up with the journal starts. */
+    public synchronized long nextSequence() {
+        return missing.isEmpty() ? nextSequence : missing.first();
+    }
+
+    public synchronized int termCount() {
+        return terms.size();
+    }
+
+    /** Forgets messages below {@code sequence}, once the journal has dropped them. */
+    public synchronized void removeBefore(long sequence) {
+        if (sequence <= firstSequence) {
+            return;
+        }
+        firstSequence = sequence;
+        nextSequence = Math.max(nextSequence, sequence);
+        missing.headSet(sequence).clear();
+        for (Iterator<Postings> it = terms.values().iterator(); it.hasNext(); ) {
+            Postings postings = it.next();
+            if (postings.last < sequence) {
+                it.remove();
+                continue;
+            }
+            long[] sequences = postings.decode();
+            if (sequences[0] >= sequence) {
+                continue;
+            }
+            Postings kept = new Postings();
+            for (long s : sequences) {
+                if (s >= sequence) {
+                    kept.add(s);
+                }
+            }
+            postings.data = kept.data;
+            postings.length = kept.length;
+            postings.count = kept.count;
+        }
+    }
+
+    /**
+     * Sequences of the messages matching {@code query}, newest first, at most
+     * {@code limit}. Empty if the query holds no terms.
+     */
+    public synchronized long[] search(String query, int limit) {
+        List<long[]> required = new ArrayList<>();
+        for (String word : query.trim().split("\\s+")) {
+            boolean prefix = word.endsWith("*");
+            List<String> words = tokenize(word);
+            for (int i = 0; i < words.size(); i++) {
+                long[] matches = prefix && i == words.size() - 1 ? matchPrefix(words.get(i)) : matchTerm(words.get(i));
+                if (matches.length == 0) {
+                    return matches;
+                }
+                required.add(matches);
+            }
+        }
+        if (required.isEmpty()) {
+            return new long[0];
+        }
+        required.sort((a, b) -> Integer.compare(a.length, b.length));
+        long[] result = required.get(0);
+        for (int i = 1; i < required.size() && result.length > 0; i++) {
+            result = intersect(result, required.get(i));
+        }
+        long[] newest = new long[Math.min(limit, result.length)];
+        for (int i = 0; i < newest.length; i++) {
+            newest[i] = result[result.length - 1 - i];
+        }
+        return newest;
+    }
+
+    private long[] matchTerm(String term) {
+        Postings postings = terms.get(term);
+        return postings == null ? new long[0] : postings.decode();
+    }
+
+    private long[] matchPrefix(String prefix) {
+        Collection<Postings> range = terms.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values();
+        if (range.size() == 1) {
+            return range.iterator().next().decode();
+        }
+        int total = 0;
+        for (Postings postings : range) {
+            total += postings.count;
+        }
+        long[] all = new long[total];
+        int length = 0;
+        for (Postings postings : range) {
+            long[] sequences = postings.decode();
+            System.arraycopy(sequences, 0, all, length, sequences.length);
+            length += sequences.length;
+        }
+        Arrays.sort(all);
+        int distinct = 0;
+        for (int i = 0; i < all.length; i++) {
+            if (i == 0 || all[i] != all[i - 1]) {
+                all[distinct++] = all[i];
+            }
+        }
+        return Arrays.copyOf(all, distinct);
+    }
+
+    /** Both ascending; steps through the shorter and gallops through the longer. */
+    private static long[] intersect(long[] shorter, long[] longer) {
+        long[] common = new long[shorter.length];
+        int count = 0;
+        int from = 0;
+        for (long sequence : shorter) {
+            int step = 1;
+            int hi = from;
+            while (hi < longer.length && longer[hi] < sequence) {
+                from = hi + 1;
+                hi += step;
+                step <<= 1;
+            }
+            int at = Arrays.binarySearch(longer, from, Math.min(hi + 1, longer.length), sequence);
+            if (at >= 0) {
+                common[count++] = sequence;
+                from = at + 1;
+            } else {
+                from = -at - 1;
+            }
+            if (from >= longer.length) {
+                break;
+            }
+        }
+        return Arrays.copyOf(common, count);
+    }
+
+    /** Lower-cased runs of letters and digits, each at most {@link #MAX_TERM_LENGTH} chars. */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= text.length(); ) {
+            int c = i < text.length() ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (term.length() < MAX_TERM_LENGTH) {
+                    term.appendCodePoint(Character.toLowerCase(c));
+                }
+            } else if (term.length() > 0) {
+                tokens.add(term.toString());
+                term.setLength(0);
+            }
+            i += Character.charCount(c);
+        }
+        return tokens;
+    }
+
+    /** Starts empty if the file is missing, from another version, or cut short. */
+    public synchronized void load() throws IOException {
+        terms.clear();
+        missing.clear();
+        firstSequence = 0;
+        nextSequence = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readUnsignedByte() != FILE_VERSION) {
+                return;
+            }
+            long first = in.readLong();
+            long next = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String term = in.readUTF();
+                Postings postings = new Postings();
+                postings.count = in.readInt();
+                postings.last = in.readLong();
+                postings.length = in.readInt();
+                postings.data = new byte[postings.length];
+                in.readFully(postings.data);
+                terms.put(term, postings);
+            }
+            firstSequence = first;
+            nextSequence = next;
+        } catch (FileNotFoundException | EOFException e) {
+            // Nothing saved yet, or a write was cut short; the journal is indexed afresh.
+            terms.clear();
+        }
+    }
+
+    /** Writes to a temporary file and renames it over the old one. */
+    public synchronized void save() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeByte(FILE_VERSION);
+            out.writeLong(firstSequence);
+            // Catching up from the first gap re-adds some indexed records; postings skip them.
+            out.writeLong(nextSequence());
+            out.writeInt(terms.size());
+            for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+                Postings postings = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(postings.count);
+                out.writeLong(postings.last);
+                out.writeInt(postings.length);
+                out.write(postings.data, 0, postings.length);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+}
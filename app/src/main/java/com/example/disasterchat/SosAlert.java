@@ -0,0 +1,109 @@
+package com.example.disasterchat;
+
+/**
+ * Where an SOS came from and how bad it is, merged over every report from one sender.
+ * Geotagged SOS bodies start with {@code [u8 0xFF][u8 severity][i32 lat e7][i32 lon e7]}
+ * before the text; 0xFF never occurs in UTF-8, so untagged bodies are told apart by
+ * their first byte.
+ */
+public final class SosAlert {
+    public static final int GEOTAG_SIZE = 10;
+    public static final int SEVERITY_MIN = 1;
+    public static final int SEVERITY_MAX = 5;
+    private static final byte GEOTAG_MARKER = (byte) 0xFF;
+    private static final double EARTH_RADIUS_M = 6_371_000;
+
+    public final int sender;
+    /** Degrees times 10^7, as sent. */
+    public final int latE7;
+    public final int lonE7;
+    public final int severity;
+    public final String text;
+    public final long firstMillis;
+    public final long lastMillis;
+    /** How many reports were merged into this one. */
+    public final int reports;
+
+    SosAlert(int sender, int latE7, int lonE7, int severity, String text,
+             long firstMillis, long lastMillis, int reports) {
+        this.sender = sender;
+        this.latE7 = latE7;
+        this.lonE7 = lonE7;
+        this.severity = severity;
+        this.text = text;
+        this.firstMillis = firstMillis;
+        this.lastMillis = lastMillis;
+        this.reports = reports;
+    }
+
+    /**
+     * Counted as one more report. Its position, severity and text replace these only if it
+     * is at least as recent; history sync and relays deliver older reports late.
+     */
+    SosAlert mergedWith(int latE7, int lonE7, int severity, String text, long millis) {
+        if (millis < lastMillis) {
+            return new SosAlert(sender, this.latE7, this.lonE7, this.severity, this.text,
+                    Math.min(firstMillis, millis), lastMillis, reports + 1);
+        }
+        return new SosAlert(sender, latE7, lonE7, severity, text, firstMillis, millis, reports + 1);
+    }
+
+    public double latitude() {
+        return latE7 / 1e7;
+    }
+
+    public double longitude() {
+        return lonE7 / 1e7;
+    }
+
+    public double distanceMeters(double latitude, double longitude) {
+        return distanceMeters(latE7, lonE7, toE7(latitude), toE7(longitude));
+    }
+
+    /** Great-circle distance by the haversine formula. */
+    static double distanceMeters(int latE7a, int lonE7a, int latE7b, int lonE7b) {
+        double latA = Math.toRadians(latE7a / 1e7);
+        double latB = Math.toRadians(latE7b / 1e7);
+        double sinLat = Math.sin((latB - latA) / 2);
+        double sinLon = Math.sin(Math.toRadians((lonE7b - (double) lonE7a) / 1e7) / 2);
+        double h = sinLat * sinLat + Math.cos(latA) * Math.cos(latB) * sinLon * sinLon;
+        return 2 * EARTH_RADIUS_M * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    static int toE7(double degrees) {
+        return (int) Math.round(degrees * 1e7);
+    }
+
+    public static void writeGeotag(double latitude, double longitude, int severity, byte[] dst, int offset) {
+        if (!(latitude >= -90 && latitude <= 90 && longitude >= -180 && longitude <= 180)) {
+            throw new IllegalArgumentException("Not a position: " + latitude + ", " + longitude);
+        }
+        dst[offset] = GEOTAG_MARKER;
+        dst[offset + 1] = (byte) Math.max(SEVERITY_MIN, Math.min(SEVERITY_MAX, severity));
+        writeInt(dst, offset + 2, toE7(latitude));
+        writeInt(dst, offset + 6, toE7(longitude));
+    }
+
+    public static boolean hasGeotag(byte[] body, int offset, int length) {
+        return length >= GEOTAG_SIZE && body[offset] == GEOTAG_MARKER;
+    }
+
+    static int readSeverity(byte[] body, int offset) {
+        return body[offset + 1] & 0xFF;
+    }
+
+    static int readLatE7(byte[] body, int offset) {
+        return ReliableChannel.readInt(body, offset + 2);
+    }
+
+    static int readLonE7(byte[] body, int offset) {
+        return ReliableChannel.readInt(body, offset + 6);
+    }
+
+    private static void writeInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >>> 24);
+        dst[offset + 1] = (byte) (value >>> 16);
+        dst[offset + 2] = (byte) (value >>> 8);
+        dst[offset + 3] = (byte) value;
+    }
+}
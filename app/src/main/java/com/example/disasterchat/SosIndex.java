@@ -0,0 +1,178 @@
+package com.example.disasterchat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Received SOS alerts, one per sender, on a grid of 0.01° cells (about 1.1 km north to
+ * south). A radius query visits only the cells its bounding box covers, or every
+ * occupied cell when that is fewer; a nearest-N query widens the radius by doubling
+ * until it holds N alerts. Either stays proportional to the alerts near the point
+ * rather than to all of them.
+ */
+public class SosIndex {
+    static final int CELL_E7 = 100_000;
+    private static final int LAT_CELLS = (int) (180 * 10_000_000L / CELL_E7);
+    private static final int LON_CELLS = (int) (360 * 10_000_000L / CELL_E7);
+    private static final double METERS_PER_DEGREE = 111_195;
+    private static final double CELL_METERS = METERS_PER_DEGREE * CELL_E7 / 1e7;
+    /** Half the earth's circumference: every alert is within this. */
+    private static final double MAX_DISTANCE_M = 20_016_000;
+
+    private final Map<Integer, SosAlert> bySender = new HashMap<>();
+    private final Map<Long, List<SosAlert>> cells = new HashMap<>();
+
+    /**
+     * Records a report; a sender's earlier alert is replaced by the merged one, which
+     * is returned.
+     */
+    public synchronized SosAlert report(int sender, int latE7, int lonE7, int severity, String text, long millis) {
+        SosAlert previous = bySender.get(sender);
+        SosAlert alert;
+        if (previous == null) {
+            alert = new SosAlert(sender, latE7, lonE7, severity, text, millis, millis, 1);
+        } else {
+            removeFromCell(previous);
+            alert = previous.mergedWith(latE7, lonE7, severity, text, millis);
+        }
+        bySender.put(sender, alert);
+        cells.computeIfAbsent(cellOf(alert.latE7, alert.lonE7), key -> new ArrayList<>()).add(alert);
+        return alert;
+    }
+
+    public synchronized SosAlert get(int sender) {
+        return bySender.get(sender);
+    }
+
+    public synchronized int size() {
+        return bySender.size();
+    }
+
+    /** Forgets alerts not reported since {@code millis}; returns how many. */
+    public synchronized int removeOlderThan(long millis) {
+        int removed = 0;
+        for (Iterator<SosAlert> it = bySender.values().iterator(); it.hasNext(); ) {
+            SosAlert alert = it.next();
+            if (alert.lastMillis < millis) {
+                it.remove();
+                removeFromCell(alert);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /** Alerts within {@code meters} of the point, nearest first. */
+    public synchronized List<SosAlert> within(double latitude, double longitude, double meters) {
+        List<Hit> hits = collect(SosAlert.toE7(latitude), SosAlert.toE7(longitude), meters);
+        hits.sort(null);
+        return alertsOf(hits, hits.size());
+    }
+
+    public synchronized int countWithin(double latitude, double longitude, double meters) {
+        return collect(SosAlert.toE7(latitude), SosAlert.toE7(longitude), meters).size();
+    }
+
+    /** The {@code n} alerts nearest the point, nearest first. */
+    public synchronized List<SosAlert> nearest(double latitude, double longitude, int n) {
+        int latE7 = SosAlert.toE7(latitude);
+        int lonE7 = SosAlert.toE7(longitude);
+        double meters = bySender.size() <= n ? MAX_DISTANCE_M : CELL_METERS;
+        List<Hit> hits;
+        while (true) {
+            hits = collect(latE7, lonE7, meters);
+            if (hits.size() >= n || meters >= MAX_DISTANCE_M) {
+                break;
+            }
+            meters = Math.min(meters * 2, MAX_DISTANCE_M);
+        }
+        hits.sort(null);
+        return alertsOf(hits, Math.min(n, hits.size()));
+    }
+
+    private List<Hit> collect(int latE7, int lonE7, double meters) {
+        List<Hit> hits = new ArrayList<>();
+        double spanDegrees = meters / METERS_PER_DEGREE;
+        int latLo = Math.max(0, latCell(latE7 - spanDegrees * 1e7));
+        int latHi = Math.min(LAT_CELLS - 1, latCell(latE7 + spanDegrees * 1e7));
+        // Meridians converge, so the longitude span is set by the latitude nearest a pole.
+        double poleward = Math.abs(latE7 / 1e7) + spanDegrees;
+        long lonSpan = poleward >= 89.9 ? LON_CELLS
+                : (long) Math.ceil(spanDegrees / Math.cos(Math.toRadians(poleward)) * 1e7 / CELL_E7) * 2 + 1;
+        lonSpan = Math.min(lonSpan, LON_CELLS);
+
+        if ((latHi - latLo + 1) * lonSpan > cells.size()) {
+            for (List<SosAlert> cell : cells.values()) {
+                addHits(cell, latE7, lonE7, meters, hits);
+            }
+            return hits;
+        }
+        int lonFirst = lonCell(lonE7) - (int) (lonSpan / 2);
+        for (int lat = latLo; lat <= latHi; lat++) {
+            for (int i = 0; i < lonSpan; i++) {
+                int lon = Math.floorMod(lonFirst + i, LON_CELLS);
+                List<SosAlert> cell = cells.get((long) lat * LON_CELLS + lon);
+                if (cell != null) {
+                    addHits(cell, latE7, lonE7, meters, hits);
+                }
+            }
+        }
+        return hits;
+    }
+
+    private static void addHits(List<SosAlert> cell, int latE7, int lonE7, double meters, List<Hit> hits) {
+        for (SosAlert alert : cell) {
+            double distance = SosAlert.distanceMeters(latE7, lonE7, alert.latE7, alert.lonE7);
+            if (distance <= meters) {
+                hits.add(new Hit(alert, distance));
+            }
+        }
+    }
+
+    private static List<SosAlert> alertsOf(List<Hit> hits, int n) {
+        List<SosAlert> alerts = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            alerts.add(hits.get(i).alert);
+        }
+        return alerts;
+    }
+
+    private void removeFromCell(SosAlert alert) {
+        long key = cellOf(alert.latE7, alert.lonE7);
+        List<SosAlert> cell = cells.get(key);
+        cell.remove(alert);
+        if (cell.isEmpty()) {
+            cells.remove(key);
+        }
+    }
+
+    private static long cellOf(int latE7, int lonE7) {
+        return (long) Math.min(LAT_CELLS - 1, latCell(latE7)) * LON_CELLS + lonCell(lonE7);
+    }
+
+    private static int latCell(double latE7) {
+        return (int) Math.floor((latE7 + 900_000_000) / CELL_E7);
+    }
+
+    private static int lonCell(int lonE7) {
+        return Math.floorMod((int) Math.floorDiv(lonE7 + 1_800_000_000L, CELL_E7), LON_CELLS);
+    }
+
+    private static final class Hit implements Comparable<Hit> {
+        final SosAlert alert;
+        final double meters;
+
+        Hit(SosAlert alert, double meters) {
+            this.alert = alert;
+            this.meters = meters;
+        }
+
+        @Override
+        public int compareTo(Hit other) {
+            return Double.compare(meters, other.meters);
+        }
+    }
+}
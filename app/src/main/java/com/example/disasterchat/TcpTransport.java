@@ -0,0 +1,141 @@
+package com.example.disasterchat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Localhost TCP stand-in for RFCOMM, addressed as "host:port". Each instance listens on
+ * its own port so many virtual peers can share one machine. A connecting side first sends
+ * the port it listens on, so an accepted link carries the same address the peer is
+ * reached at, not the ephemeral port it happened to connect from.
+ */
+public class TcpTransport implements Transport {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    /** How long an accepted socket may take to send its listen port. */
+    private static final int PREAMBLE_TIMEOUT_MS = 5000;
+
+    private final int listenPort;
+    private volatile int boundPort = -1;
+
+    /** {@code listenPort} 0 picks a free port; see {@link #getListenAddress()}. */
+    public TcpTransport(int listenPort) {
+        this.listenPort = listenPort;
+    }
+
+    public String getListenAddress() {
+        return "127.0.0.1:" + boundPort;
+    }
+
+    @Override
+    public Server listen() throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), listenPort));
+        boundPort = serverSocket.getLocalPort();
+        return new Server() {
+            @Override
+            public Connection accept() throws IOException {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    int port;
+                    try {
+                        port = readListenPort(socket);
+                    } catch (IOException e) {
+                        socket.close();
+                        continue;
+                    }
+                    return new SocketConnection(socket, null, port);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Connection open(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IOException("Expected host:port, got " + address);
+        }
+        InetSocketAddress target;
+        try {
+            target = new InetSocketAddress(address.substring(0, colon),
+                    Integer.parseInt(address.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad port in " + address, e);
+        }
+        return new SocketConnection(new Socket(), target, 0);
+    }
+
+    private static int readListenPort(Socket socket) throws IOException {
+        socket.setSoTimeout(PREAMBLE_TIMEOUT_MS);
+        InputStream in = socket.getInputStream();
+        int high = in.read();
+        int low = in.read();
+        if (low < 0) {
+            throw new EOFException("closed before sending its listen port");
+        }
+        socket.setSoTimeout(0);
+        return (high << 8) | low;
+    }
+
+    private class SocketConnection implements Connection {
+        private final Socket socket;
+        private final InetSocketAddress target;
+        /** Port an accepted peer listens on; 0 if it does not listen, leaving its ephemeral port. */
+        private final int peerListenPort;
+
+        SocketConnection(Socket socket, InetSocketAddress target, int peerListenPort) {
+            this.socket = socket;
+            this.target = target;
+            this.peerListenPort = peerListenPort;
+        }
+
+        @Override
+        public String getAddress() {
+            if (target != null) {
+                return target.getHostString() + ":" + target.getPort();
+            }
+            return socket.getInetAddress().getHostAddress() + ":" + (peerListenPort != 0 ? peerListenPort : socket.getPort());
+        }
+
+        @Override
+        public String getName() {
+            return getAddress();
+        }
+
+        @Override
+        public void connect() throws IOException {
+            socket.connect(target, CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            int port = Math.max(0, boundPort);
+            socket.getOutputStream().write(new byte[] {(byte) (port >>> 8), (byte) port});
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.disasterchat;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * UTF-8 conversion for message bodies with one encoder, one decoder and one character
+ * buffer reused across calls, so the conversion itself allocates nothing. Views of the
+ * caller's arrays are cached for the two most recent arrays: a link's frames come out of
+ * either its read buffer or the decoder's buffer for frames split across reads. Not
+ * thread-safe; each reader thread owns one and the send path locks its own.
+ */
+public class TextCodec {
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharBuffer chars;
+    private ByteBuffer bytes;
+    private ByteBuffer previousBytes;
+
+    /** {@code maxChars} bounds both the text encoded and the text decoded per call. */
+    public TextCodec(int maxChars) {
+        this.chars = CharBuffer.allocate(maxChars);
+    }
+
+    /**
+     * Encodes {@code text} into {@code dst} at {@code offset}, writing at most
+     * {@code maxLength} bytes. Text that does not fit is cut at a character boundary.
+     * Returns the number of bytes written.
+     */
+    public int encode(CharSequence text, byte[] dst, int offset, int maxLength) {
+        chars.clear();
+        int n = Math.min(text.length(), Math.min(maxLength, chars.capacity()));
+        if (n < text.length() && n > 0 && Character.isHighSurrogate(text.charAt(n - 1))) {
+            // Half a pair would be encoded as a replacement character.
+            n--;
+        }
+        if (text instanceof String) {
+            ((String) text).getChars(0, n, chars.array(), 0);
+        } else {
+            for (int i = 0; i < n; i++) {
+                chars.array()[i] = text.charAt(i);
+            }
+        }
+        chars.limit(n);
+
+        ByteBuffer out = wrap(dst, offset, maxLength);
+        encoder.reset();
+        encoder.encode(chars, out, true);
+        encoder.flush(out);
+        return out.position() - offset;
+    }
+
+    /**
+     * Decodes {@code length} bytes at {@code offset}. The returned buffer is reused by the
+     * next call; copy it (e.g. with {@code toString()}) to keep the text.
+     */
+    public CharBuffer decode(byte[] src, int offset, int length) {
+        ByteBuffer in = wrap(src, offset, length);
+        chars.clear();
+        decoder.reset();
+        decoder.decode(in, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        return chars;
+    }
+
+    private ByteBuffer wrap(byte[] array, int offset, int length) {
+        if (bytes == null || bytes.array() != array) {
+            ByteBuffer other = previousBytes;
+            previousBytes = bytes;
+            bytes = other != null && other.array() == array ? other : ByteBuffer.wrap(array);
+        }
+        bytes.limit(offset + length).position(offset);
+        return bytes;
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.disasterchat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Stream transport underneath {@link BluetoothChatService}: RFCOMM on devices, in-process
+ * pipes or localhost TCP for load tests. Addresses are opaque to the service.
+ */
+public interface Transport {
+
+    interface Connection extends Closeable {
+        String getAddress();
+
+        /** Human-readable peer name; falls back to the address. */
+        String getName();
+
+        /** Blocks until an outgoing connection is established; closing cancels it. */
+        void connect() throws IOException;
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+    }
+
+    interface Server extends Closeable {
+        /** Blocks for the next incoming connection; closing the server unblocks it. */
+        Connection accept() throws IOException;
+    }
+
+    Server listen() throws IOException;
+
+    /** Creates an unconnected outgoing connection to {@code address}. */
+    Connection open(String address) throws IOException;
+}
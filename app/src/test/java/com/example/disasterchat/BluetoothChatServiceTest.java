@@ -0,0 +1,639 @@
+package com.example.disasterchat;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BluetoothChatServiceTest {
+
+    private static final byte[] DICTIONARY = PayloadCompressor.buildDictionary("SOS");
+
+    private final List<BluetoothChatService> services = new ArrayList<>();
+
+    private BluetoothChatService start(Transport transport, BlockingQueue<ChatMessage> inbox) {
+        BluetoothChatService service = new BluetoothChatService(null, transport, DICTIONARY,
+                inbox::add, peer -> { }, peer -> { });
+        services.add(service);
+        service.start();
+        return service;
+    }
+
+    private static void awaitLinks(BluetoothChatService service, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (service.getLinkCount() < count) {
+            assertTrue("timed out waiting for links", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (BluetoothChatService service : services) {
+            service.stop();
+        }
+    }
+
+    @Test
+    public void loopbackChain_relaysToTheFarEnd() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        BlockingQueue<ChatMessage> inboxA = new LinkedBlockingQueue<>();
+        BlockingQueue<ChatMessage> inboxC = new LinkedBlockingQueue<>();
+        BluetoothChatService a = start(new LoopbackTransport(network, "A"), inboxA);
+        BluetoothChatService b = start(new LoopbackTransport(network, "B"), new LinkedBlockingQueue<>());
+        BluetoothChatService c = start(new LoopbackTransport(network, "C"), inboxC);
+
+        b.connect("A");
+        b.connect("C");
+        awaitLinks(b, 2);
+        awaitLinks(a, 1);
+        awaitLinks(c, 1);
+
+        a.write(FrameCodec.TYPE_SOS, "help at the bridge".getBytes(StandardCharsets.UTF_8))
+                .get(5, TimeUnit.SECONDS);
+
+        ChatMessage received = inboxC.poll(5, TimeUnit.SECONDS);
+        assertNotNull(received);
+        assertEquals(ChatMessage.KIND_SOS_RECEIVED, received.kind);
+        assertEquals(a.getNodeId(), received.senderId);
+        assertEquals("help at the bridge", received.body);
+        // B relays back only away from the source, so A never hears its own message.
+        assertNull(inboxA.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void loopbackPair_recordsLinkMetrics() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        BluetoothChatService a = new BluetoothChatService(null, new LoopbackTransport(network, "A"), DICTIONARY,
+                message -> { }, peer -> { }, peer -> { });
+        a.setPingInterval(10, TimeUnit.MILLISECONDS);
+        services.add(a);
+        a.start();
+        BlockingQueue<ChatMessage> inbox = new LinkedBlockingQueue<>();
+        BluetoothChatService b = start(new LoopbackTransport(network, "B"), inbox);
+
+        a.connect("B");
+        awaitLinks(a, 1);
+        a.write("metrics".getBytes(StandardCharsets.UTF_8)).get(5, TimeUnit.SECONDS);
+        assertNotNull(inbox.poll(5, TimeUnit.SECONDS));
+
+        LinkMetrics link = a.getMetrics().link("B");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (link.getRttNanos().getCount() == 0) {
+            assertTrue("no pong received", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+        assertEquals(1, link.getConnectCount());
+        assertTrue(link.isConnected());
+        assertTrue(link.getFramesOut() >= 2);
+        assertTrue(link.getBytesOut() > 0);
+        assertTrue(link.getFramesIn() >= 2);
+        assertEquals(link.getFramesOut(), link.getWriteLatencyNanos().getCount());
+
+        StringWriter dump = new StringWriter();
+        a.getMetrics().dump(dump);
+        assertTrue(dump.toString().contains("link B up=1 connects=1 reconnects=0 failures=0"));
+    }
+
+    @Test
+    public void droppedLink_isRestoredWithoutDiscovery() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        BluetoothChatService a = start(new LoopbackTransport(network, "A"), new LinkedBlockingQueue<>());
+        a.setReconnectBackoff(20, 200, TimeUnit.MILLISECONDS);
+        BluetoothChatService b = start(new LoopbackTransport(network, "B"), new LinkedBlockingQueue<>());
+
+        a.connect("B");
+        awaitLinks(a, 1);
+
+        b.stop();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (a.getLinkCount() != 0) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+        Thread.sleep(100);
+        b.start();
+
+        awaitLinks(a, 1);
+        awaitLinks(b, 1);
+        LinkMetrics link = a.getMetrics().link("B");
+        assertEquals(1, link.getReconnectCount());
+    }
+
+    @Test
+    public void notListening_refusesNewLinksButKeepsOpenOnes() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        BluetoothChatService a = start(new LoopbackTransport(network, "A"), new LinkedBlockingQueue<>());
+        BluetoothChatService b = start(new LoopbackTransport(network, "B"), new LinkedBlockingQueue<>());
+        BlockingQueue<ChatMessage> inboxC = new LinkedBlockingQueue<>();
+        BluetoothChatService c = start(new LoopbackTransport(network, "C"), inboxC);
+        c.connect("B");
+        awaitLinks(b, 1);
+
+        b.setListening(false);
+        a.connect("B");
+        Thread.sleep(100);
+        assertEquals(0, a.getLinkCount());
+        assertEquals(1, b.getLinkCount());
+        b.write("still linked").get(5, TimeUnit.SECONDS);
+        assertEquals("still linked", inboxC.poll(5, TimeUnit.SECONDS).body);
+
+        b.setListening(true);
+        a.connect("B");
+        awaitLinks(a, 1);
+        awaitLinks(b, 2);
+    }
+
+    @Test
+    public void messagesInFlightWhenTheLinkDrops_areDeliveredAfterReconnect() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        BluetoothChatService a = start(new LoopbackTransport(network, "A"), new LinkedBlockingQueue<>());
+        a.setReconnectBackoff(20, 200, TimeUnit.MILLISECONDS);
+        BlockingQueue<ChatMessage> inbox = new LinkedBlockingQueue<>();
+        BluetoothChatService b = start(new LoopbackTransport(network, "B"), inbox);
+
+        a.connect("B");
+        awaitLinks(a, 1);
+        awaitLinks(b, 1);
+
+        int count = 100;
+        List<CompletableFuture<Void>> sent = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            sent.add(a.write(("message " + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        b.stop();
+        b.start();
+
+        CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        Set<String> bodies = new HashSet<>();
+        ChatMessage m;
+        while ((m = inbox.poll(100, TimeUnit.MILLISECONDS)) != null) {
+            bodies.add(m.body);
+        }
+        assertEquals(count, bodies.size());
+        assertTrue(a.getMetrics().link("B").getRetransmits() > 0);
+    }
+
+    @Test
+    public void fileTransfer_completesWhileChatKeepsFlowing() throws Exception {
+        File outbox = Files.createTempDirectory("outbox").toFile();
+        File incoming = Files.createTempDirectory("incoming").toFile();
+        byte[] data = new byte[50 * 1024];
+        new Random(7).nextBytes(data);
+        File source = new File(outbox, "map.bin");
+        Files.write(source.toPath(), data);
+
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        BluetoothChatService a = start(new LoopbackTransport(network, "A"), new LinkedBlockingQueue<>());
+        BlockingQueue<ChatMessage> inbox = new LinkedBlockingQueue<>();
+        BluetoothChatService b = start(new LoopbackTransport(network, "B"), inbox);
+        BlockingQueue<File> files = new LinkedBlockingQueue<>();
+        b.setIncomingFileDirectory(incoming);
+        b.setOnFileReceived((from, file) -> files.add(file));
+
+        a.connect("B");
+        awaitLinks(a, 1);
+        awaitLinks(b, 1);
+
+        CompletableFuture<Void> sent = a.sendFile("B", source);
+        a.write("during transfer".getBytes(StandardCharsets.UTF_8)).get(5, TimeUnit.SECONDS);
+        sent.get(10, TimeUnit.SECONDS);
+
+        ChatMessage chat = inbox.poll(5, TimeUnit.SECONDS);
+        assertNotNull(chat);
+        assertEquals("during transfer", chat.body);
+        File received = files.poll(5, TimeUnit.SECONDS);
+        assertNotNull(received);
+        assertArrayEquals(data, Files.readAllBytes(received.toPath()));
+
+        source.delete();
+        received.delete();
+        outbox.delete();
+        incoming.delete();
+    }
+
+    @Test
+    public void stateChanges_areReportedInOrder_andSendingNeverWaitsOnTheServiceLock() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        BluetoothChatService a = new BluetoothChatService(null, new LoopbackTransport(network, "A"), DICTIONARY,
+                message -> { }, peer -> { }, peer -> { });
+        services.add(a);
+        List<String> transitions = new CopyOnWriteArrayList<>();
+        a.addStateListener(t -> transitions.add(ConnectionState.NAMES[t.from] + ">" + ConnectionState.NAMES[t.to]));
+        BlockingQueue<ChatMessage> inbox = new LinkedBlockingQueue<>();
+        start(new LoopbackTransport(network, "B"), inbox);
+
+        a.start();
+        a.connect("B");
+        awaitLinks(a, 1);
+
+        // A connect or accept in progress holds the service monitor; status checks and sends don't need it.
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            synchronized (a) {
+                held.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        holder.start();
+        held.await();
+        try {
+            assertTrue(a.isConnected());
+            assertEquals(ConnectionState.CONNECTED, a.getState());
+            assertEquals(1, a.getLinkCount());
+            a.write("while locked").get(5, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            holder.join();
+        }
+        assertEquals("while locked", inbox.poll(5, TimeUnit.SECONDS).body);
+
+        a.stop();
+        assertEquals(Arrays.asList("none>listen", "listen>connecting", "connecting>connected", "connected>none"),
+                transitions);
+    }
+
+    private static void awaitRoute(BluetoothChatService service, int node) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!service.hasRouteTo(node)) {
+            assertTrue("timed out waiting for a route", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void directMessage_takesOnlyTheRouteToItsDestination() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        List<BlockingQueue<ChatMessage>> inboxes = new ArrayList<>();
+        List<BluetoothChatService> nodes = new ArrayList<>();
+        for (String name : new String[] {"A", "B", "C", "D"}) {
+            BlockingQueue<ChatMessage> inbox = new LinkedBlockingQueue<>();
+            BluetoothChatService service = new BluetoothChatService(null, new LoopbackTransport(network, name),
+                    DICTIONARY, inbox::add, peer -> { }, peer -> { });
+            service.setPingInterval(0, TimeUnit.MILLISECONDS);
+            services.add(service);
+            service.start();
+            inboxes.add(inbox);
+            nodes.add(service);
+        }
+        BluetoothChatService a = nodes.get(0);
+        BluetoothChatService b = nodes.get(1);
+        BluetoothChatService c = nodes.get(2);
+        BluetoothChatService d = nodes.get(3);
+
+        // B is a hub for A, C and D.
+        b.connect("C");
+        b.connect("D");
+        awaitLinks(b, 2);
+        b.connect("A");
+        awaitLinks(b, 3);
+        awaitRoute(a, c.getNodeId());
+        awaitRoute(d, a.getNodeId());
+        awaitRoute(c, a.getNodeId());
+
+        long framesToD = d.getMetrics().link("B").getFramesIn();
+        a.sendTo(c.getNodeId(), "meet at the school").get(5, TimeUnit.SECONDS);
+
+        ChatMessage received = inboxes.get(2).poll(5, TimeUnit.SECONDS);
+        assertNotNull(received);
+        assertEquals("meet at the school", received.body);
+        assertEquals(a.getNodeId(), received.senderId);
+        Thread.sleep(100);
+        assertEquals(framesToD, d.getMetrics().link("B").getFramesIn());
+        assertTrue(inboxes.get(3).isEmpty());
+
+        // The same text as a broadcast does reach D.
+        a.write("meet at the school").get(5, TimeUnit.SECONDS);
+        assertNotNull(inboxes.get(3).poll(5, TimeUnit.SECONDS));
+        assertTrue(d.getMetrics().link("B").getFramesIn() > framesToD);
+    }
+
+    @Test
+    public void directMessage_withoutARoute_isFloodedAndStillArrives() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        BluetoothChatService a = start(new LoopbackTransport(network, "A"), new LinkedBlockingQueue<>());
+        BlockingQueue<ChatMessage> inbox = new LinkedBlockingQueue<>();
+        BluetoothChatService b = start(new LoopbackTransport(network, "B"), inbox);
+
+        a.connect("B");
+        awaitLinks(a, 1);
+        awaitLinks(b, 1);
+        a.sendTo(12345, "nobody here").get(5, TimeUnit.SECONDS);
+        a.sendTo(b.getNodeId(), "for you").get(5, TimeUnit.SECONDS);
+
+        ChatMessage received = inbox.poll(5, TimeUnit.SECONDS);
+        assertNotNull(received);
+        assertEquals("for you", received.body);
+        assertNull(inbox.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void lateJoiner_catchesUpOnHistory_sosFirst() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        BluetoothChatService a = start(new LoopbackTransport(network, "A"), new LinkedBlockingQueue<>());
+        BlockingQueue<ChatMessage> inboxC = new LinkedBlockingQueue<>();
+        BluetoothChatService c = start(new LoopbackTransport(network, "C"), inboxC);
+        a.connect("C");
+        awaitLinks(a, 1);
+        awaitLinks(c, 1);
+        a.write("one").get(5, TimeUnit.SECONDS);
+        a.write(FrameCodec.TYPE_SOS, "help".getBytes(StandardCharsets.UTF_8)).get(5, TimeUnit.SECONDS);
+        a.write("two").get(5, TimeUnit.SECONDS);
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(inboxC.poll(5, TimeUnit.SECONDS));
+        }
+
+        BlockingQueue<ChatMessage> inboxB = new LinkedBlockingQueue<>();
+        BluetoothChatService b = start(new LoopbackTransport(network, "B"), inboxB);
+        b.connect("C");
+
+        List<String> bodies = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            ChatMessage received = inboxB.poll(5, TimeUnit.SECONDS);
+            assertNotNull(received);
+            assertEquals(a.getNodeId(), received.senderId);
+            bodies.add(received.body);
+        }
+        assertEquals(Arrays.asList("help", "two", "one"), bodies);
+        assertNull(inboxB.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void restartedNode_keepsItsIdAndWhatItHadSeen() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        int nodeId = 0x0A0B0C0D;
+        List<byte[]> journal = new CopyOnWriteArrayList<>();
+        BlockingQueue<ChatMessage> inboxA = new LinkedBlockingQueue<>();
+        BluetoothChatService a = new BluetoothChatService(null, new LoopbackTransport(network, "A"), DICTIONARY,
+                nodeId, message -> {
+                    journal.add(message.toRecord());
+                    inboxA.add(message);
+                }, peer -> { }, peer -> { });
+        a.setOnMessageSent(message -> journal.add(message.toRecord()));
+        services.add(a);
+        a.start();
+        BlockingQueue<ChatMessage> inboxB = new LinkedBlockingQueue<>();
+        BluetoothChatService b = start(new LoopbackTransport(network, "B"), inboxB);
+        b.setReconnectBackoff(20, 200, TimeUnit.MILLISECONDS);
+        b.connect("A");
+        awaitLinks(a, 1);
+        awaitLinks(b, 1);
+
+        a.write("before the restart").get(5, TimeUnit.SECONDS);
+        b.writeSos(52.5200, 13.4050, 5, "trapped").get(5, TimeUnit.SECONDS);
+        b.write("seen it").get(5, TimeUnit.SECONDS);
+        assertNotNull(inboxB.poll(5, TimeUnit.SECONDS));
+        assertNotNull(inboxA.poll(5, TimeUnit.SECONDS));
+        assertNotNull(inboxA.poll(5, TimeUnit.SECONDS));
+        assertEquals(3, journal.size());
+
+        a.stop();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (b.getLinkCount() != 0) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+
+        BlockingQueue<ChatMessage> inboxRestarted = new LinkedBlockingQueue<>();
+        BluetoothChatService restarted = new BluetoothChatService(null, new LoopbackTransport(network, "A"),
+                DICTIONARY, nodeId, inboxRestarted::add, peer -> { }, peer -> { });
+        services.add(restarted);
+        for (byte[] record : journal) {
+            restarted.restore(ChatMessage.fromRecord(0, record));
+        }
+        assertEquals(1, restarted.getSosAlerts().get(b.getNodeId()).reports);
+        restarted.start();
+        awaitLinks(restarted, 1);
+
+        // Its first new message is not taken for one from before the restart, and
+        // reconciliation sends back nothing it already had, nor its own message.
+        restarted.write("after the restart").get(5, TimeUnit.SECONDS);
+        ChatMessage fresh = inboxB.poll(5, TimeUnit.SECONDS);
+        assertNotNull(fresh);
+        assertEquals("after the restart", fresh.body);
+        assertEquals(nodeId, fresh.senderId);
+        assertNull(inboxRestarted.poll(200, TimeUnit.MILLISECONDS));
+        assertNull(inboxB.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void geotaggedSos_isIndexedAtTheFarEnd() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        BluetoothChatService a = start(new LoopbackTransport(network, "A"), new LinkedBlockingQueue<>());
+        start(new LoopbackTransport(network, "B"), new LinkedBlockingQueue<>());
+        BlockingQueue<ChatMessage> inbox = new LinkedBlockingQueue<>();
+        BluetoothChatService c = start(new LoopbackTransport(network, "C"), inbox);
+        a.connect("B");
+        c.connect("B");
+        awaitLinks(a, 1);
+        awaitLinks(c, 1);
+
+        a.writeSos(52.5200, 13.4050, 5, "trapped under debris").get(5, TimeUnit.SECONDS);
+
+        ChatMessage received = inbox.poll(5, TimeUnit.SECONDS);
+        assertNotNull(received);
+        assertEquals(ChatMessage.KIND_SOS_RECEIVED, received.kind);
+        assertEquals("trapped under debris", received.body);
+        SosAlert alert = c.getSosAlerts().get(a.getNodeId());
+        assertNotNull(alert);
+        assertEquals(5, alert.severity);
+        assertEquals(52.52, alert.latitude(), 1e-7);
+        assertEquals(alert, c.getSosAlerts().nearest(52.5, 13.4, 1).get(0));
+    }
+
+    @Test
+    public void backToBackSos_carryWhetherEachWasTheFirstReport() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        BluetoothChatService a = start(new LoopbackTransport(network, "A"), new LinkedBlockingQueue<>());
+        BlockingQueue<ChatMessage> inbox = new LinkedBlockingQueue<>();
+        start(new LoopbackTransport(network, "B"), inbox);
+        a.connect("B");
+        awaitLinks(a, 1);
+
+        CompletableFuture<Void> first = a.writeSos(52.5200, 13.4050, 4, "trapped");
+        CompletableFuture<Void> second = a.writeSos(52.5201, 13.4050, 5, "still trapped");
+        CompletableFuture.allOf(first, second).get(5, TimeUnit.SECONDS);
+
+        // A consumer on another thread may look only after both are indexed; each message
+        // still says what its own report did.
+        ChatMessage one = inbox.poll(5, TimeUnit.SECONDS);
+        ChatMessage two = inbox.poll(5, TimeUnit.SECONDS);
+        assertEquals(1, one.alert.reports);
+        assertEquals(4, one.alert.severity);
+        assertEquals(2, two.alert.reports);
+        assertEquals(5, two.alert.severity);
+        assertNull(ChatMessage.received(FrameCodec.TYPE_SOS, 1, 0, "plain").alert);
+    }
+
+    private BluetoothChatService startPinging(Transport transport, BlockingQueue<ChatMessage> inbox) {
+        BluetoothChatService service = new BluetoothChatService(null, transport, DICTIONARY,
+                inbox::add, peer -> { }, peer -> { });
+        service.setPingInterval(100, TimeUnit.MILLISECONDS);
+        service.setCompressionEnabled(false);
+        services.add(service);
+        service.start();
+        return service;
+    }
+
+    @Test
+    public void slowLinkUnderChatFlood_adaptsItsRateAndSosStillGetsThrough() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network(16 * 1024);
+        BluetoothChatService a = startPinging(new LoopbackTransport(network, "A"), new LinkedBlockingQueue<>());
+        BlockingQueue<ChatMessage> inbox = new LinkedBlockingQueue<>();
+        startPinging(new LoopbackTransport(network, "B"), inbox);
+        a.connect("B");
+        awaitLinks(a, 1);
+
+        // About 160 KB of chat, ten seconds' worth for this link.
+        char[] filler = new char[400];
+        Arrays.fill(filler, 'x');
+        for (int i = 0; i < 400; i++) {
+            a.write(i + new String(filler));
+        }
+        Thread.sleep(3000);
+        long rate = a.getMetrics().link("B").getSendRate();
+        assertTrue("rate " + rate, rate > 0 && rate < 32 * 1024);
+
+        long sent = System.nanoTime();
+        a.write(FrameCodec.TYPE_SOS, "help".getBytes(StandardCharsets.UTF_8));
+        ChatMessage received;
+        do {
+            received = inbox.poll(5, TimeUnit.SECONDS);
+            assertNotNull(received);
+        } while (!received.isSos());
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sent);
+        // Without pacing the SOS would wait behind the pipe's 64 KB, four seconds at this rate.
+        assertTrue("SOS took " + millis + " ms", millis < 1500);
+    }
+
+    @Test
+    public void tcpPair_exchangesMessages() throws Exception {
+        TcpTransport serverTransport = new TcpTransport(0);
+        BlockingQueue<ChatMessage> inbox = new LinkedBlockingQueue<>();
+        BluetoothChatService server = start(serverTransport, inbox);
+        BluetoothChatService client = start(new TcpTransport(0), new LinkedBlockingQueue<>());
+
+        client.connect(serverTransport.getListenAddress());
+        awaitLinks(server, 1);
+        awaitLinks(client, 1);
+
+        client.write("hello over tcp".getBytes(StandardCharsets.UTF_8)).get(5, TimeUnit.SECONDS);
+
+        ChatMessage received = inbox.poll(5, TimeUnit.SECONDS);
+        assertNotNull(received);
+        assertEquals(ChatMessage.KIND_RECEIVED, received.kind);
+        assertEquals("hello over tcp", received.body);
+    }
+
+    @Test
+    public void tcpPeer_keepsItsListenAddressAcrossReconnects() throws Exception {
+        TcpTransport serverTransport = new TcpTransport(0);
+        BlockingQueue<String> peers = new LinkedBlockingQueue<>();
+        BluetoothChatService server = new BluetoothChatService(null, serverTransport, DICTIONARY,
+                message -> { }, peer -> peers.add(peer.getAddress()), peer -> { });
+        services.add(server);
+        server.start();
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        TcpTransport clientTransport = new TcpTransport(port);
+        BluetoothChatService client = start(clientTransport, new LinkedBlockingQueue<>());
+        awaitListening(clientTransport);
+
+        for (int round = 0; round < 2; round++) {
+            client.connect(serverTransport.getListenAddress());
+            assertEquals(clientTransport.getListenAddress(), peers.poll(5, TimeUnit.SECONDS));
+            awaitLinks(server, 1);
+            client.stop();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (server.getLinkCount() != 0) {
+                assertTrue(System.nanoTime() < deadline);
+                Thread.sleep(5);
+            }
+            client.start();
+            awaitListening(clientTransport);
+        }
+        assertEquals(2, server.getMetrics().link(clientTransport.getListenAddress()).getConnectCount());
+    }
+
+    private static void awaitListening(TcpTransport transport) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (transport.getListenAddress().endsWith(":-1")) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * What the read thread of a relaying node allocates per chat frame on the real path:
+     * frame decoding, duplicate check, history, the consumer's message and the relay copy.
+     */
+    @Test
+    public void relayingReadThread_allocationPerFrameStaysBounded() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(counter.isThreadAllocatedMemorySupported());
+        counter.setThreadAllocatedMemoryEnabled(true);
+
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        AtomicReference<Thread> reader = new AtomicReference<>();
+        BluetoothChatService a = start(new LoopbackTransport(network, "A"), new LinkedBlockingQueue<>());
+        BluetoothChatService b = new BluetoothChatService(null, new LoopbackTransport(network, "B"), DICTIONARY,
+                message -> reader.set(Thread.currentThread()), peer -> { }, peer -> { });
+        services.add(b);
+        b.start();
+        BlockingQueue<ChatMessage> inboxC = new LinkedBlockingQueue<>();
+        start(new LoopbackTransport(network, "C"), inboxC);
+        b.connect("A");
+        b.connect("C");
+        awaitLinks(b, 2);
+        awaitLinks(a, 1);
+
+        int frames = 500;
+        long[] allocated = new long[2];
+        for (int round = 0; round < 2; round++) {
+            List<CompletableFuture<Void>> sent = new ArrayList<>();
+            for (int i = 0; i < frames; i++) {
+                sent.add(a.write("need water at the school, 3 people " + i));
+            }
+            CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+            for (int i = 0; i < frames; i++) {
+                assertNotNull(inboxC.poll(5, TimeUnit.SECONDS));
+            }
+            allocated[round] = counter.getThreadAllocatedBytes(reader.get().getId());
+        }
+        // Roughly 1.2 KB today: the ChatMessage for the listener, and the queue entry and
+        // futures for the relay, whose frame is pooled. A per-frame read-sized buffer or a
+        // copy per read would break this; MeshLinkTest holds the rest of the path to zero.
+        long perFrame = (allocated[1] - allocated[0]) / frames;
+        assertTrue("read thread allocated " + perFrame + " bytes per frame", perFrame < 4096);
+    }
+}
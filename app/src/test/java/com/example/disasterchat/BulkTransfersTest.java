@@ -0,0 +1,260 @@
+package com.example.disasterchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class BulkTransfersTest {
+
+    private File outbox;
+    private File inbox;
+
+    @Before
+    public void setUp() throws IOException {
+        outbox = Files.createTempDirectory("outbox").toFile();
+        inbox = Files.createTempDirectory("inbox").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File dir : new File[] {outbox, inbox}) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    private File writeFile(String name, int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        File file = new File(outbox, name);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    /** Moves up to {@code limit} frames from {@code queue} to {@code to}; returns how many. */
+    private static int pump(OutboundQueue queue, BulkTransfers to, OutboundQueue reply, String from,
+                            int limit, int corruptChunk) {
+        int moved = 0;
+        OutboundQueue.Entry entry;
+        while (moved < limit && (entry = queue.poll()) != null) {
+            byte[] frame = entry.frame.clone();
+            entry.result.complete(null);
+            int length = frame.length - FrameCodec.HEADER_SIZE;
+            if (frame[1] == FrameCodec.TYPE_FILE_CHUNK
+                    && ReliableChannel.readInt(frame, FrameCodec.HEADER_SIZE + 8) == corruptChunk) {
+                frame[frame.length - 1] ^= 0x5A;
+                corruptChunk = -1;
+            }
+            to.onFrame(from, reply, frame[1], frame, FrameCodec.HEADER_SIZE, length);
+            moved++;
+        }
+        return moved;
+    }
+
+    private static void exchange(OutboundQueue aToB, BulkTransfers b, OutboundQueue bToA, BulkTransfers a,
+                                 int corruptChunk) {
+        while (pump(aToB, b, bToA, "A", Integer.MAX_VALUE, corruptChunk)
+                + pump(bToA, a, aToB, "B", Integer.MAX_VALUE, -1) > 0) {
+            corruptChunk = -1;
+        }
+    }
+
+    @Test
+    public void send_deliversFileSpanningManyChunks() throws Exception {
+        File source = writeFile("map.bin", BulkTransfers.CHUNK_SIZE * 40 + 123);
+        OutboundQueue aToB = new OutboundQueue(64);
+        OutboundQueue bToA = new OutboundQueue(64);
+        BulkTransfers a = new BulkTransfers(address -> aToB);
+        BulkTransfers b = new BulkTransfers(address -> bToA, Runnable::run);
+        b.setIncomingDirectory(inbox);
+        AtomicReference<File> received = new AtomicReference<>();
+        b.setOnFileReceived((from, file) -> received.set(file));
+
+        CompletableFuture<Void> sent = a.send("B", source, 1L);
+        exchange(aToB, b, bToA, a, -1);
+
+        assertTrue(sent.isDone());
+        sent.get();
+        assertNotNull(received.get());
+        assertEquals("map.bin", received.get().getName());
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(received.get().toPath()));
+    }
+
+    @Test
+    public void corruptedChunk_isSentAgain() throws Exception {
+        File source = writeFile("photo.jpg", BulkTransfers.CHUNK_SIZE * 5);
+        OutboundQueue aToB = new OutboundQueue(64);
+        OutboundQueue bToA = new OutboundQueue(64);
+        BulkTransfers a = new BulkTransfers(address -> aToB);
+        BulkTransfers b = new BulkTransfers(address -> bToA, Runnable::run);
+        b.setIncomingDirectory(inbox);
+        AtomicReference<File> received = new AtomicReference<>();
+        b.setOnFileReceived((from, file) -> received.set(file));
+
+        CompletableFuture<Void> sent = a.send("B", source, 2L);
+        exchange(aToB, b, bToA, a, 2);
+
+        sent.get();
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(received.get().toPath()));
+    }
+
+    @Test
+    public void acks_getThroughAFullControlLane() throws Exception {
+        File source = writeFile("report.pdf", BulkTransfers.CHUNK_SIZE * 20);
+        OutboundQueue aToB = new OutboundQueue(64);
+        OutboundQueue bToA = new OutboundQueue(2);
+        // Route and pong bursts share the lane; the sender has no timer to recover a lost ack.
+        bToA.offer(OutboundQueue.LANE_CONTROL, FrameCodec.encode(FrameCodec.TYPE_PONG, new byte[8]));
+        bToA.offer(OutboundQueue.LANE_CONTROL, FrameCodec.encode(FrameCodec.TYPE_PONG, new byte[8]));
+        BulkTransfers a = new BulkTransfers(address -> aToB);
+        BulkTransfers b = new BulkTransfers(address -> bToA, Runnable::run);
+        b.setIncomingDirectory(inbox);
+        AtomicReference<File> received = new AtomicReference<>();
+        b.setOnFileReceived((from, file) -> received.set(file));
+
+        CompletableFuture<Void> sent = a.send("B", source, 6L);
+        exchange(aToB, b, bToA, a, -1);
+
+        assertTrue(sent.isDone());
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(received.get().toPath()));
+    }
+
+    @Test
+    public void interruptedTransfer_resumesFromPartialFile() throws Exception {
+        File source = writeFile("notes.txt", BulkTransfers.CHUNK_SIZE * 30 + 7);
+        OutboundQueue firstLink = new OutboundQueue(64);
+        OutboundQueue firstReply = new OutboundQueue(64);
+        AtomicReference<OutboundQueue> link = new AtomicReference<>(firstLink);
+        BulkTransfers a = new BulkTransfers(address -> link.get());
+        BulkTransfers b = new BulkTransfers(address -> firstReply, Runnable::run);
+        b.setIncomingDirectory(inbox);
+
+        CompletableFuture<Void> sent = a.send("B", source, 3L);
+        // Offer, first ack, then 15 of the 16 chunks in the window arrive before the link drops.
+        pump(firstLink, b, firstReply, "A", 1, -1);
+        pump(firstReply, a, firstLink, "B", 1, -1);
+        pump(firstLink, b, firstReply, "A", 15, -1);
+        b.close();
+        assertFalse(sent.isDone());
+        File part = new File(inbox, Long.toHexString(3L) + ".part");
+        assertEquals(15L * BulkTransfers.CHUNK_SIZE, part.length());
+
+        // The receiver restarts and the sender offers again on a new link.
+        OutboundQueue aToB = new OutboundQueue(64);
+        OutboundQueue bToA = new OutboundQueue(64);
+        link.set(aToB);
+        BulkTransfers restarted = new BulkTransfers(address -> bToA, Runnable::run);
+        restarted.setIncomingDirectory(inbox);
+        AtomicReference<File> received = new AtomicReference<>();
+        restarted.setOnFileReceived((from, file) -> received.set(file));
+        a.onLinkUp("B", aToB);
+        pump(aToB, restarted, bToA, "A", 1, -1);
+        pump(bToA, a, aToB, "B", 1, -1);
+
+        OutboundQueue.Entry first = aToB.poll();
+        assertEquals(FrameCodec.TYPE_FILE_CHUNK, first.frame[1]);
+        assertEquals(15, ReliableChannel.readInt(first.frame, FrameCodec.HEADER_SIZE + 8));
+        byte[] frame = first.frame.clone();
+        first.result.complete(null);
+        restarted.onFrame("A", bToA, frame[1], frame, FrameCodec.HEADER_SIZE, frame.length - FrameCodec.HEADER_SIZE);
+        exchange(aToB, restarted, bToA, a, -1);
+
+        sent.get();
+        assertFalse(part.exists());
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(received.get().toPath()));
+    }
+
+    @Test
+    public void offer_isRefusedWithoutIncomingDirectory() throws Exception {
+        File source = writeFile("a.bin", 10);
+        OutboundQueue aToB = new OutboundQueue(64);
+        OutboundQueue bToA = new OutboundQueue(64);
+        BulkTransfers a = new BulkTransfers(address -> aToB);
+        BulkTransfers b = new BulkTransfers(address -> bToA, Runnable::run);
+
+        CompletableFuture<Void> sent = a.send("B", source, 4L);
+        exchange(aToB, b, bToA, a, -1);
+
+        assertTrue(sent.isCompletedExceptionally());
+        assertEquals(0, inbox.list().length);
+    }
+
+    @Test
+    public void chunks_areStoredOnTheWriterAndAckedAfterwards() throws Exception {
+        File source = writeFile("log.txt", BulkTransfers.CHUNK_SIZE * 2);
+        OutboundQueue aToB = new OutboundQueue(64);
+        OutboundQueue bToA = new OutboundQueue(64);
+        ArrayDeque<Runnable> writes = new ArrayDeque<>();
+        BulkTransfers a = new BulkTransfers(address -> aToB);
+        BulkTransfers b = new BulkTransfers(address -> bToA, writes::add);
+        b.setIncomingDirectory(inbox);
+
+        CompletableFuture<Void> sent = a.send("B", source, 5L);
+        pump(aToB, b, bToA, "A", 1, -1);
+        pump(bToA, a, aToB, "B", 1, -1);
+        assertEquals(2, pump(aToB, b, bToA, "A", Integer.MAX_VALUE, -1));
+
+        File part = new File(inbox, Long.toHexString(5L) + ".part");
+        assertEquals(2, writes.size());
+        assertEquals(0, part.length());
+        assertNull(bToA.poll());
+
+        writes.poll().run();
+        assertEquals(BulkTransfers.CHUNK_SIZE, part.length());
+        OutboundQueue.Entry ack = bToA.poll();
+        assertEquals(FrameCodec.TYPE_FILE_ACK, ack.frame[1]);
+        assertEquals(1, ReliableChannel.readInt(ack.frame, FrameCodec.HEADER_SIZE + 8));
+
+        writes.poll().run();
+        pump(bToA, a, aToB, "B", Integer.MAX_VALUE, -1);
+        sent.get();
+        assertArrayEquals(Files.readAllBytes(source.toPath()),
+                Files.readAllBytes(new File(inbox, "log.txt").toPath()));
+    }
+
+    @Test
+    public void chunkLongerThanOffered_isRejected() throws Exception {
+        OutboundQueue bToA = new OutboundQueue(64);
+        BulkTransfers b = new BulkTransfers(address -> bToA, Runnable::run);
+        b.setIncomingDirectory(inbox);
+
+        byte[] offer = new byte[21];
+        offer[7] = 6;
+        offer[15] = 100;
+        offer[19] = 64;
+        offer[20] = 'x';
+        b.onFrame("A", bToA, FrameCodec.TYPE_FILE_OFFER, offer, 0, offer.length);
+        assertEquals(0, ReliableChannel.readInt(bToA.poll().frame, FrameCodec.HEADER_SIZE + 8));
+
+        byte[] chunk = new byte[16 + 65];
+        chunk[7] = 6;
+        CRC32 crc = new CRC32();
+        crc.update(chunk, 16, 65);
+        int checksum = (int) crc.getValue();
+        chunk[12] = (byte) (checksum >>> 24);
+        chunk[13] = (byte) (checksum >>> 16);
+        chunk[14] = (byte) (checksum >>> 8);
+        chunk[15] = (byte) checksum;
+        b.onFrame("A", bToA, FrameCodec.TYPE_FILE_CHUNK, chunk, 0, chunk.length);
+
+        OutboundQueue.Entry reject = bToA.poll();
+        assertEquals(BulkTransfers.ACK_REJECT, reject.frame[FrameCodec.HEADER_SIZE + 12]);
+        assertEquals(0, new File(inbox, Long.toHexString(6L) + ".part").length());
+    }
+}
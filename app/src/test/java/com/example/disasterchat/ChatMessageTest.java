@@ -0,0 +1,74 @@
+package com.example.disasterchat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class ChatMessageTest {
+
+    @Test
+    public void record_roundTripsAllFields() {
+        ChatMessage original = ChatMessage.received(FrameCodec.TYPE_SOS, 0x1A2B3C4D, 1_700_000_000_000L, "trapped 🚨");
+
+        ChatMessage decoded = ChatMessage.fromRecord(42, original.toRecord());
+
+        assertEquals(ChatMessage.KIND_SOS_RECEIVED, decoded.kind);
+        assertEquals(0x1A2B3C4D, decoded.senderId);
+        assertEquals(1_700_000_000_000L, decoded.timestamp);
+        assertEquals(ChatMessage.PRIORITY_SOS, decoded.priority);
+        assertEquals("trapped 🚨", decoded.body);
+        assertEquals(42, decoded.sequence);
+        assertEquals("🚨 SOS from 1A2B3C4D: trapped 🚨", decoded.displayText);
+    }
+
+    @Test
+    public void record_keepsThePacketAndItsType() {
+        long messageId = MeshPacket.messageId(0x1A2B3C4D, 7);
+        byte[] packet = MeshPacket.encode(messageId, 3, 1_700_000_000_000L,
+                "to you".getBytes(StandardCharsets.UTF_8));
+        ChatMessage original = ChatMessage.received(FrameCodec.TYPE_DIRECT, packet, "to you", null);
+
+        ChatMessage decoded = ChatMessage.fromRecord(3, original.toRecord());
+
+        assertEquals(ChatMessage.KIND_RECEIVED, decoded.kind);
+        assertEquals(0x1A2B3C4D, decoded.senderId);
+        assertEquals("to you", decoded.body);
+        assertEquals(FrameCodec.TYPE_DIRECT, decoded.packetType);
+        assertArrayEquals(packet, decoded.packet);
+        assertEquals(messageId, decoded.messageId());
+    }
+
+    @Test
+    public void versionOneRecord_readsWithoutAPacket() {
+        byte[] text = "help".getBytes(StandardCharsets.UTF_8);
+        byte[] record = ByteBuffer.allocate(15 + text.length)
+                .put((byte) 1).put((byte) ChatMessage.KIND_SOS_SENT).putInt(5).putLong(9L)
+                .put((byte) ChatMessage.PRIORITY_SOS).put(text).array();
+
+        ChatMessage decoded = ChatMessage.fromRecord(1, record);
+
+        assertEquals(ChatMessage.KIND_SOS_SENT, decoded.kind);
+        assertEquals("help", decoded.body);
+        assertNull(decoded.packet);
+        assertEquals(0, decoded.messageId());
+    }
+
+    @Test
+    public void legacyTextRecord_isShownVerbatim() {
+        ChatMessage decoded = ChatMessage.fromRecord(7, "Sent: hello".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(ChatMessage.KIND_SYSTEM, decoded.kind);
+        assertEquals("Sent: hello", decoded.displayText);
+    }
+
+    @Test
+    public void chatFrame_isNotClassifiedAsSos() {
+        ChatMessage message = ChatMessage.received(FrameCodec.TYPE_CHAT, 1, 0, "no SOS here");
+
+        assertFalse(message.isSos());
+        assertEquals(ChatMessage.KIND_RECEIVED, message.kind);
+    }
+}
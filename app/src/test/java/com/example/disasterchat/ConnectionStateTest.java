@@ -0,0 +1,75 @@
+package com.example.disasterchat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class ConnectionStateTest {
+
+    private final ConnectionState state = new ConnectionState();
+
+    @Test
+    public void compareAndSet_onlyMovesFromTheExpectedState() {
+        assertEquals(ConnectionState.NONE, state.get());
+        assertFalse(state.compareAndSet(ConnectionState.LISTEN, ConnectionState.CONNECTING));
+        assertTrue(state.compareAndSet(ConnectionState.NONE, ConnectionState.LISTEN));
+        assertEquals(ConnectionState.LISTEN, state.get());
+        assertEquals(1, state.transitionCount());
+    }
+
+    @Test
+    public void disallowedTransitions_areRefused() {
+        assertFalse(state.moveTo(ConnectionState.CONNECTED));
+        assertFalse(state.moveTo(ConnectionState.NONE));
+        assertEquals(0, state.transitionCount());
+        assertTrue(state.moveTo(ConnectionState.CONNECTING));
+        assertTrue(state.moveTo(ConnectionState.CONNECTED));
+    }
+
+    @Test
+    public void listeners_seeEveryTransitionInOrder() throws Exception {
+        List<ConnectionState.Transition> seen = new ArrayList<>();
+        state.addListener(seen::add);
+
+        int threads = 8;
+        int movesPerThread = 5000;
+        int[] targets = {ConnectionState.LISTEN, ConnectionState.CONNECTING, ConnectionState.CONNECTED};
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < movesPerThread; i++) {
+                    state.moveTo(targets[(first + i) % targets.length]);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        go.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        // The listener is called by one thread at a time, so the plain list is safe to read here.
+        assertEquals(state.transitionCount(), seen.size());
+        int current = ConnectionState.NONE;
+        for (int i = 0; i < seen.size(); i++) {
+            ConnectionState.Transition t = seen.get(i);
+            assertEquals(i + 1, t.sequence);
+            assertEquals(current, t.from);
+            assertNotEquals(t.from, t.to);
+            current = t.to;
+        }
+        assertEquals(state.get(), current);
+    }
+}
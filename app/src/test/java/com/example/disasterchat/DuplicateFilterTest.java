@@ -0,0 +1,53 @@
+package com.example.disasterchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DuplicateFilterTest {
+
+    @Test
+    public void repeatedId_isRejected() {
+        DuplicateFilter filter = new DuplicateFilter(16);
+
+        assertTrue(filter.add(42L));
+        assertFalse(filter.add(42L));
+        assertTrue(filter.add(0L));
+        assertFalse(filter.add(0L));
+    }
+
+    @Test
+    public void recentGenerationSurvivesRotation() {
+        DuplicateFilter filter = new DuplicateFilter(100);
+        for (long id = 1; id <= 150; id++) {
+            assertTrue(filter.add(id));
+        }
+
+        for (long id = 1; id <= 150; id++) {
+            assertTrue("id " + id, filter.mightContain(id));
+        }
+    }
+
+    @Test
+    public void oldIdsAreForgottenAfterTwoGenerations() {
+        DuplicateFilter filter = new DuplicateFilter(100);
+        for (long id = 1; id <= 201; id++) {
+            filter.add(id);
+        }
+
+        assertFalse(filter.mightContain(1L));
+        assertTrue(filter.mightContain(101L));
+        assertTrue(filter.mightContain(201L));
+    }
+
+    @Test
+    public void messageId_roundTripsThroughEnvelope() {
+        long id = MeshPacket.messageId(0xCAFEBABE, 7);
+        byte[] payload = MeshPacket.encode(id, 3, 1_700_000_000_000L, new byte[]{1, 2});
+
+        assertEquals(id, MeshPacket.readMessageId(payload, 0));
+        assertEquals(3, MeshPacket.readTtl(payload, 0));
+        assertEquals(1_700_000_000_000L, MeshPacket.readTimestampMillis(payload, 0));
+        assertEquals(0xCAFEBABE, MeshPacket.originOf(id));
+    }
+}
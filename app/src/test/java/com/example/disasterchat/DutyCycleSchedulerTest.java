@@ -0,0 +1,168 @@
+package com.example.disasterchat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DutyCycleSchedulerTest {
+    private static final long MINUTE = 60_000;
+
+    private long now = 1_700_000_000_000L;
+    private final DutyCycleScheduler scheduler = new DutyCycleScheduler(() -> now);
+    private final List<Long> discoverableRequests = new ArrayList<>();
+
+    /** Follows the plans for {@code millis}, as the activity would; returns the times scans started. */
+    private List<Long> follow(long millis) {
+        List<Long> scans = new ArrayList<>();
+        long end = now + millis;
+        while (now < end) {
+            DutyCycleScheduler.Plan plan = scheduler.next();
+            if (plan.scan) {
+                scans.add(now);
+            }
+            if (plan.discoverableSeconds > 0) {
+                discoverableRequests.add(now);
+                scheduler.onDiscoverable(plan.discoverableSeconds);
+            }
+            now = Math.min(end, plan.nextCheckMillis);
+        }
+        return scans;
+    }
+
+    private static List<Long> gaps(List<Long> scans) {
+        List<Long> gaps = new ArrayList<>();
+        for (int i = 1; i < scans.size(); i++) {
+            gaps.add(scans.get(i) - scans.get(i - 1));
+        }
+        return gaps;
+    }
+
+    @Test
+    public void isolatedNode_scansOftenAndListens() {
+        long start = now;
+        List<Long> scans = follow(11 * MINUTE);
+
+        assertEquals(start, (long) scans.get(0));
+        for (long gap : gaps(scans)) {
+            assertEquals(DutyCycleScheduler.SCAN_MS + DutyCycleScheduler.MIN_SCAN_GAP_MS, gap);
+        }
+        long window = DutyCycleScheduler.ISOLATED_DISCOVERABLE_SECONDS * 1000L;
+        assertEquals(Arrays.asList(start, start + window + DutyCycleScheduler.MIN_SCAN_GAP_MS), discoverableRequests);
+        assertTrue(scheduler.next().listen);
+    }
+
+    @Test
+    public void stableMesh_backsOff_andALostLinkStartsOver() {
+        scheduler.onLinksChanged(2, 5);
+        List<Long> gaps = gaps(follow(60 * MINUTE));
+        for (int i = 1; i < gaps.size(); i++) {
+            assertTrue(gaps.get(i) >= gaps.get(i - 1));
+        }
+        assertEquals(DutyCycleScheduler.SCAN_MS + DutyCycleScheduler.MAX_SCAN_GAP_MS, (long) gaps.get(gaps.size() - 1));
+
+        assertTrue(discoverableRequests.isEmpty());
+
+        now += MINUTE;
+        scheduler.onLinksChanged(1, 6);
+        long lost = now;
+        List<Long> scans = follow(2 * MINUTE);
+        assertEquals(lost, (long) scans.get(0));
+        assertEquals(DutyCycleScheduler.SCAN_MS + DutyCycleScheduler.MIN_SCAN_GAP_MS, (long) gaps(scans).get(0));
+        assertEquals(Collections.singletonList(lost), discoverableRequests);
+    }
+
+    @Test
+    public void busyLinks_putOffScans() {
+        scheduler.onLinksChanged(1, 6);
+        for (int i = 0; i < 20; i++) {
+            scheduler.onTraffic();
+        }
+        assertFalse(scheduler.next().scan);
+
+        now += 5 * MINUTE;
+        assertTrue(scheduler.next().scan);
+    }
+
+    @Test
+    public void lowBattery_stretchesGapsAndListensInWindows_untilCharging() {
+        scheduler.onLinksChanged(1, 6);
+        scheduler.setBattery(10, false);
+        DutyCycleScheduler.Plan plan = scheduler.next();
+        assertTrue(plan.scan);
+        int listening = 0;
+        int checks = 0;
+        for (long t = 0; t < 6 * MINUTE; t += 1000) {
+            now += 1000;
+            listening += scheduler.next().listen ? 1 : 0;
+            checks++;
+        }
+        assertEquals(1.0 / 6, (double) listening / checks, 0.02);
+
+        scheduler.setBattery(10, true);
+        assertTrue(scheduler.next().listen);
+        scheduler.onLinksChanged(7, 0);
+        assertFalse(scheduler.next().listen);
+    }
+
+    @Test
+    public void isolatedNode_promptsForDiscoverabilityLessAndLessOften() {
+        follow(60 * MINUTE);
+        long window = DutyCycleScheduler.ISOLATED_DISCOVERABLE_SECONDS * 1000L;
+        // Pauses of 30 s, 1, 2, 4 and 8 minutes between full windows: six prompts, not twelve.
+        assertEquals(6, discoverableRequests.size());
+        List<Long> gaps = gaps(discoverableRequests);
+        for (int i = 0; i < gaps.size(); i++) {
+            assertEquals(window + (DutyCycleScheduler.MIN_SCAN_GAP_MS << i), (long) gaps.get(i));
+        }
+
+        discoverableRequests.clear();
+        follow(60 * MINUTE);
+        assertEquals(3, discoverableRequests.size());
+        for (long gap : gaps(discoverableRequests)) {
+            assertEquals(window + DutyCycleScheduler.MAX_SCAN_GAP_MS, gap);
+        }
+
+        // A lost link means the neighbourhood changed: ask at once and start the backoff over.
+        scheduler.onLinksChanged(1, 6);
+        scheduler.onLinksChanged(0, 7);
+        discoverableRequests.clear();
+        long lost = now;
+        follow(window + DutyCycleScheduler.MIN_SCAN_GAP_MS + 1);
+        assertEquals(Arrays.asList(lost, lost + window + DutyCycleScheduler.MIN_SCAN_GAP_MS), discoverableRequests);
+    }
+
+    @Test
+    public void criticalBattery_stretchesThePauseBetweenPrompts() {
+        scheduler.setBattery(DutyCycleScheduler.CRITICAL_BATTERY, false);
+        follow(60 * MINUTE);
+
+        long window = DutyCycleScheduler.ISOLATED_DISCOVERABLE_SECONDS * 1000L;
+        assertEquals(5, discoverableRequests.size());
+        List<Long> gaps = gaps(discoverableRequests);
+        for (int i = 0; i < gaps.size(); i++) {
+            assertEquals(window + 4 * (DutyCycleScheduler.MIN_SCAN_GAP_MS << i), (long) gaps.get(i));
+        }
+    }
+
+    @Test
+    public void radioOnEstimate_fallsAsTheMeshSettles() {
+        follow(60 * MINUTE);
+        double isolated = scheduler.dutyCycle();
+        // Twelve seconds of every 42 scanning, plus the discoverable and listening windows.
+        assertEquals(12.0 / 42 + 2 * 11.25 / 1280, isolated, 0.01);
+
+        DutyCycleScheduler settled = new DutyCycleScheduler(() -> now);
+        settled.onLinksChanged(3, 4);
+        long start = now;
+        while (now < start + 6 * 60 * MINUTE) {
+            now = Math.min(start + 6 * 60 * MINUTE, settled.next().nextCheckMillis);
+        }
+        assertTrue(settled.dutyCycle() < isolated / 10);
+        assertEquals((long) (settled.dutyCycle() * 6 * 60 * MINUTE), settled.radioOnMillis(), 1);
+    }
+}
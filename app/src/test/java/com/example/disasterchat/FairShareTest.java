@@ -0,0 +1,44 @@
+package com.example.disasterchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FairShareTest {
+
+    private final FairShare share = new FairShare();
+
+    @Test
+    public void uncongestedLink_admitsEverything() {
+        for (int i = 0; i < 100; i++) {
+            assertTrue(share.admit("A", false, 0));
+        }
+        assertTrue(share.admit("B", false, 0));
+    }
+
+    @Test
+    public void congestedLink_holdsAChattySourceToItsShare() {
+        for (int i = 0; i < 100; i++) {
+            share.admit("A", false, 0);
+        }
+        // A alone may use the whole link.
+        assertTrue(share.admit("A", true, 0));
+
+        assertTrue(share.admit("B", true, 0));
+        assertFalse(share.admit("A", true, 0));
+        for (int i = 0; i < 20; i++) {
+            assertTrue(share.admit("B", true, 0));
+        }
+        assertFalse(share.admit("A", true, 0));
+    }
+
+    @Test
+    public void sharesStartOverEachWindow() {
+        for (int i = 0; i < 100; i++) {
+            share.admit("A", false, 0);
+        }
+        share.admit("B", true, 0);
+        assertFalse(share.admit("A", true, 0));
+        assertTrue(share.admit("A", true, FairShare.WINDOW_NANOS));
+    }
+}
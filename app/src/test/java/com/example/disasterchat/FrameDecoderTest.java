@@ -0,0 +1,67 @@
+package com.example.disasterchat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+
+    private final List<String> received = new ArrayList<>();
+    private final FrameDecoder decoder = new FrameDecoder((type, flags, buffer, offset, length) ->
+            received.add(type + ":" + new String(buffer, offset, length, StandardCharsets.UTF_8)));
+
+    private static byte[] frames(String... messages) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String m : messages) {
+            out.write(FrameCodec.encode(FrameCodec.TYPE_CHAT, m.getBytes(StandardCharsets.UTF_8)));
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void mergedFrames_areDeliveredSeparately() throws IOException {
+        byte[] data = frames("help", "water", "");
+        decoder.feed(data, 0, data.length);
+
+        assertEquals(3, received.size());
+        assertEquals("1:help", received.get(0));
+        assertEquals("1:water", received.get(1));
+        assertEquals("1:", received.get(2));
+    }
+
+    @Test
+    public void byteAtATime_reassemblesSplitEmoji() throws IOException {
+        byte[] data = frames("🚨 SOS 🚨", "ok");
+        for (int i = 0; i < data.length; i++) {
+            decoder.feed(data, i, 1);
+        }
+
+        assertEquals(2, received.size());
+        assertEquals("1:🚨 SOS 🚨", received.get(0));
+        assertEquals("1:ok", received.get(1));
+    }
+
+    @Test
+    public void splitAcrossHeaderAndPayload() throws IOException {
+        byte[] data = frames("first message", "second");
+        decoder.feed(data, 0, 3);
+        decoder.feed(data, 3, 10);
+        decoder.feed(data, 13, data.length - 13);
+
+        assertEquals(2, received.size());
+        assertEquals("1:second", received.get(1));
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownVersion_isRejected() throws IOException {
+        byte[] data = frames("x");
+        data[0] = 42;
+        decoder.feed(data, 0, data.length);
+    }
+}
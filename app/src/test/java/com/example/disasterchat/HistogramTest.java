@@ -0,0 +1,49 @@
+package com.example.disasterchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void empty_reportsZeros() {
+        Histogram h = new Histogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getPercentile(0.99));
+        assertEquals(0, h.getMean());
+    }
+
+    @Test
+    public void percentiles_areWithinAFactorOfTwo() {
+        Histogram h = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i);
+        }
+        assertEquals(1000, h.getCount());
+        assertEquals(1000, h.getMax());
+        assertEquals(500, h.getMean());
+        long p50 = h.getPercentile(0.5);
+        assertTrue(p50 >= 500 && p50 < 1000);
+        assertEquals(1000, h.getPercentile(0.99));
+    }
+
+    @Test
+    public void concurrentRecords_areAllCounted() throws Exception {
+        Histogram h = new Histogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    h.record(i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(40_000, h.getCount());
+        assertEquals(9_999, h.getMax());
+    }
+}
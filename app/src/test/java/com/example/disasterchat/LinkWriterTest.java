@@ -0,0 +1,80 @@
+package com.example.disasterchat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class LinkWriterTest {
+
+    private static class CountingStream extends ByteArrayOutputStream {
+        int flushes;
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+
+    private final OutboundQueue queue = new OutboundQueue(64);
+    private final CountingStream out = new CountingStream();
+    private final AtomicLong written = new AtomicLong();
+
+    private Thread startWriter(int maxBatchBytes, long lingerMillis) {
+        Thread writer = new Thread(new LinkWriter(queue, out, written, e -> { },
+                maxBatchBytes, TimeUnit.MILLISECONDS.toNanos(lingerMillis)));
+        writer.start();
+        return writer;
+    }
+
+    @Test
+    public void queuedChatFrames_areCoalescedIntoOneFlush() throws Exception {
+        CompletableFuture<Void> last = null;
+        for (int i = 0; i < 10; i++) {
+            last = queue.offer(OutboundQueue.LANE_CHAT, FrameCodec.encode(FrameCodec.TYPE_CHAT, new byte[20]));
+        }
+        Thread writer = startWriter(4096, 50);
+
+        last.get(2, TimeUnit.SECONDS);
+        queue.close(new IOException("done"));
+        writer.join();
+
+        assertEquals(1, out.flushes);
+        assertEquals(10 * (FrameCodec.HEADER_SIZE + 20), out.size());
+        assertEquals(out.size(), written.get());
+    }
+
+    @Test
+    public void sosFrame_skipsTheLinger() throws Exception {
+        Thread writer = startWriter(4096, 10_000);
+
+        queue.offer(OutboundQueue.LANE_SOS, FrameCodec.encode(FrameCodec.TYPE_SOS, new byte[8]))
+                .get(2, TimeUnit.SECONDS);
+        queue.close(new IOException("done"));
+        writer.join();
+
+        assertEquals(1, out.flushes);
+    }
+
+    @Test
+    public void sosIsWrittenBeforeQueuedChat() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            queue.offer(OutboundQueue.LANE_CHAT, FrameCodec.encode(FrameCodec.TYPE_CHAT, new byte[4]));
+        }
+        queue.offer(OutboundQueue.LANE_SOS, FrameCodec.encode(FrameCodec.TYPE_SOS, new byte[4]));
+        Thread writer = startWriter(0, 0);
+
+        while (written.get() < 6 * (FrameCodec.HEADER_SIZE + 4)) {
+            Thread.sleep(1);
+        }
+        queue.close(new IOException("done"));
+        writer.join();
+
+        assertEquals(FrameCodec.TYPE_SOS, out.toByteArray()[1]);
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.disasterchat;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class MeshLinkTest {
+
+    /** One node with a single link, its frames drained by hand instead of by a writer. */
+    private static final class End {
+        final MeshNode node;
+        final OutboundQueue outbound = new OutboundQueue(BluetoothChatService.OUTBOUND_LANE_CAPACITY);
+        final MeshLink link;
+        int delivered;
+
+        End(int nodeId, String peer) {
+            node = new MeshNode(nodeId, Clock.SYSTEM, (from, type, buffer, offset, length) -> delivered++);
+            ReliableChannel channel = new ReliableChannel(BluetoothChatService.RELIABLE_WINDOW,
+                    BluetoothChatService.RELIABLE_BACKLOG);
+            link = new MeshLink(node, peer, outbound, channel, null, null, new LinkMetrics(peer), null);
+            link.start();
+            node.linkUp(link);
+        }
+
+        /** Everything queued, as the writer would put it on the wire. */
+        byte[] drain() {
+            ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            OutboundQueue.Entry entry;
+            while ((entry = outbound.poll()) != null) {
+                wire.write(entry.frame, 0, entry.length);
+                entry.complete();
+            }
+            return wire.toByteArray();
+        }
+
+        /** Feeds {@code wire} in read-sized chunks, as a connected thread does. */
+        void receive(byte[] wire) throws IOException {
+            for (int offset = 0; offset < wire.length; offset += 4096) {
+                link.receive(wire, offset, Math.min(4096, wire.length - offset));
+            }
+        }
+    }
+
+    private static void exchange(End a, End b) throws IOException {
+        byte[] toB;
+        byte[] toA;
+        do {
+            toB = a.drain();
+            toA = b.drain();
+            b.receive(toB);
+            a.receive(toA);
+        } while (toB.length > 0 || toA.length > 0);
+    }
+
+    /**
+     * A node with nowhere to relay to takes numbered chat frames, acks them, files them
+     * for reconciliation and hands them to its listener without allocating. Acks go
+     * back outside the measurement, as another thread writes them.
+     */
+    @Test
+    public void nonRelayingReceive_allocatesNothingPerFrame() throws IOException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(counter.isThreadAllocatedMemorySupported());
+        counter.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        End a = new End(1, "B");
+        End b = new End(2, "A");
+        exchange(a, b);
+
+        byte[] scratch = new byte[FrameCodec.MAX_PAYLOAD];
+        byte[] body = "need water at the school, 3 people".getBytes("UTF-8");
+        int frames = 100;
+        long allocated = 0;
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < frames; i++) {
+                MeshPacket.writeHeader(a.node.newMessageId(), MeshPacket.DEFAULT_TTL, System.currentTimeMillis(),
+                        scratch, 0);
+                System.arraycopy(body, 0, scratch, MeshPacket.HEADER_SIZE, body.length);
+                a.node.originate(FrameCodec.TYPE_CHAT, scratch, 0, MeshPacket.HEADER_SIZE + body.length);
+            }
+            byte[] wire = a.drain();
+            long before = counter.getThreadAllocatedBytes(thread);
+            b.receive(wire);
+            allocated = counter.getThreadAllocatedBytes(thread) - before;
+            a.receive(b.drain());
+        }
+
+        assertEquals(50 * frames, b.delivered);
+        assertEquals(0, a.link.channel.unackedCount());
+        assertEquals("receive allocated " + allocated / frames + " bytes per frame", 0, allocated);
+    }
+}
@@ -0,0 +1,576 @@
+package com.example.disasterchat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discrete-event simulation of a mesh of virtual nodes, for scaling tests off-device.
+ * Every node is a {@link MeshNode} with a {@link MeshLink} on each link, the same code
+ * {@link BluetoothChatService} runs, so hellos, numbered delivery and ACKs, route
+ * exchange, history reconciliation, relay admission and rate limiting all behave as on
+ * a device. What the simulation supplies is the transport: each end of a link drains its
+ * {@link OutboundQueue} as the service's writer would, batching what is waiting into
+ * writes of up to {@link LinkWriter#DEFAULT_MAX_BATCH_BYTES}, and a write arrives after
+ * its airtime and the link's latency. Links can lose writes and churn; a link that comes
+ * back keeps each end's {@link ReliableChannel}, as the service keeps one per peer.
+ *
+ * <p>Time is virtual and nothing runs on another thread. Every random choice comes from
+ * one generator seeded at construction, and events due at the same instant run in the
+ * order they were scheduled, so a seed always replays the same run.
+ */
+public class MeshSimulator {
+    /** Wall clock at virtual time zero, so packet timestamps look current. */
+    static final long EPOCH_MILLIS = 1_700_000_000_000L;
+    private static final long NANOS_PER_HOUR = TimeUnit.HOURS.toNanos(1);
+
+    private final Random random;
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private final List<Node> nodes = new ArrayList<>();
+    private final Map<Integer, Node> byId = new HashMap<>();
+    private final Map<Long, Sent> sent = new HashMap<>();
+    private long now;
+    private long scheduled;
+    private final Clock clock = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return EPOCH_MILLIS + now / 1_000_000L;
+        }
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+    };
+
+    private long latencyNanos = TimeUnit.MILLISECONDS.toNanos(20);
+    private long jitterNanos;
+    private long bytesPerSecond = 100 * 1024;
+    private double loss;
+    private long meanUpNanos;
+    private long meanDownNanos;
+    private long announceMillis = BluetoothChatService.DEFAULT_ROUTE_ANNOUNCE_MS;
+    private byte[] body = new byte[64];
+
+    private long broadcasts;
+    private long deliveries;
+    private long directs;
+    private long directsDelivered;
+    private long framesSent;
+    private long framesLost;
+    private long bytesSent;
+    private long airtimeNanos;
+    private long[] latencies = new long[1024];
+    private int latencyCount;
+
+    public MeshSimulator(long seed) {
+        this.random = new Random(seed);
+        Arrays.fill(body, (byte) 'x');
+    }
+
+    /** One-way delay of every write, plus up to {@code jitter} more; writes on a link never overtake. */
+    public void setLatency(long latency, long jitter, TimeUnit unit) {
+        this.latencyNanos = unit.toNanos(latency);
+        this.jitterNanos = unit.toNanos(jitter);
+    }
+
+    /** Bytes per second each way on every link; a write occupies its link for its length over this. */
+    public void setBandwidth(long bytesPerSecond) {
+        if (bytesPerSecond < 1) {
+            throw new IllegalArgumentException("bytesPerSecond must be positive");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /** Chance that a write, with every frame in it, is lost after taking its airtime. */
+    public void setLoss(double probability) {
+        this.loss = probability;
+    }
+
+    /**
+     * Links stay up and down for exponentially distributed times with these means;
+     * {@code meanUp <= 0} keeps links up. Applies to links that come up afterwards.
+     */
+    public void setChurn(long meanUp, long meanDown, TimeUnit unit) {
+        this.meanUpNanos = unit.toNanos(meanUp);
+        this.meanDownNanos = unit.toNanos(meanDown);
+    }
+
+    /** As {@link BluetoothChatService#setRouteAnnounceInterval}; applies to nodes added afterwards. */
+    public void setRouteAnnounceInterval(long interval, TimeUnit unit) {
+        this.announceMillis = unit.toMillis(interval);
+    }
+
+    /** Size of the body of every generated message. */
+    public void setMessageSize(int bytes) {
+        body = new byte[bytes];
+        Arrays.fill(body, (byte) 'x');
+    }
+
+    /** Adds a node at a random point of the unit square; returns its index. */
+    public int addNode() {
+        int id;
+        do {
+            id = random.nextInt();
+        } while (byId.containsKey(id));
+        Node node = new Node(nodes.size(), id, random.nextDouble(), random.nextDouble());
+        nodes.add(node);
+        byId.put(id, node);
+        if (announceMillis > 0) {
+            node.mesh.routes.setExpiry(3 * announceMillis);
+            long interval = TimeUnit.MILLISECONDS.toNanos(announceMillis);
+            schedule(now + (long) (random.nextDouble() * interval), new Runnable() {
+                @Override
+                public void run() {
+                    node.mesh.announceRoute();
+                    schedule(now + interval, this);
+                }
+            });
+        }
+        return node.index;
+    }
+
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    /** Mesh node id of the node at {@code index}. */
+    public int getNodeId(int index) {
+        return nodes.get(index).id;
+    }
+
+    /** Links two nodes; the link comes up at the current virtual time. */
+    public void link(int a, int b) {
+        if (a == b || nodes.get(a).linkTo(nodes.get(b)) != null) {
+            return;
+        }
+        Link link = new Link(nodes.get(a), nodes.get(b));
+        schedule(now, link::up);
+    }
+
+    /** Links every node to the {@code neighbours} nodes nearest to it, as radios in range would be. */
+    public void linkNearest(int neighbours) {
+        Integer[] order = new Integer[nodes.size()];
+        for (Node node : nodes) {
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (p, q) -> Double.compare(node.distanceTo(nodes.get(p)), node.distanceTo(nodes.get(q))));
+            for (int i = 1; i <= neighbours && i < order.length; i++) {
+                link(node.index, order[i]);
+            }
+        }
+    }
+
+    /** Floods a message of {@code type} (chat or SOS) from a node after {@code delay}. */
+    public void send(int from, byte type, long delay, TimeUnit unit) {
+        Node node = nodes.get(from);
+        schedule(now + unit.toNanos(delay), () -> node.originate(type, 0));
+    }
+
+    /** Sends a directed message from one node to another after {@code delay}. */
+    public void sendTo(int from, int to, long delay, TimeUnit unit) {
+        Node node = nodes.get(from);
+        int destination = nodes.get(to).id;
+        schedule(now + unit.toNanos(delay), () -> node.originate(FrameCodec.TYPE_DIRECT, destination));
+    }
+
+    /**
+     * Every node sends {@code perNodePerHour} messages an hour on average, at random
+     * times, for the next {@code duration}: an SOS with chance {@code sosShare}, a
+     * directed message to a random node with chance {@code directShare}, chat otherwise.
+     */
+    public void generateTraffic(double perNodePerHour, double sosShare, double directShare,
+                                long duration, TimeUnit unit) {
+        long until = now + unit.toNanos(duration);
+        double meanGap = NANOS_PER_HOUR / perNodePerHour;
+        for (Node node : nodes) {
+            schedule(now + exponential(meanGap), new Runnable() {
+                @Override
+                public void run() {
+                    if (now >= until) {
+                        return;
+                    }
+                    double kind = random.nextDouble();
+                    if (kind < sosShare) {
+                        node.originate(FrameCodec.TYPE_SOS, 0);
+                    } else if (kind < sosShare + directShare && nodes.size() > 1) {
+                        Node to;
+                        do {
+                            to = nodes.get(random.nextInt(nodes.size()));
+                        } while (to == node);
+                        node.originate(FrameCodec.TYPE_DIRECT, to.id);
+                    } else {
+                        node.originate(FrameCodec.TYPE_CHAT, 0);
+                    }
+                    schedule(now + exponential(meanGap), this);
+                }
+            });
+        }
+    }
+
+    /** Runs every event due in the next {@code duration}; returns totals since the start. */
+    public Report run(long duration, TimeUnit unit) {
+        long end = now + unit.toNanos(duration);
+        while (!events.isEmpty() && events.peek().at <= end) {
+            Event event = events.poll();
+            now = event.at;
+            event.action.run();
+        }
+        now = end;
+        return new Report(this);
+    }
+
+    /** Virtual time since the start. */
+    public long elapsed(TimeUnit unit) {
+        return unit.convert(now, TimeUnit.NANOSECONDS);
+    }
+
+    private void schedule(long at, Runnable action) {
+        events.add(new Event(at, scheduled++, action));
+    }
+
+    private long exponential(double mean) {
+        return (long) (-Math.log(1 - random.nextDouble()) * mean);
+    }
+
+    private void delivered(long messageId) {
+        Sent message = sent.get(messageId);
+        if (message.direct) {
+            directsDelivered++;
+        } else {
+            deliveries++;
+        }
+        if (latencyCount == latencies.length) {
+            latencies = Arrays.copyOf(latencies, latencyCount * 2);
+        }
+        latencies[latencyCount++] = now - message.at;
+    }
+
+    /** Totals of a run. Latencies are exact, from sending to showing, over every delivery. */
+    public static final class Report {
+        public final int nodes;
+        public final long elapsedMillis;
+        /** Chat and SOS messages flooded. */
+        public final long broadcasts;
+        /** Nodes other than the sender that showed a flooded message, summed over messages. */
+        public final long deliveries;
+        public final long directs;
+        public final long directsDelivered;
+        public final long framesSent;
+        public final long framesLost;
+        public final long bytesSent;
+        /** Time links spent sending, summed over every link and direction. */
+        public final long airtimeMillis;
+        private final long[] sortedLatencies;
+
+        private Report(MeshSimulator simulator) {
+            nodes = simulator.nodes.size();
+            elapsedMillis = simulator.now / 1_000_000L;
+            broadcasts = simulator.broadcasts;
+            deliveries = simulator.deliveries;
+            directs = simulator.directs;
+            directsDelivered = simulator.directsDelivered;
+            framesSent = simulator.framesSent;
+            framesLost = simulator.framesLost;
+            bytesSent = simulator.bytesSent;
+            airtimeMillis = simulator.airtimeNanos / 1_000_000L;
+            sortedLatencies = Arrays.copyOf(simulator.latencies, simulator.latencyCount);
+            Arrays.sort(sortedLatencies);
+        }
+
+        /** Share of the possible deliveries of flooded messages that happened; 1 is every node, every time. */
+        public double deliveryRatio() {
+            long possible = broadcasts * (nodes - 1);
+            return possible == 0 ? 0 : (double) deliveries / possible;
+        }
+
+        public double directDeliveryRatio() {
+            return directs == 0 ? 0 : (double) directsDelivered / directs;
+        }
+
+        /** Latency at quantile {@code q} (0..1), in milliseconds; 0 with no deliveries. */
+        public double latencyMillis(double q) {
+            if (sortedLatencies.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(q * sortedLatencies.length) - 1;
+            return sortedLatencies[Math.max(0, Math.min(sortedLatencies.length - 1, rank))] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%d nodes, %d ms: delivery %.4f (%d/%d), direct %.4f (%d/%d), "
+                            + "latency p50=%.1f p90=%.1f p99=%.1f max=%.1f ms, "
+                            + "frames %d (%d lost), %d bytes, airtime %d ms",
+                    nodes, elapsedMillis, deliveryRatio(), deliveries, broadcasts, directDeliveryRatio(),
+                    directsDelivered, directs, latencyMillis(0.5), latencyMillis(0.9), latencyMillis(0.99),
+                    latencyMillis(1), framesSent, framesLost, bytesSent, airtimeMillis);
+        }
+    }
+
+    private static final class Event implements Comparable<Event> {
+        final long at;
+        final long order;
+        final Runnable action;
+
+        Event(long at, long order, Runnable action) {
+            this.at = at;
+            this.order = order;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            return at != other.at ? Long.compare(at, other.at) : Long.compare(order, other.order);
+        }
+    }
+
+    private static final class Sent {
+        final long at;
+        final boolean direct;
+
+        Sent(long at, boolean direct) {
+            this.at = at;
+            this.direct = direct;
+        }
+    }
+
+    private final class Node {
+        final int index;
+        final int id;
+        final String address;
+        final double x;
+        final double y;
+        final List<Port> ports = new ArrayList<>();
+        final MeshNode mesh;
+
+        Node(int index, int id, double x, double y) {
+            this.index = index;
+            this.id = id;
+            this.address = "sim-" + index;
+            this.x = x;
+            this.y = y;
+            this.mesh = new MeshNode(id, clock,
+                    (link, type, buffer, offset, length) -> delivered(MeshPacket.readMessageId(buffer, offset)));
+        }
+
+        double distanceTo(Node other) {
+            return Math.hypot(x - other.x, y - other.y);
+        }
+
+        Port linkTo(Node other) {
+            for (Port port : ports) {
+                if (port.peer.node == other) {
+                    return port;
+                }
+            }
+            return null;
+        }
+
+        void originate(byte type, int destination) {
+            long messageId = mesh.newMessageId();
+            boolean direct = type == FrameCodec.TYPE_DIRECT;
+            sent.put(messageId, new Sent(now, direct));
+            int bodyOffset = direct ? MeshNode.DIRECT_HEADER_SIZE : MeshPacket.HEADER_SIZE;
+            byte[] packet = new byte[bodyOffset + body.length];
+            MeshPacket.writeHeader(messageId, MeshPacket.DEFAULT_TTL, clock.currentTimeMillis(), packet, 0);
+            System.arraycopy(body, 0, packet, bodyOffset, body.length);
+            if (direct) {
+                directs++;
+                MeshNode.writeInt(packet, MeshPacket.HEADER_SIZE, destination);
+            } else {
+                broadcasts++;
+            }
+            mesh.originate(type, packet, 0, packet.length);
+        }
+    }
+
+    private final class Link {
+        final Port a;
+        final Port b;
+        /** Bumped on every change, so writes in flight when a link drops are lost with it. */
+        int epoch;
+
+        Link(Node first, Node second) {
+            a = new Port(first, this);
+            b = new Port(second, this);
+            a.peer = b;
+            b.peer = a;
+            first.ports.add(a);
+            second.ports.add(b);
+        }
+
+        void up() {
+            epoch++;
+            a.open();
+            b.open();
+            if (meanUpNanos > 0) {
+                schedule(now + exponential(meanUpNanos), this::down);
+            }
+        }
+
+        void down() {
+            epoch++;
+            IOException cause = new IOException("Link down");
+            a.close(cause);
+            b.close(cause);
+            schedule(now + exponential(meanDownNanos), this::up);
+        }
+    }
+
+    /**
+     * One node's end of a link: a {@link MeshLink} while the link is up, and the radio
+     * that carries what its queue lets go, one write at a time.
+     */
+    private final class Port {
+        final Node node;
+        final Link link;
+        Port peer;
+        final ReliableChannel channel = new ReliableChannel(BluetoothChatService.RELIABLE_WINDOW,
+                BluetoothChatService.RELIABLE_BACKLOG, clock);
+        LinkMetrics metrics;
+        OutboundQueue outbound;
+        RateLimiter limiter;
+        MeshLink mesh;
+        /** Taken off the queue but too big for the last write; starts the next one. */
+        OutboundQueue.Entry held;
+        boolean sending;
+        boolean waiting;
+        long lastArrival;
+
+        Port(Node node, Link link) {
+            this.node = node;
+            this.link = link;
+        }
+
+        void open() {
+            outbound = new OutboundQueue(BluetoothChatService.OUTBOUND_LANE_CAPACITY, clock) {
+                @Override
+                protected void offered() {
+                    transmitNext();
+                }
+            };
+            limiter = new RateLimiter();
+            outbound.setRateLimiter(limiter);
+            held = null;
+            sending = false;
+            waiting = false;
+            if (metrics == null) {
+                metrics = new LinkMetrics(peer.node.address);
+            }
+            mesh = new MeshLink(node.mesh, peer.node.address, outbound, channel, limiter, null, metrics, null);
+            mesh.start();
+            node.mesh.linkUp(mesh);
+        }
+
+        void close(IOException cause) {
+            if (held != null) {
+                held.fail(cause);
+                held = null;
+            }
+            mesh.close(cause);
+            node.mesh.linkDown(mesh);
+        }
+
+        /**
+         * Puts what the queue lets go on the air as one write, unless a write already is;
+         * when the rate limiter holds frames back, tries again once it would let them go.
+         */
+        void transmitNext() {
+            if (sending) {
+                return;
+            }
+            List<OutboundQueue.Entry> batch = new ArrayList<>();
+            int length = 0;
+            while (length < LinkWriter.DEFAULT_MAX_BATCH_BYTES) {
+                OutboundQueue.Entry next = held != null ? held : outbound.poll();
+                held = null;
+                if (next == null) {
+                    break;
+                }
+                if (length > 0 && length + next.length > LinkWriter.DEFAULT_MAX_BATCH_BYTES) {
+                    held = next;
+                    break;
+                }
+                batch.add(next);
+                length += next.length;
+            }
+            if (batch.isEmpty()) {
+                retryWhenReady();
+                return;
+            }
+            byte[] bytes = new byte[length];
+            int at = 0;
+            for (OutboundQueue.Entry entry : batch) {
+                System.arraycopy(entry.frame, 0, bytes, at, entry.length);
+                at += entry.length;
+            }
+            long airtime = length * 1_000_000_000L / bytesPerSecond;
+            sending = true;
+            framesSent += batch.size();
+            bytesSent += length;
+            airtimeNanos += airtime;
+            int epoch = link.epoch;
+            schedule(now + airtime, () -> {
+                if (link.epoch != epoch) {
+                    for (OutboundQueue.Entry entry : batch) {
+                        entry.fail(new IOException("Link down"));
+                    }
+                    return;
+                }
+                sending = false;
+                // The radio takes each write at once; its airtime shows in round trips instead.
+                limiter.onWritten(bytes.length, 0, now);
+                metrics.onFramesWritten(batch.size(), bytes.length);
+                for (OutboundQueue.Entry entry : batch) {
+                    entry.complete();
+                }
+                if (loss > 0 && random.nextDouble() < loss) {
+                    framesLost += batch.size();
+                } else {
+                    long jitter = jitterNanos > 0 ? (long) (random.nextDouble() * jitterNanos) : 0;
+                    long arrival = Math.max(now + latencyNanos + jitter, peer.lastArrival);
+                    peer.lastArrival = arrival;
+                    schedule(arrival, () -> {
+                        if (link.epoch == epoch) {
+                            peer.receive(bytes);
+                        }
+                    });
+                }
+                transmitNext();
+            });
+        }
+
+        private void retryWhenReady() {
+            long delay = outbound.readyInNanos();
+            if (delay <= 0 || waiting) {
+                return;
+            }
+            waiting = true;
+            int epoch = link.epoch;
+            schedule(now + delay, () -> {
+                if (link.epoch == epoch) {
+                    waiting = false;
+                    transmitNext();
+                }
+            });
+        }
+
+        void receive(byte[] bytes) {
+            try {
+                mesh.receive(bytes, 0, bytes.length);
+            } catch (IOException e) {
+                throw new IllegalStateException("Undecodable write", e);
+            }
+        }
+    }
+}
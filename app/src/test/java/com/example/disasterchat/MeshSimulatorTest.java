@@ -0,0 +1,73 @@
+package com.example.disasterchat;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MeshSimulatorTest {
+
+    private static MeshSimulator.Report churningMesh(long seed) {
+        MeshSimulator simulator = new MeshSimulator(seed);
+        simulator.setLatency(15, 10, TimeUnit.MILLISECONDS);
+        simulator.setLoss(0.01);
+        simulator.setChurn(5, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 60; i++) {
+            simulator.addNode();
+        }
+        simulator.linkNearest(3);
+        simulator.generateTraffic(30, 0.1, 0.2, 10, TimeUnit.MINUTES);
+        return simulator.run(12, TimeUnit.MINUTES);
+    }
+
+    @Test
+    public void aSeed_replaysTheSameRun() {
+        MeshSimulator.Report first = churningMesh(42);
+
+        assertTrue(first.broadcasts > 0);
+        assertTrue(first.deliveries > 0);
+        assertTrue(first.framesLost > 0 && first.airtimeMillis > 0);
+        assertEquals(first.toString(), churningMesh(42).toString());
+        assertNotEquals(first.toString(), churningMesh(43).toString());
+    }
+
+    @Test
+    public void line_deliversEverythingOneLatencyPerHop() {
+        MeshSimulator simulator = new MeshSimulator(1);
+        simulator.setLatency(20, 0, TimeUnit.MILLISECONDS);
+        simulator.setBandwidth(1024 * 1024);
+        for (int i = 0; i < 5; i++) {
+            simulator.addNode();
+            if (i > 0) {
+                simulator.link(i - 1, i);
+            }
+        }
+        // Routes through the line are learned from the tables exchanged on link-up.
+        simulator.send(0, FrameCodec.TYPE_CHAT, 1, TimeUnit.SECONDS);
+        simulator.sendTo(4, 0, 1, TimeUnit.SECONDS);
+        MeshSimulator.Report report = simulator.run(2, TimeUnit.SECONDS);
+
+        assertEquals(1.0, report.deliveryRatio(), 0);
+        assertEquals(1.0, report.directDeliveryRatio(), 0);
+        assertTrue(report.latencyMillis(1) >= 80 && report.latencyMillis(1) < 90);
+        assertTrue(report.latencyMillis(0) >= 20 && report.latencyMillis(0) < 30);
+        assertTrue(report.bytesSent > 0);
+    }
+
+    @Test
+    public void messagesSentWhileALinkIsDown_arriveOnceItIsBackUp() {
+        MeshSimulator simulator = new MeshSimulator(7);
+        simulator.setChurn(2, 2, TimeUnit.SECONDS);
+        simulator.addNode();
+        simulator.addNode();
+        simulator.link(0, 1);
+        simulator.generateTraffic(3600, 0, 0, 60, TimeUnit.SECONDS);
+        MeshSimulator.Report report = simulator.run(90, TimeUnit.SECONDS);
+
+        // Roughly half the messages are sent into a dead link; history sync brings them all.
+        assertTrue(report.broadcasts > 60);
+        assertEquals(1.0, report.deliveryRatio(), 0);
+        assertTrue(report.latencyMillis(0.9) > 1000);
+    }
+}
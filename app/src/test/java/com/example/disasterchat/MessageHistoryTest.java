@@ -0,0 +1,137 @@
+package com.example.disasterchat;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MessageHistoryTest {
+
+    private static final long NOW_MS = 1_700_000_000_000L;
+
+    private static void add(MessageHistory history, byte type, int node, int counter, long millis) {
+        byte[] packet = MeshPacket.encode(MeshPacket.messageId(node, counter), MeshPacket.DEFAULT_TTL,
+                millis, new byte[]{'x'});
+        history.add(type, packet, 0, packet.length);
+    }
+
+    /** Plays both sides of a sync; returns the SYNC and NEED bytes exchanged. */
+    private static int reconcile(MessageHistory a, MessageHistory b, long since, List<MessageHistory.Stored> pushedToB)
+            throws Exception {
+        MessageHistory[] sides = {a, b};
+        ArrayDeque<Object[]> wire = new ArrayDeque<>();
+        byte[] first = a.initiate(since);
+        wire.add(new Object[]{1, first});
+        int bytes = first.length;
+        while (!wire.isEmpty()) {
+            Object[] frame = wire.poll();
+            int to = (Integer) frame[0];
+            byte[] payload = (byte[]) frame[1];
+            MessageHistory self = sides[to];
+            MessageHistory other = sides[1 - to];
+            List<MessageHistory.Stored> push;
+            if (frame.length == 3) {
+                push = self.onNeed(payload, 0, payload.length);
+            } else {
+                MessageHistory.Reply reply = self.respond(payload, 0, payload.length);
+                for (byte[] p : reply.syncPayloads) {
+                    wire.add(new Object[]{1 - to, p});
+                    bytes += p.length;
+                }
+                for (byte[] p : reply.needPayloads) {
+                    wire.add(new Object[]{1 - to, p, "need"});
+                    bytes += p.length;
+                }
+                push = reply.push;
+            }
+            for (MessageHistory.Stored s : push) {
+                other.add(s.type, s.packet, 0, s.packet.length);
+                if (other == b) {
+                    pushedToB.add(s);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static int syncBytes(int common, int differences) throws Exception {
+        MessageHistory a = new MessageHistory(common + differences);
+        MessageHistory b = new MessageHistory(common + differences);
+        Random random = new Random(7);
+        for (int i = 0; i < common; i++) {
+            int node = random.nextInt(50);
+            add(a, FrameCodec.TYPE_CHAT, node, i, NOW_MS);
+            add(b, FrameCodec.TYPE_CHAT, node, i, NOW_MS);
+        }
+        for (int i = 0; i < differences; i++) {
+            add(i % 2 == 0 ? a : b, FrameCodec.TYPE_CHAT, 99, i, NOW_MS);
+        }
+        int bytes = reconcile(a, b, 0, new ArrayList<>());
+        assertEquals(common + differences, a.size());
+        assertEquals(common + differences, b.size());
+        return bytes;
+    }
+
+    @Test
+    public void identicalHistories_settleWithOneFingerprint() throws Exception {
+        assertTrue(syncBytes(2000, 0) < 64);
+    }
+
+    @Test
+    public void syncBytes_followTheDifferenceNotTheHistory() throws Exception {
+        int small = syncBytes(1000, 10);
+        int large = syncBytes(16000, 10);
+        // Listing every id of the larger history would take 128 KB.
+        assertTrue("synced with " + large + " bytes", large < 8 * 1000);
+        assertTrue(small + " then " + large + " bytes", large < small * 3);
+    }
+
+    @Test
+    public void missingMessages_arePushedSosFirstThenNewestFirst() throws Exception {
+        MessageHistory a = new MessageHistory(100);
+        MessageHistory b = new MessageHistory(100);
+        for (int i = 0; i < 40; i++) {
+            add(a, FrameCodec.TYPE_CHAT, 1, i, NOW_MS + i * 1000L);
+            add(b, FrameCodec.TYPE_CHAT, 1, i, NOW_MS + i * 1000L);
+        }
+        add(b, FrameCodec.TYPE_CHAT, 2, 0, NOW_MS + 50_000);
+        add(b, FrameCodec.TYPE_SOS, 2, 1, NOW_MS + 10_000);
+        add(b, FrameCodec.TYPE_CHAT, 2, 2, NOW_MS + 70_000);
+
+        List<MessageHistory.Stored> pushed = new ArrayList<>();
+        reconcile(b, a, 0, pushed);
+
+        assertEquals(3, pushed.size());
+        assertEquals(FrameCodec.TYPE_SOS, pushed.get(0).type);
+        assertEquals(MeshPacket.messageId(2, 2), pushed.get(1).id);
+        assertEquals(MeshPacket.messageId(2, 0), pushed.get(2).id);
+        assertEquals(43, a.size());
+    }
+
+    @Test
+    public void messagesBeforeTheWindow_areLeftOut() throws Exception {
+        MessageHistory a = new MessageHistory(10);
+        MessageHistory b = new MessageHistory(10);
+        add(b, FrameCodec.TYPE_CHAT, 1, 0, NOW_MS - 3_600_000);
+        add(b, FrameCodec.TYPE_CHAT, 1, 1, NOW_MS);
+
+        reconcile(a, b, NOW_MS / 1000 - 60, new ArrayList<>());
+
+        assertFalse(a.contains(MeshPacket.messageId(1, 0)));
+        assertTrue(a.contains(MeshPacket.messageId(1, 1)));
+    }
+
+    @Test
+    public void fullHistory_forgetsTheOldestArrival() {
+        MessageHistory history = new MessageHistory(2);
+        add(history, FrameCodec.TYPE_CHAT, 1, 0, NOW_MS);
+        add(history, FrameCodec.TYPE_CHAT, 1, 1, NOW_MS);
+        add(history, FrameCodec.TYPE_CHAT, 1, 2, NOW_MS);
+        assertEquals(2, history.size());
+        assertFalse(history.contains(MeshPacket.messageId(1, 0)));
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.disasterchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageJournalTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("journal").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static List<String> replay(MessageJournal journal) throws IOException {
+        List<String> records = new ArrayList<>();
+        journal.replay(r -> records.add(new String(r, StandardCharsets.UTF_8)));
+        return records;
+    }
+
+    @Test
+    public void recordsSurviveReopen() throws IOException {
+        try (MessageJournal journal = new MessageJournal(directory, 4096, 4)) {
+            journal.append("Sent: hello".getBytes(StandardCharsets.UTF_8));
+            journal.append("Received: 🚨 help".getBytes(StandardCharsets.UTF_8));
+        }
+
+        try (MessageJournal journal = new MessageJournal(directory, 4096, 4)) {
+            journal.append("Sent: after restart".getBytes(StandardCharsets.UTF_8));
+            List<String> records = replay(journal);
+
+            assertEquals(3, records.size());
+            assertEquals("Received: 🚨 help", records.get(1));
+            assertEquals("Sent: after restart", records.get(2));
+        }
+    }
+
+    @Test
+    public void oldSegmentsAreCompactedAway() throws IOException {
+        try (MessageJournal journal = new MessageJournal(directory, 256, 2)) {
+            for (int i = 0; i < 100; i++) {
+                journal.append(("message " + i).getBytes(StandardCharsets.UTF_8));
+            }
+            List<String> records = replay(journal);
+
+            assertEquals(2, directory.list().length);
+            assertEquals("message 99", records.get(records.size() - 1));
+            assertTrue(records.size() < 100);
+        }
+    }
+
+    @Test
+    public void rangeReadSpansSegments() throws IOException {
+        try (MessageJournal journal = new MessageJournal(directory, 256, 100)) {
+            for (int i = 0; i < 50; i++) {
+                assertEquals(i, journal.append(("m" + i).getBytes(StandardCharsets.UTF_8)));
+            }
+            List<String> records = new ArrayList<>();
+            journal.read(20, 10, r -> records.add(new String(r, StandardCharsets.UTF_8)));
+
+            assertTrue(directory.list().length > 2);
+            assertEquals(10, records.size());
+            assertEquals("m20", records.get(0));
+            assertEquals("m29", records.get(9));
+        }
+
+        try (MessageJournal journal = new MessageJournal(directory, 256, 100)) {
+            assertEquals(0, journal.firstSequence());
+            assertEquals(50, journal.nextSequence());
+        }
+    }
+
+    @Test
+    public void sealedSegmentsReadBackWhileFlushing() throws Exception {
+        try (MessageJournal journal = new MessageJournal(directory, 256, 3)) {
+            Thread flusher = new Thread(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        journal.flush();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+            flusher.start();
+            for (int i = 0; i < 60; i++) {
+                journal.append(("m" + i).getBytes(StandardCharsets.UTF_8));
+                if (i % 10 == 9) {
+                    List<String> first = replay(journal);
+                    List<String> second = replay(journal);
+                    assertEquals(first, second);
+                    assertEquals("m" + i, first.get(first.size() - 1));
+                    assertEquals(journal.nextSequence() - journal.firstSequence(), first.size());
+                }
+            }
+            flusher.interrupt();
+            flusher.join();
+        }
+    }
+
+    @Test
+    public void tornTailIsCutOffOnOpen() throws IOException {
+        try (MessageJournal journal = new MessageJournal(directory, 4096, 4)) {
+            journal.append("first".getBytes(StandardCharsets.UTF_8));
+            journal.append("second".getBytes(StandardCharsets.UTF_8));
+        }
+        File segment = directory.listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(8 + 5 + 8);
+            file.write('X');
+        }
+
+        try (MessageJournal journal = new MessageJournal(directory, 4096, 4)) {
+            journal.append("third".getBytes(StandardCharsets.UTF_8));
+            List<String> records = replay(journal);
+
+            assertEquals(2, records.size());
+            assertEquals("first", records.get(0));
+            assertEquals("third", records.get(1));
+        }
+    }
+}
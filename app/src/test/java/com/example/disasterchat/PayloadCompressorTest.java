@@ -0,0 +1,62 @@
+package com.example.disasterchat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class PayloadCompressorTest {
+
+    private static final String SOS = "🚨 EMERGENCY SOS: I need immediate help! Please assist if you can.";
+
+    private final byte[] dictionary = PayloadCompressor.buildDictionary(SOS);
+    private final PayloadCompressor sender = new PayloadCompressor(dictionary);
+    private final PayloadCompressor receiver = new PayloadCompressor(dictionary);
+
+    private byte[] roundTrip(byte type, String text, boolean expectCompressed) throws IOException {
+        byte[] frame = FrameCodec.encode(type, text.getBytes(StandardCharsets.UTF_8));
+        byte[] wire = new byte[frame.length];
+        int wireLength = sender.encodeFrame(frame, wire, 0);
+
+        assertEquals(expectCompressed, (wire[2] & FrameCodec.FLAG_COMPRESSED) != 0);
+        if (!expectCompressed) {
+            assertEquals(frame.length, wireLength);
+            return wire;
+        }
+        assertTrue(wireLength < frame.length);
+        byte[] inflated = new byte[FrameCodec.MAX_PAYLOAD];
+        int n = receiver.decompress(wire, FrameCodec.HEADER_SIZE, wireLength - FrameCodec.HEADER_SIZE, inflated);
+        return java.util.Arrays.copyOf(inflated, n);
+    }
+
+    @Test
+    public void sosText_shrinksToAFewBytes() throws IOException {
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_SOS, SOS.getBytes(StandardCharsets.UTF_8));
+        byte[] wire = new byte[frame.length];
+
+        int wireLength = sender.encodeFrame(frame, wire, 0);
+
+        assertTrue("compressed to " + wireLength, wireLength < FrameCodec.HEADER_SIZE + 16);
+    }
+
+    @Test
+    public void chatText_roundTrips() throws IOException {
+        String text = "Injured people trapped in the basement of the building on the main street, need water";
+        byte[] payload = roundTrip(FrameCodec.TYPE_CHAT, text, true);
+
+        assertEquals(text, new String(payload, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void tinyPayload_isSentVerbatim() throws IOException {
+        roundTrip(FrameCodec.TYPE_CHAT, "ok", false);
+    }
+
+    @Test
+    public void differentDictionaries_haveDifferentIds() {
+        assertTrue(new PayloadCompressor(PayloadCompressor.buildDictionary("a")).getDictionaryId() !=
+                new PayloadCompressor(PayloadCompressor.buildDictionary("b")).getDictionaryId());
+    }
+}
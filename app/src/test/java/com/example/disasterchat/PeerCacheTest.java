@@ -0,0 +1,103 @@
+package com.example.disasterchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class PeerCacheTest {
+    private static final long NOW = 1_700_000_000_000L;
+
+    private File dir;
+    private PeerCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("peers").toFile();
+        cache = new PeerCache(new File(dir, "peers.bin"));
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void emptyCache_isStale() {
+        assertTrue(cache.isStale(NOW));
+        cache.onSeen("A", "a", (short) -60, true, NOW - PeerCache.STALE_AFTER_MS - 1);
+        assertTrue(cache.isStale(NOW));
+        cache.onSeen("B", "b", (short) -60, true, NOW);
+        assertFalse(cache.isStale(NOW));
+    }
+
+    @Test
+    public void ranking_prefersServiceThenSignalThenHistory() {
+        cache.onSeen("weak", null, (short) -90, true, NOW);
+        cache.onSeen("strong", null, (short) -45, true, NOW);
+        cache.onSeen("stranger", null, (short) -30, false, NOW);
+        cache.onSeen("friend", null, (short) -90, true, NOW);
+        cache.onSuccess("friend", NOW - 60_000);
+
+        assertEquals(Arrays.asList("strong", "friend", "weak", "stranger"),
+                cache.ranked(NOW, 10, a -> false));
+        assertEquals(Collections.singletonList("strong"), cache.ranked(NOW, 1, a -> false));
+        assertEquals(Collections.singletonList("friend"), cache.ranked(NOW, 1, "strong"::equals));
+    }
+
+    @Test
+    public void repeatedFailures_dropOutUntilSeenAgain() {
+        cache.onSeen("A", null, (short) -50, true, NOW);
+        for (int i = 0; i < 3; i++) {
+            cache.onAttempt("A");
+        }
+        assertTrue(cache.ranked(NOW, 5, a -> false).isEmpty());
+
+        cache.onSeen("A", null, (short) -50, true, NOW + 1);
+        assertEquals(Collections.singletonList("A"), cache.ranked(NOW + 1, 5, a -> false));
+    }
+
+    @Test
+    public void bondedServicePeers_stayCandidatesWhenNotSeen() {
+        cache.onBonded("B", "phone", true);
+        cache.onBonded("C", "headset", false);
+        assertEquals(Collections.singletonList("B"), cache.ranked(NOW, 5, a -> false));
+    }
+
+    @Test
+    public void saveAndLoad_roundTrips() throws Exception {
+        cache.onSeen("A", "alpha", (short) -70, false, NOW);
+        cache.onSuccess("A", NOW);
+        cache.onBonded("B", null, true);
+        cache.onAttempt("B");
+        cache.save();
+
+        PeerCache reloaded = new PeerCache(new File(dir, "peers.bin"));
+        reloaded.load(NOW);
+        assertEquals(2, reloaded.size());
+        PeerCache.Entry a = reloaded.get("A");
+        assertEquals("alpha", a.name);
+        assertEquals(-70, a.rssi);
+        assertEquals(NOW, a.lastSuccessMillis);
+        assertTrue(a.hasService);
+        PeerCache.Entry b = reloaded.get("B");
+        assertNull(b.name);
+        assertTrue(b.bonded);
+        assertEquals(1, b.attemptsSinceSuccess);
+    }
+
+    @Test
+    public void load_withoutFile_isEmpty() throws Exception {
+        cache.load(NOW);
+        assertEquals(0, cache.size());
+    }
+}
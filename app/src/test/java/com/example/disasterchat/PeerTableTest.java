@@ -0,0 +1,77 @@
+package com.example.disasterchat;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PeerTableTest {
+
+    private final PeerTable table = new PeerTable(4, new Random(42));
+
+    @Test
+    public void backoff_doublesWithJitterUpToTheCap() {
+        table.setBackoff(1000, 8000);
+        for (int failures = 0; failures < 6; failures++) {
+            long ceiling = Math.min(8000, 1000L << failures);
+            for (int i = 0; i < 100; i++) {
+                long delay = table.delayFor(failures);
+                assertTrue("failures=" + failures + " delay=" + delay,
+                        delay >= ceiling / 2 && delay <= ceiling);
+            }
+        }
+    }
+
+    @Test
+    public void onlyLostPeersBecomeDue() {
+        table.onConnected("A", 0);
+        table.onConnected("B", 0);
+        table.onLost("A", 10);
+
+        assertEquals(Collections.emptyList(), table.due(10, 3, a -> false));
+        assertEquals(Collections.singletonList("A"), table.due(10_000, 3, a -> false));
+        assertEquals(Collections.emptyList(), table.due(10_000, 3, "A"::equals));
+    }
+
+    @Test
+    public void failuresPushTheNextAttemptBack() {
+        table.setBackoff(100, 10_000);
+        table.onConnected("A", 0);
+        table.onLost("A", 0);
+        table.onFailed("A", 1000);
+        table.onFailed("A", 1000);
+        long next = table.nextAttemptMillis(a -> false);
+        assertTrue(next >= 1200 && next <= 1400);
+    }
+
+    @Test
+    public void due_prefersFewerFailuresThenMostRecentlyLinked() {
+        table.setBackoff(1, 1);
+        table.onConnected("old", 0);
+        table.onConnected("recent", 50);
+        table.onConnected("flaky", 100);
+        for (String peer : Arrays.asList("old", "recent", "flaky")) {
+            table.onLost(peer, 200);
+        }
+        table.onFailed("flaky", 200);
+
+        assertEquals(Arrays.asList("recent", "old"), table.due(1000, 2, a -> false));
+        assertEquals(Arrays.asList("recent", "old", "flaky"), table.due(1000, 5, a -> false));
+    }
+
+    @Test
+    public void oldestPeerIsEvictedAndStalePeersExpire() {
+        for (int i = 0; i < 5; i++) {
+            table.onConnected("P" + i, i);
+        }
+        assertEquals(4, table.size());
+
+        table.setExpiry(1000);
+        table.onLost("P4", 10);
+        assertEquals(Collections.emptyList(), table.due(5000, 3, a -> false));
+        assertEquals(3, table.size());
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.disasterchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+
+    private static final long MS = 1_000_000L;
+
+    private final RateLimiter limiter = new RateLimiter();
+
+    @Test
+    public void lastPartOfTheBucket_isKeptForSos() {
+        long now = 0;
+        int sent = 0;
+        while (limiter.delayNanos(OutboundQueue.LANE_CHAT, 1000, now) == 0) {
+            limiter.consume(OutboundQueue.LANE_CHAT, 1000, now);
+            sent += 1000;
+        }
+        assertTrue(sent <= RateLimiter.BURST_BYTES - RateLimiter.SOS_RESERVE_BYTES);
+        assertEquals(0, limiter.delayNanos(OutboundQueue.LANE_SOS, 1000, now));
+        assertEquals(0, limiter.delayNanos(OutboundQueue.LANE_CONTROL, 1000, now));
+
+        limiter.consume(OutboundQueue.LANE_SOS, RateLimiter.BURST_BYTES, now);
+        assertTrue(limiter.delayNanos(OutboundQueue.LANE_SOS, 1000, now) > 0);
+        assertEquals(0, limiter.delayNanos(OutboundQueue.LANE_CONTROL, 1000, now));
+    }
+
+    @Test
+    public void largeControlFrame_delaysChatButNotSos() {
+        for (int i = 0; i < 100; i++) {
+            limiter.onWritten(1, 100 * MS, i * 1000 * MS);
+        }
+        assertEquals(RateLimiter.MIN_RATE, limiter.getRate());
+        long now = 100_000 * MS;
+
+        // A 32 KB sync is owed, not taken from the SOS reserve.
+        assertEquals(0, limiter.delayNanos(OutboundQueue.LANE_CONTROL, 32 * 1024, now));
+        limiter.consume(OutboundQueue.LANE_CONTROL, 32 * 1024, now);
+        assertEquals(0, limiter.delayNanos(OutboundQueue.LANE_SOS, RateLimiter.SOS_RESERVE_BYTES, now));
+        assertTrue(limiter.delayNanos(OutboundQueue.LANE_CHAT, 100, now) > 10_000 * MS);
+
+        // SOS beyond the reserve waits only for what SOS itself overdrew.
+        limiter.consume(OutboundQueue.LANE_SOS, RateLimiter.SOS_RESERVE_BYTES + 1024, now);
+        long sosDelay = limiter.delayNanos(OutboundQueue.LANE_SOS, 100, now);
+        assertTrue(sosDelay > 0);
+        assertTrue("SOS waits " + sosDelay / MS + " ms", sosDelay <= 1024 * 1_000_000_000L / RateLimiter.MIN_RATE + MS);
+        assertEquals(0, limiter.delayNanos(OutboundQueue.LANE_SOS, 100, now + sosDelay));
+        assertTrue(limiter.delayNanos(OutboundQueue.LANE_CHAT, 100, now + sosDelay) > 0);
+    }
+
+    @Test
+    public void chatIsPacedAtTheRate() {
+        long now = 0;
+        long sent = 0;
+        while (now < 10_000 * MS) {
+            long delay = limiter.delayNanos(OutboundQueue.LANE_CHAT, 500, now);
+            if (delay == 0) {
+                limiter.consume(OutboundQueue.LANE_CHAT, 500, now);
+                sent += 500;
+            } else {
+                now += delay;
+            }
+        }
+        long expected = RateLimiter.INITIAL_RATE * 10;
+        assertTrue("sent " + sent, Math.abs(sent - expected) <= RateLimiter.BURST_BYTES);
+    }
+
+    @Test
+    public void stalledWritesAndSlowRoundTrips_cutTheRate() {
+        limiter.onRtt(20 * MS, 0);
+        limiter.onWritten(4096, 100 * MS, 0);
+        long afterStall = limiter.getRate();
+        assertTrue(afterStall < RateLimiter.INITIAL_RATE);
+
+        // Within the holdoff a second signal is the same episode.
+        limiter.onRtt(500 * MS, 100 * MS);
+        assertEquals(afterStall, limiter.getRate());
+        limiter.onRtt(500 * MS, 300 * MS);
+        assertTrue(limiter.getRate() < afterStall);
+
+        for (int i = 0; i < 100; i++) {
+            limiter.onWritten(1, 100 * MS, i * 1000 * MS);
+        }
+        assertEquals(RateLimiter.MIN_RATE, limiter.getRate());
+    }
+
+    @Test
+    public void rateGrows_onlyWhileTheBucketHoldsFramesBack() {
+        limiter.onWritten(4096, 0, 0);
+        assertEquals(RateLimiter.INITIAL_RATE, limiter.getRate());
+
+        limiter.consume(OutboundQueue.LANE_CHAT, RateLimiter.BURST_BYTES, 0);
+        assertTrue(limiter.delayNanos(OutboundQueue.LANE_CHAT, 4096, 0) > 0);
+        limiter.onWritten(4096, 0, MS);
+        assertEquals(RateLimiter.INITIAL_RATE + 4096, limiter.getRate());
+
+        // After a cut it grows more slowly.
+        limiter.onWritten(4096, 100 * MS, 2 * MS);
+        long cut = limiter.getRate();
+        limiter.delayNanos(OutboundQueue.LANE_CHAT, 4096, 2 * MS);
+        limiter.onWritten(4096, 0, 3 * MS);
+        assertEquals(cut + 4096 / RateLimiter.INCREASE_DIVISOR, limiter.getRate());
+    }
+}
@@ -0,0 +1,178 @@
+package com.example.disasterchat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class ReliableChannelTest {
+
+    private final ReliableChannel channel = new ReliableChannel(4, 16);
+
+    private static byte[] payload(int i) {
+        return new byte[]{(byte) i};
+    }
+
+    private static List<OutboundQueue.Entry> drain(OutboundQueue queue) {
+        List<OutboundQueue.Entry> entries = new ArrayList<>();
+        OutboundQueue.Entry e;
+        while ((e = queue.poll()) != null) {
+            entries.add(e);
+        }
+        return entries;
+    }
+
+    private static int seqOf(OutboundQueue.Entry entry) {
+        return ReliableChannel.readInt(entry.frame, FrameCodec.HEADER_SIZE);
+    }
+
+    @Test
+    public void sendsAreHeldUntilAttachedAndLimitedByTheWindow() {
+        for (int i = 0; i < 6; i++) {
+            channel.send(FrameCodec.TYPE_CHAT, payload(i));
+        }
+        OutboundQueue link = new OutboundQueue(64);
+        assertEquals(0, channel.attach(link, true, 1));
+
+        List<OutboundQueue.Entry> sent = drain(link);
+        assertEquals(4, sent.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, seqOf(sent.get(i)));
+            assertEquals(FrameCodec.FLAG_SEQUENCED, sent.get(i).frame[2]);
+        }
+
+        channel.onAck(ReliableChannel.STREAM_CHAT, 1);
+        sent = drain(link);
+        assertEquals(2, sent.size());
+        assertEquals(4, seqOf(sent.get(0)));
+        assertEquals(5, seqOf(sent.get(1)));
+    }
+
+    @Test
+    public void ack_completesFuturesUpToTheAckedNumber() {
+        channel.attach(new OutboundQueue(64), true, 1);
+        CompletableFuture<Void> first = channel.send(FrameCodec.TYPE_CHAT, payload(0));
+        CompletableFuture<Void> second = channel.send(FrameCodec.TYPE_CHAT, payload(1));
+        CompletableFuture<Void> sos = channel.send(FrameCodec.TYPE_SOS, payload(2));
+
+        channel.onAck(ReliableChannel.STREAM_CHAT, 0);
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+        assertFalse(sos.isDone());
+
+        channel.onAck(ReliableChannel.STREAM_SOS, 0);
+        assertTrue(sos.isDone());
+        assertEquals(1, channel.unackedCount());
+    }
+
+    @Test
+    public void reattach_resendsUnackedInOrder() {
+        OutboundQueue first = new OutboundQueue(64);
+        channel.attach(first, true, 1);
+        for (int i = 0; i < 3; i++) {
+            channel.send(FrameCodec.TYPE_CHAT, payload(i));
+        }
+        channel.onAck(ReliableChannel.STREAM_CHAT, 0);
+        channel.detach(first);
+        first.close(new IOException("dropped"));
+        channel.send(FrameCodec.TYPE_CHAT, payload(3));
+
+        OutboundQueue second = new OutboundQueue(64);
+        assertEquals(2, channel.attach(second, true, 1));
+        List<OutboundQueue.Entry> sent = drain(second);
+        assertEquals(3, sent.size());
+        assertEquals(1, seqOf(sent.get(0)));
+        assertEquals(2, seqOf(sent.get(1)));
+        assertEquals(3, seqOf(sent.get(2)));
+    }
+
+    @Test
+    public void receiver_dropsDuplicatesAndResetsOnNewSession() {
+        OutboundQueue link = new OutboundQueue(64);
+        channel.attach(link, true, 7);
+        assertTrue(channel.accept(ReliableChannel.STREAM_CHAT, 0));
+        assertTrue(channel.accept(ReliableChannel.STREAM_CHAT, 1));
+        assertFalse(channel.accept(ReliableChannel.STREAM_CHAT, 1));
+        assertTrue(channel.accept(ReliableChannel.STREAM_SOS, 0));
+
+        assertEquals(2, channel.takeAcks(link));
+        assertEquals(0, channel.takeAcks(link));
+        OutboundQueue.Entry ack = link.poll();
+        assertEquals(FrameCodec.TYPE_ACK, ack.frame[1]);
+        assertEquals(ReliableChannel.STREAM_SOS, ack.frame[FrameCodec.HEADER_SIZE]);
+        assertEquals(0, ReliableChannel.readInt(ack.frame, FrameCodec.HEADER_SIZE + 1));
+        ack = link.poll();
+        assertEquals(ReliableChannel.STREAM_CHAT, ack.frame[FrameCodec.HEADER_SIZE]);
+        assertEquals(1, ReliableChannel.readInt(ack.frame, FrameCodec.HEADER_SIZE + 1));
+
+        channel.attach(new OutboundQueue(64), true, 7);
+        assertFalse(channel.accept(ReliableChannel.STREAM_CHAT, 0));
+
+        channel.attach(new OutboundQueue(64), true, 8);
+        assertTrue(channel.accept(ReliableChannel.STREAM_CHAT, 0));
+    }
+
+    @Test
+    public void ack_isNotLostToAFullControlLaneAndCoalescesWhileQueued() {
+        ReliableChannel sender = new ReliableChannel(4, 16);
+        OutboundQueue toReceiver = new OutboundQueue(64);
+        sender.attach(toReceiver, true, 1);
+        CompletableFuture<Void> first = sender.send(FrameCodec.TYPE_CHAT, payload(0));
+        CompletableFuture<Void> second = sender.send(FrameCodec.TYPE_CHAT, payload(1));
+
+        OutboundQueue toSender = new OutboundQueue(1);
+        channel.attach(toSender, true, 2);
+        toSender.offer(OutboundQueue.LANE_CONTROL, FrameCodec.encode(FrameCodec.TYPE_PING, payload(0)));
+
+        assertTrue(channel.accept(ReliableChannel.STREAM_CHAT, 0));
+        assertEquals(1, channel.takeAcks(toSender));
+        assertTrue(channel.accept(ReliableChannel.STREAM_CHAT, 1));
+        assertEquals(0, channel.takeAcks(toSender));
+
+        // The link stays up and nothing else arrives: the writer alone must get the
+        // sender its ACK for both frames.
+        OutboundQueue.Entry ping = toSender.poll();
+        assertEquals(FrameCodec.TYPE_PING, ping.frame[1]);
+        OutboundQueue.Entry ack = toSender.poll();
+        assertEquals(0, ReliableChannel.readInt(ack.frame, FrameCodec.HEADER_SIZE + 1));
+        sender.onAck(ReliableChannel.STREAM_CHAT, 0);
+        assertNull(toSender.poll());
+        ack.complete();
+
+        ack = toSender.poll();
+        assertEquals(FrameCodec.TYPE_ACK, ack.frame[1]);
+        assertEquals(1, ReliableChannel.readInt(ack.frame, FrameCodec.HEADER_SIZE + 1));
+        ack.complete();
+        sender.onAck(ReliableChannel.STREAM_CHAT, 1);
+        assertNull(toSender.poll());
+
+        assertTrue(first.isDone());
+        assertTrue(second.isDone());
+        assertEquals(0, sender.unackedCount());
+    }
+
+    @Test
+    public void unreliablePeer_getsPlainFrames() {
+        CompletableFuture<Void> queued = channel.send(FrameCodec.TYPE_CHAT, payload(9));
+        OutboundQueue link = new OutboundQueue(64);
+        channel.attach(link, false, 0);
+
+        OutboundQueue.Entry entry = link.poll();
+        assertArrayEquals(FrameCodec.encode(FrameCodec.TYPE_CHAT, payload(9)), entry.frame);
+        entry.result.complete(null);
+        assertTrue(queued.isDone());
+        assertEquals(0, channel.unackedCount());
+    }
+
+    @Test
+    public void close_failsEverythingPending() {
+        CompletableFuture<Void> pending = channel.send(FrameCodec.TYPE_SOS, payload(0));
+        channel.close(new IOException("gone"));
+        assertTrue(pending.isCompletedExceptionally());
+        assertTrue(channel.send(FrameCodec.TYPE_SOS, payload(1)).isCompletedExceptionally());
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.disasterchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RingBufferTest {
+
+    @Test
+    public void addLast_evictsOldestWhenFull() {
+        RingBuffer<Integer> ring = new RingBuffer<>(3);
+        assertNull(ring.addLast(1));
+        assertNull(ring.addLast(2));
+        assertNull(ring.addLast(3));
+
+        assertEquals(Integer.valueOf(1), ring.addLast(4));
+        assertEquals(3, ring.size());
+        assertEquals(Integer.valueOf(2), ring.get(0));
+        assertEquals(Integer.valueOf(4), ring.get(2));
+    }
+
+    @Test
+    public void addFirst_evictsNewestWhenFull() {
+        RingBuffer<Integer> ring = new RingBuffer<>(3);
+        ring.addLast(5);
+        ring.addLast(6);
+        ring.addLast(7);
+
+        assertEquals(Integer.valueOf(7), ring.addFirst(4));
+        assertEquals(Integer.valueOf(4), ring.get(0));
+        assertEquals(Integer.valueOf(6), ring.get(2));
+    }
+
+    @Test
+    public void sizeStaysBoundedOverManyAppends() {
+        RingBuffer<Integer> ring = new RingBuffer<>(500);
+        for (int i = 0; i < 100_000; i++) {
+            ring.addLast(i);
+        }
+
+        assertEquals(500, ring.size());
+        assertEquals(Integer.valueOf(99_500), ring.get(0));
+        assertEquals(Integer.valueOf(99_999), ring.get(499));
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.disasterchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RoutingTableTest {
+
+    private final RoutingTable table = new RoutingTable(64);
+
+    @Test
+    public void newerOrShorterRoutesWin() {
+        assertTrue(table.update(7, "B", 3, 10, 0));
+        assertFalse(table.update(7, "C", 4, 10, 0));
+        assertFalse(table.update(7, "C", 1, 9, 0));
+        assertTrue(table.update(7, "C", 2, 10, 0));
+        assertEquals("C", table.nextHop(7, 0));
+        assertTrue(table.update(7, "D", 5, 11, 0));
+        assertEquals("D", table.nextHop(7, 0));
+        assertEquals(5, table.hops(7, 0));
+    }
+
+    @Test
+    public void routesLapseAfterTheExpiry() {
+        table.setExpiry(1000);
+        table.update(7, "B", 1, 1, 0);
+        assertEquals("B", table.nextHop(7, 999));
+        assertNull(table.nextHop(7, 1000));
+        // A lapsed route is replaced even by an older announcement.
+        assertTrue(table.update(7, "C", 3, 0, 1000));
+        assertEquals(1, table.expire(2000));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void removeVia_dropsOnlyThatNeighboursRoutes() {
+        for (int node = 0; node < 64; node++) {
+            table.update(node, node % 3 == 0 ? "B" : "C", 1, 0, 0);
+        }
+        assertEquals(22, table.removeVia("B"));
+        assertEquals(42, table.size());
+        for (int node = 0; node < 64; node++) {
+            assertEquals(node % 3 == 0 ? null : "C", table.nextHop(node, 0));
+        }
+    }
+
+    @Test
+    public void fullTable_refusesNewNodesUntilSomethingExpires() {
+        table.setExpiry(1000);
+        for (int node = 0; node < 64; node++) {
+            assertTrue(table.update(node, "B", 1, 0, node < 32 ? 0 : 500));
+        }
+        assertFalse(table.update(100, "B", 1, 0, 900));
+        assertTrue(table.update(100, "B", 1, 0, 1200));
+        assertEquals(33, table.size());
+        assertEquals("B", table.nextHop(100, 1200));
+    }
+}
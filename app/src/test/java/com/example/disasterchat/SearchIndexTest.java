@@ -0,0 +1,223 @@
+package com.example.disasterchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class SearchIndexTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("search").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles()) {
+            File[] children = f.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    child.delete();
+                }
+            }
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private SearchIndex newIndex() {
+        return new SearchIndex(new File(dir, "search.idx"));
+    }
+
+    @Test
+    public void everyTermMustMatch_andStarredWordsArePrefixes() throws Exception {
+        SearchIndex index = newIndex();
+        index.add(0, "Need INSULIN at Elm Street shelter");
+        index.add(1, "insulin delivered to elm st.");
+        index.add(2, "Street flooded near the school");
+        index.add(5, "Who has insulin? Ask O'Brien");
+
+        assertArrayEquals(new long[] {5, 1, 0}, index.search("insulin", 10));
+        assertArrayEquals(new long[] {1, 0}, index.search("Insulin elm", 10));
+        assertArrayEquals(new long[] {2, 0}, index.search("stre*", 10));
+        assertArrayEquals(new long[] {1, 0}, index.search("ins* el*", 10));
+        assertArrayEquals(new long[] {5}, index.search("o'brien", 10));
+        assertArrayEquals(new long[] {5}, index.search("insulin", 1));
+        assertEquals(0, index.search("insulin school", 10).length);
+        assertEquals(0, index.search("  ", 10).length);
+    }
+
+    @Test
+    public void queries_matchAScanOfEveryMessage() {
+        Random random = new Random(5);
+        String[] words = new String[2000];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = Integer.toString(i * 7919, 36);
+        }
+        SearchIndex index = newIndex();
+        List<List<String>> messages = new ArrayList<>();
+        for (int sequence = 0; sequence < 100_000; sequence++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = 0; w < 8; w++) {
+                // Skewed, like real chat: a few words are everywhere.
+                text.append(words[(int) (words.length * Math.pow(random.nextDouble(), 3))]).append(' ');
+            }
+            messages.add(SearchIndex.tokenize(text.toString()));
+            index.add(sequence, text.toString());
+        }
+
+        for (String query : new String[] {"0", "0 " + words[1], words[3] + " " + words[40], words[200].substring(0, 2) + "*",
+                words[1] + " " + words[900].substring(0, 1) + "*"}) {
+            List<Long> expected = new ArrayList<>();
+            for (int sequence = messages.size() - 1; sequence >= 0 && expected.size() < 50; sequence--) {
+                if (matches(messages.get(sequence), query)) {
+                    expected.add((long) sequence);
+                }
+            }
+            long[] found = index.search(query, 50);
+            assertEquals(query, expected.size(), found.length);
+            for (int i = 0; i < found.length; i++) {
+                assertEquals(query, (long) expected.get(i), found[i]);
+            }
+        }
+    }
+
+    private static boolean matches(List<String> terms, String query) {
+        for (String word : query.split(" ")) {
+            boolean found = false;
+            for (String term : terms) {
+                found |= word.endsWith("*") ? term.startsWith(word.substring(0, word.length() - 1)) : term.equals(word);
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void concurrentJournalingThreads_leaveEveryMessageSearchable() throws Exception {
+        SearchIndex index = newIndex();
+        int threads = 4;
+        int perThread = 500;
+        try (MessageJournal journal = new MessageJournal(new File(dir, "journal"))) {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> writers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                String word = "writer" + t;
+                Thread writer = new Thread(() -> {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perThread; i++) {
+                            String text = word + " flood report";
+                            // Appends and indexing interleave across threads, as on read threads.
+                            long sequence = journal.append(text.getBytes(StandardCharsets.UTF_8));
+                            Thread.yield();
+                            index.add(sequence, text);
+                        }
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    }
+                });
+                writers.add(writer);
+                writer.start();
+            }
+            start.countDown();
+            for (Thread writer : writers) {
+                writer.join();
+            }
+
+            long total = (long) threads * perThread;
+            assertEquals(total, journal.nextSequence());
+            assertEquals(total, index.nextSequence());
+            long[] all = index.search("flood", Integer.MAX_VALUE);
+            assertEquals(total, all.length);
+            for (int i = 0; i < all.length; i++) {
+                assertEquals(total - 1 - i, all[i]);
+            }
+            int found = 0;
+            for (int t = 0; t < threads; t++) {
+                found += index.search("writer" + t + " report", Integer.MAX_VALUE).length;
+            }
+            assertEquals(total, found);
+        }
+    }
+
+    @Test
+    public void savedIndex_picksUpWhereItStopped() throws Exception {
+        SearchIndex index = newIndex();
+        index.add(0, "water at the school");
+        index.add(1, "school roof collapsed");
+        index.save();
+
+        SearchIndex reopened = newIndex();
+        reopened.load();
+        assertEquals(2, reopened.nextSequence());
+        reopened.add(1, "already indexed");
+        reopened.add(2, "school gym is dry");
+        assertArrayEquals(new long[] {2, 1, 0}, reopened.search("school", 10));
+        assertEquals(0, reopened.search("already", 10).length);
+    }
+
+    @Test
+    public void skippedSequence_isWhereCatchingUpStarts() throws Exception {
+        SearchIndex index = newIndex();
+        index.add(0, "water at the school");
+        index.add(2, "school gym is dry");
+        assertEquals(1, index.nextSequence());
+        index.save();
+
+        SearchIndex reopened = newIndex();
+        reopened.load();
+        assertEquals(1, reopened.nextSequence());
+        reopened.add(1, "school roof collapsed");
+        reopened.add(2, "school gym is dry");
+        assertEquals(3, reopened.nextSequence());
+        assertArrayEquals(new long[] {2, 1, 0}, reopened.search("school", 10));
+    }
+
+    @Test
+    public void truncatedFile_startsOverEmpty() throws Exception {
+        SearchIndex index = newIndex();
+        index.add(0, "water at the school");
+        index.add(1, "school roof collapsed");
+        index.save();
+        File file = new File(dir, "search.idx");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        SearchIndex reopened = newIndex();
+        reopened.load();
+        assertEquals(0, reopened.nextSequence());
+        assertEquals(0, reopened.termCount());
+    }
+
+    @Test
+    public void messagesTheJournalDropped_areForgotten() throws Exception {
+        SearchIndex index = newIndex();
+        for (int sequence = 0; sequence < 300; sequence++) {
+            index.add(sequence, sequence % 2 == 0 ? "even water" : "odd water " + sequence);
+        }
+        index.removeBefore(290);
+
+        long[] water = index.search("water", 100);
+        assertEquals(10, water.length);
+        assertEquals(290, water[water.length - 1]);
+        assertEquals(0, index.search("1", 10).length);
+        assertArrayEquals(new long[] {299}, index.search("299", 10));
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.disasterchat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SosIndexTest {
+
+    private final SosIndex index = new SosIndex();
+
+    private void report(int sender, double latitude, double longitude) {
+        index.report(sender, SosAlert.toE7(latitude), SosAlert.toE7(longitude), 3, "help", 1000L + sender);
+    }
+
+    @Test
+    public void repeatsFromOneSender_mergeIntoTheLatest() {
+        index.report(7, SosAlert.toE7(10), SosAlert.toE7(20), 2, "first", 1000);
+        SosAlert merged = index.report(7, SosAlert.toE7(10.5), SosAlert.toE7(20), 5, "worse", 2000);
+
+        assertEquals(1, index.size());
+        assertEquals(2, merged.reports);
+        assertEquals(5, merged.severity);
+        assertEquals("worse", merged.text);
+        assertEquals(1000, merged.firstMillis);
+        assertEquals(2000, merged.lastMillis);
+        assertTrue(index.within(10, 20, 1000).isEmpty());
+        assertEquals(merged, index.within(10.5, 20, 1000).get(0));
+    }
+
+    @Test
+    public void olderReportArrivingLate_doesNotReplaceTheNewer() {
+        index.report(7, SosAlert.toE7(10.5), SosAlert.toE7(20), 5, "worse", 2000);
+        SosAlert merged = index.report(7, SosAlert.toE7(10), SosAlert.toE7(20), 2, "first", 1000);
+
+        assertEquals(2, merged.reports);
+        assertEquals(5, merged.severity);
+        assertEquals("worse", merged.text);
+        assertEquals(SosAlert.toE7(10.5), merged.latE7);
+        assertEquals(1000, merged.firstMillis);
+        assertEquals(2000, merged.lastMillis);
+        assertTrue(index.within(10, 20, 1000).isEmpty());
+        assertEquals(merged, index.within(10.5, 20, 1000).get(0));
+    }
+
+    @Test
+    public void queries_matchAScanOfEveryAlert() {
+        Random random = new Random(3);
+        List<SosAlert> all = new ArrayList<>();
+        // A dense city-sized cluster and a scattering across the map.
+        for (int sender = 0; sender < 20000; sender++) {
+            boolean city = sender % 4 != 0;
+            double latitude = city ? 35.6 + random.nextGaussian() * 0.1 : random.nextDouble() * 170 - 85;
+            double longitude = city ? 139.7 + random.nextGaussian() * 0.1 : random.nextDouble() * 360 - 180;
+            report(sender, latitude, longitude);
+            all.add(index.get(sender));
+        }
+
+        for (double[] point : new double[][] {{35.65, 139.75}, {-20, 40}, {84, -170}}) {
+            all.sort(Comparator.comparingDouble(a -> a.distanceMeters(point[0], point[1])));
+            assertEquals(all.subList(0, 25), index.nearest(point[0], point[1], 25));
+
+            int inRadius = 0;
+            while (all.get(inRadius).distanceMeters(point[0], point[1]) <= 3000) {
+                inRadius++;
+            }
+            assertEquals(all.subList(0, inRadius), index.within(point[0], point[1], 3000));
+            assertEquals(inRadius, index.countWithin(point[0], point[1], 3000));
+        }
+    }
+
+    @Test
+    public void radiusQueries_wrapAroundTheAntimeridian() {
+        report(1, 0, 179.99);
+        report(2, 0, -179.99);
+        report(3, 0, 179.5);
+
+        List<SosAlert> near = index.within(0, -179.999, 5000);
+        assertEquals(2, near.size());
+        assertEquals(2, near.get(0).sender);
+        assertEquals(1, near.get(1).sender);
+    }
+
+    @Test
+    public void oldAlerts_areForgotten() {
+        report(1, 10, 10);
+        report(2, 10, 10.001);
+        assertEquals(1, index.removeOlderThan(1002));
+        assertNull(index.get(1));
+        assertEquals(1, index.nearest(10, 10, 5).size());
+    }
+
+    @Test
+    public void geotag_roundTripsThroughTheBody() {
+        byte[] body = new byte[SosAlert.GEOTAG_SIZE];
+        SosAlert.writeGeotag(-33.8688, 151.2093, 9, body, 0);
+
+        assertTrue(SosAlert.hasGeotag(body, 0, body.length));
+        assertEquals(SosAlert.SEVERITY_MAX, SosAlert.readSeverity(body, 0));
+        assertEquals(-338688000, SosAlert.readLatE7(body, 0));
+        assertEquals(1512093000, SosAlert.readLonE7(body, 0));
+        assertFalse(SosAlert.hasGeotag("SOS help".getBytes(), 0, 8));
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.disasterchat;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TextCodecTest {
+
+    private final TextCodec codec = new TextCodec(1024);
+
+    @Test
+    public void encodeAndDecode_roundTripMultiByteText() {
+        String text = "Need water – 3 people, Zone B 🚑";
+        byte[] buffer = new byte[256];
+        int length = codec.encode(text, buffer, 5, buffer.length - 5);
+
+        assertArrayEquals(text.getBytes(StandardCharsets.UTF_8),
+                Arrays.copyOfRange(buffer, 5, 5 + length));
+        assertEquals(text, codec.decode(buffer, 5, length).toString());
+    }
+
+    @Test
+    public void textThatDoesNotFit_isCutAtACharacterBoundary() {
+        byte[] buffer = new byte[6];
+        int length = codec.encode("ab🚑c", buffer, 0, 5);
+
+        // The 4-byte emoji would end at byte 6, so only "ab" fits.
+        assertEquals(2, length);
+        assertEquals("ab", codec.decode(buffer, 0, length).toString());
+    }
+
+    @Test
+    public void malformedBytes_decodeToReplacementCharacters() {
+        byte[] bytes = {'o', 'k', (byte) 0xC3};
+        assertEquals("ok�", codec.decode(bytes, 0, bytes.length).toString());
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(counter.isThreadAllocatedMemorySupported());
+        counter.setThreadAllocatedMemoryEnabled(true);
+        return counter;
+    }
+
+    /**
+     * Decoding bodies that alternate between two source arrays, as a reader's frames do,
+     * reuses the cached views. This covers the codec alone; the service's whole receive
+     * path is measured in {@link BluetoothChatServiceTest}.
+     */
+    @Test
+    public void steadyStateDecoding_allocatesNothing() {
+        com.sun.management.ThreadMXBean counter = allocationCounter();
+        long thread = Thread.currentThread().getId();
+        byte[] readBuffer = "  need water – 3 people".getBytes(StandardCharsets.UTF_8);
+        byte[] frameBuffer = "SOS: trapped on 2nd floor 🚑".getBytes(StandardCharsets.UTF_8);
+
+        int rounds = 20000;
+        int chars = 0;
+        for (int i = 0; i < rounds; i++) {
+            chars += decodeBoth(readBuffer, frameBuffer);
+        }
+        long before = counter.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < rounds; i++) {
+            chars += decodeBoth(readBuffer, frameBuffer);
+        }
+        long allocated = counter.getThreadAllocatedBytes(thread) - before;
+
+        assertTrue(chars > 0);
+        assertTrue("allocated " + allocated + " bytes for " + rounds + " rounds", allocated < rounds);
+    }
+
+    private int decodeBoth(byte[] first, byte[] second) {
+        CharBuffer text = codec.decode(first, 2, first.length - 2);
+        int chars = text.remaining();
+        return chars + codec.decode(second, 0, second.length).remaining();
+    }
+
+    @Test
+    public void textCutAtTheCharLimit_neverSplitsASurrogatePair() {
+        TextCodec small = new TextCodec(3);
+        byte[] buffer = new byte[16];
+        int length = small.encode("ab🚑", buffer, 0, buffer.length);
+
+        assertEquals(2, length);
+        assertEquals("ab", small.decode(buffer, 0, length).toString());
+    }
+
+    @Test
+    public void steadyStateSendEncoding_allocatesNothing() {
+        com.sun.management.ThreadMXBean counter = allocationCounter();
+        long thread = Thread.currentThread().getId();
+        byte[] scratch = new byte[FrameCodec.MAX_PAYLOAD];
+        String text = "SOS: trapped on 2nd floor, 3 people – need medical help";
+
+        int rounds = 20000;
+        int total = 0;
+        for (int i = 0; i < rounds; i++) {
+            total += encodePacket(text, scratch, i);
+        }
+        long before = counter.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < rounds; i++) {
+            total += encodePacket(text, scratch, i);
+        }
+        long allocated = counter.getThreadAllocatedBytes(thread) - before;
+
+        assertTrue(total > 0);
+        assertTrue("allocated " + allocated + " bytes for " + rounds + " messages", allocated < rounds);
+    }
+
+    private int encodePacket(String text, byte[] scratch, int counter) {
+        MeshPacket.writeHeader(MeshPacket.messageId(1, counter), 8, 0, scratch, 0);
+        return codec.encode(text, scratch, MeshPacket.HEADER_SIZE, scratch.length - MeshPacket.HEADER_SIZE);
+    }
+}
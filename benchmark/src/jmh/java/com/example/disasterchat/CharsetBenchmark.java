@@ -0,0 +1,84 @@
+package com.example.disasterchat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UTF-8 conversion with a fresh array per message, against reused encoder/decoder
+ * instances writing into preallocated buffers, as {@link TextCodec} does on the send and
+ * receive paths.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class CharsetBenchmark {
+
+    @Param({"ascii", "mixed"})
+    String text;
+
+    @Param({"32", "256"})
+    int length;
+
+    private String message;
+    private byte[] encoded;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+    private ByteBuffer byteBuffer;
+    private CharBuffer charBuffer;
+    private TextCodec codec;
+    private byte[] scratch;
+
+    @Setup
+    public void setUp() {
+        message = "mixed".equals(text) ? Payloads.mixedText(length) : Payloads.text(length);
+        encoded = message.getBytes(StandardCharsets.UTF_8);
+        byteBuffer = ByteBuffer.allocate(length * 4);
+        charBuffer = CharBuffer.allocate(length);
+        codec = new TextCodec(length * 4);
+        scratch = new byte[length * 4];
+    }
+
+    @Benchmark
+    public byte[] getBytes() {
+        return message.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String newString() {
+        return new String(encoded, StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public int reusedEncoder() {
+        byteBuffer.clear();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(message), byteBuffer, true);
+        encoder.flush(byteBuffer);
+        return byteBuffer.position();
+    }
+
+    @Benchmark
+    public int reusedDecoder() {
+        charBuffer.clear();
+        decoder.reset();
+        decoder.decode(ByteBuffer.wrap(encoded), charBuffer, true);
+        decoder.flush(charBuffer);
+        return charBuffer.position();
+    }
+
+    @Benchmark
+    public int textCodecEncode() {
+        return codec.encode(message, scratch, 0, scratch.length);
+    }
+
+    @Benchmark
+    public int textCodecDecode() {
+        return codec.decode(encoded, 0, encoded.length).remaining();
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.disasterchat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Dedup cost for fresh ids (insert and rotate) and for relayed duplicates (hit). */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class DuplicateFilterBenchmark {
+    private static final int GENERATION_SIZE = 4096;
+
+    private DuplicateFilter filter;
+    private long[] seenIds;
+    private int next;
+    private int counter;
+
+    @Setup
+    public void setUp() {
+        filter = new DuplicateFilter(GENERATION_SIZE);
+        seenIds = new long[GENERATION_SIZE / 2];
+        for (int i = 0; i < seenIds.length; i++) {
+            seenIds[i] = MeshPacket.messageId(i * 31, i);
+            filter.add(seenIds[i]);
+        }
+    }
+
+    @Benchmark
+    public boolean addFresh() {
+        return filter.add(MeshPacket.messageId(0x5EED, ++counter));
+    }
+
+    @Benchmark
+    public boolean addDuplicate() {
+        long id = seenIds[next];
+        next = (next + 1) % seenIds.length;
+        return filter.add(id);
+    }
+}
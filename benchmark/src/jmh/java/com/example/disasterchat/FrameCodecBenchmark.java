@@ -0,0 +1,113 @@
+package com.example.disasterchat;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame encode and the receive path of {@code ConnectedThread.run()}: 4 KB socket reads
+ * fed through {@link FrameDecoder}, then mesh header parsing, dedup and body decoding with
+ * {@link TextCodec}. Decoder, filter and codec live as long as the trial, as they live as
+ * long as a link, so allocation per op is the receive path's own: nothing for decoding,
+ * and the String handed to the consumer for each fresh message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class FrameCodecBenchmark {
+    private static final int MESSAGES = 256;
+    private static final int READ_SIZE = 4096;
+    /**
+     * Streams of distinct message ids fed in turn. The filter keeps at most two streams'
+     * worth, so every message is fresh again by the time its stream comes round.
+     */
+    private static final int STREAMS = 3;
+
+    @Param({"32", "256"})
+    int bodyLength;
+
+    private byte[] body;
+    private byte[] frameBuffer;
+    private byte[][] streams;
+    private int nextStream;
+    private int counter;
+
+    private Blackhole bh;
+    private FrameDecoder lengths;
+    private FrameDecoder receiver;
+    private DuplicateFilter seen;
+    private TextCodec text;
+
+    @Setup
+    public void setUp(Blackhole bh) {
+        this.bh = bh;
+        body = Payloads.text(bodyLength).getBytes(StandardCharsets.UTF_8);
+        frameBuffer = new byte[FrameCodec.HEADER_SIZE + MeshPacket.HEADER_SIZE + body.length];
+
+        streams = new byte[STREAMS][];
+        for (int s = 0; s < STREAMS; s++) {
+            byte[][] frames = new byte[MESSAGES][];
+            int total = 0;
+            for (int i = 0; i < MESSAGES; i++) {
+                frames[i] = FrameCodec.encode(FrameCodec.TYPE_CHAT,
+                        MeshPacket.encode(MeshPacket.messageId(7, s * MESSAGES + i), MeshPacket.DEFAULT_TTL, 0L, body));
+                total += frames[i].length;
+            }
+            byte[] stream = new byte[total];
+            int offset = 0;
+            for (byte[] frame : frames) {
+                System.arraycopy(frame, 0, stream, offset, frame.length);
+                offset += frame.length;
+            }
+            streams[s] = stream;
+        }
+
+        seen = new DuplicateFilter(MESSAGES);
+        text = new TextCodec(FrameCodec.MAX_PAYLOAD);
+        lengths = new FrameDecoder((type, flags, buffer, offset, length) -> this.bh.consume(length));
+        receiver = new FrameDecoder(this::onFrame);
+    }
+
+    private void onFrame(byte type, byte flags, byte[] buffer, int offset, int length) {
+        long messageId = MeshPacket.readMessageId(buffer, offset);
+        if (seen.add(messageId)) {
+            bh.consume(text.decode(buffer, offset + MeshPacket.HEADER_SIZE,
+                    length - MeshPacket.HEADER_SIZE).toString());
+        }
+    }
+
+    @Benchmark
+    public byte[] encodeChat() {
+        return FrameCodec.encode(FrameCodec.TYPE_CHAT,
+                MeshPacket.encode(MeshPacket.messageId(7, ++counter), MeshPacket.DEFAULT_TTL, 0L, body));
+    }
+
+    @Benchmark
+    public int encodeIntoBuffer() {
+        return FrameCodec.encode(FrameCodec.TYPE_CHAT, (byte) 0, body, 0, body.length, frameBuffer, 0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void decodeFrames() throws IOException {
+        feed(lengths);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void receiveLoop() throws IOException {
+        feed(receiver);
+    }
+
+    private void feed(FrameDecoder decoder) throws IOException {
+        byte[] stream = streams[nextStream];
+        nextStream = (nextStream + 1) % STREAMS;
+        decoder.reset();
+        for (int offset = 0; offset < stream.length; offset += READ_SIZE) {
+            decoder.feed(stream, offset, Math.min(READ_SIZE, stream.length - offset));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.disasterchat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hand-off between the caller of {@code write()} and the link writer thread. {@code offerPoll}
+ * is the uncontended cost per frame; the {@code handoff} group measures a producer and the
+ * writer thread contending on the same queue.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Group)
+public class OutboundQueueBenchmark {
+    private static final int LANE_CAPACITY = 128;
+
+    private OutboundQueue queue;
+    private byte[] frame;
+
+    @Setup
+    public void setUp() {
+        queue = new OutboundQueue(LANE_CAPACITY);
+        frame = FrameCodec.encode(FrameCodec.TYPE_CHAT, new byte[64]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        queue.close(new IOException("benchmark done"));
+    }
+
+    @Benchmark
+    @Group("single")
+    public OutboundQueue.Entry offerPoll() {
+        queue.offer(OutboundQueue.LANE_CHAT, frame);
+        return queue.poll();
+    }
+
+    @Benchmark
+    @Group("handoff")
+    public Object producer() {
+        // A full lane fails fast with an exception; wait for room instead so that path stays out of the numbers.
+        while (queue.size() >= LANE_CAPACITY) {
+            Thread.onSpinWait();
+        }
+        return queue.offer(OutboundQueue.LANE_CHAT, frame);
+    }
+
+    @Benchmark
+    @Group("handoff")
+    public OutboundQueue.Entry writer() throws InterruptedException {
+        OutboundQueue.Entry entry = queue.poll(TimeUnit.MILLISECONDS.toNanos(1));
+        if (entry != null) {
+            entry.result.complete(null);
+        }
+        return entry;
+    }
+}
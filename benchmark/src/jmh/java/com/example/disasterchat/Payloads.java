@@ -0,0 +1,33 @@
+package com.example.disasterchat;
+
+final class Payloads {
+    private static final String SAMPLE =
+            "Need water and medical supplies at the school shelter, two injured, road blocked. ";
+    private static final String SAMPLE_MIXED =
+            "Besoin d'eau à l'abri — 2 blessés, route bloquée 🚧 ";
+
+    private Payloads() {
+    }
+
+    /** ASCII text of exactly {@code length} chars. */
+    static String text(int length) {
+        return repeat(SAMPLE, length);
+    }
+
+    /** Text with accented characters and a surrogate pair, roughly {@code length} chars. */
+    static String mixedText(int length) {
+        return repeat(SAMPLE_MIXED, length);
+    }
+
+    private static String repeat(String sample, int length) {
+        StringBuilder sb = new StringBuilder(length + sample.length());
+        while (sb.length() < length) {
+            sb.append(sample);
+        }
+        sb.setLength(length);
+        if (Character.isHighSurrogate(sb.charAt(length - 1))) {
+            sb.setCharAt(length - 1, ' ');
+        }
+        return sb.toString();
+    }
+}